@@ -43,6 +43,10 @@ import java.util.Objects;
  * decided it was worth the slight inconsistency.
  * If you need the strict equality use {@link BigComplex#strictEquals(Object)}`.</p>
  *
+ * <p>Real integers that fit in a {@code long} and other real numbers are told apart when they are created, so
+ * that arithmetic on them can skip the imaginary part, and on integers the {@link BigDecimal}s altogether. A
+ * result that overflows a {@code long} is worked out with {@link BigDecimal}s instead.</p>
+ *
  * <p>This class is immutable and therefore inherently thread safe.</p>
  */
 public final class BigComplex implements Comparable<BigComplex> {
@@ -59,6 +63,19 @@ public final class BigComplex implements Comparable<BigComplex> {
 
     private static final BigDecimal DECIMAL_TWO = BigDecimal.valueOf(2);
 
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private static final int CACHE_LOW = -1024;
+    private static final int CACHE_HIGH = 65536;
+    private static final int CACHE_DIGITS = 5;
+
+    /**
+     * The integers from {@link #CACHE_LOW} to {@link #CACHE_HIGH}, filled in as they are first asked for so that
+     * a program does not have to pay for all of them at startup. Two threads can race to fill in the same one,
+     * which only costs an extra object since instances are immutable.
+     */
+    private static final BigComplex[] CACHE = new BigComplex[CACHE_HIGH - CACHE_LOW + 1];
+
     /**
      * Real 2 represented as complex number.
      */
@@ -69,6 +86,12 @@ public final class BigComplex implements Comparable<BigComplex> {
      */
     public static final BigComplex I = new BigComplex(BigDecimal.ZERO, BigDecimal.ONE);
 
+    static {
+        CACHE[-CACHE_LOW] = ZERO;
+        CACHE[1 - CACHE_LOW] = ONE;
+        CACHE[2 - CACHE_LOW] = TWO;
+    }
+
     /**
      * The real {@link BigDecimal} part of this complex number.
      */
@@ -79,9 +102,30 @@ public final class BigComplex implements Comparable<BigComplex> {
      */
     public final BigDecimal im;
 
+    /**
+     * Whether this is a real integer that fits in a {@code long}, and {@link #small} has its value.
+     */
+    private final boolean isLong;
+
+    private final boolean isReal;
+
+    private final long small;
+
     private BigComplex(BigDecimal re, BigDecimal im) {
         this.re = re;
         this.im = im;
+        this.isReal = im.signum() == 0;
+        // up to 18 digits always fits, and precision is cheap for a BigDecimal that is backed by a long
+        this.isLong = isReal && re.scale() == 0 && re.precision() <= MAX_LONG_DIGITS;
+        this.small = isLong ? re.longValue() : 0;
+    }
+
+    private BigComplex(long value) {
+        this.re = BigDecimal.valueOf(value);
+        this.im = BigDecimal.ZERO;
+        this.isReal = true;
+        this.isLong = true;
+        this.small = value;
     }
 
     /**
@@ -93,6 +137,16 @@ public final class BigComplex implements Comparable<BigComplex> {
      * @return the calculated {@link BigComplex} result
      */
     public BigComplex add(BigComplex value) {
+        if (isLong && value.isLong) {
+            long result = small + value.small;
+            // overflow if both operands have a different sign to the result
+            if (((small ^ result) & (value.small ^ result)) >= 0) {
+                return valueOf(result);
+            }
+        }
+        if (isReal && value.isReal) {
+            return valueOf(re.add(value.re));
+        }
         return valueOf(
                 re.add(value.re),
                 im.add(value.im));
@@ -163,6 +217,16 @@ public final class BigComplex implements Comparable<BigComplex> {
      * @return the calculated {@link BigComplex} result
      */
     public BigComplex subtract(BigComplex value) {
+        if (isLong && value.isLong) {
+            long result = small - value.small;
+            // overflow if the operands have different signs and the result has the sign of the subtrahend
+            if (((small ^ value.small) & (small ^ result)) >= 0) {
+                return valueOf(result);
+            }
+        }
+        if (isReal && value.isReal) {
+            return valueOf(re.subtract(value.re));
+        }
         return valueOf(
                 re.subtract(value.re),
                 im.subtract(value.im));
@@ -233,6 +297,16 @@ public final class BigComplex implements Comparable<BigComplex> {
      * @return the calculated {@link BigComplex} result
      */
     public BigComplex multiply(BigComplex value) {
+        if (isLong && value.isLong) {
+            long result = small * value.small;
+            // the high half of the full product is only the sign of the low half if it did not overflow
+            if (Math.multiplyHigh(small, value.small) == result >> 63) {
+                return valueOf(result);
+            }
+        }
+        if (isReal && value.isReal) {
+            return valueOf(re.multiply(value.re));
+        }
         return valueOf(
                 re.multiply(value.re).subtract(im.multiply(value.im)),
                 re.multiply(value.im).add(im.multiply(value.re)));
@@ -369,6 +443,9 @@ public final class BigComplex implements Comparable<BigComplex> {
      * @return the calculated {@link BigComplex} result
      */
     public BigComplex negate() {
+        if (isLong && small != Long.MIN_VALUE) {
+            return valueOf(-small);
+        }
         return valueOf(re.negate(), im.negate());
     }
 
@@ -420,7 +497,38 @@ public final class BigComplex implements Comparable<BigComplex> {
      * @return {@code true} if this complex number only has a real part, {@code false} if the imaginary part is not 0
      */
     public boolean isReal() {
-        return im.signum() == 0;
+        return isReal;
+    }
+
+    /**
+     * Returns whether this complex number is a real integer that fits in a {@code long}.
+     *
+     * @return {@code true} if {@link #longValue()} can be called on this complex number
+     */
+    public boolean isLong() {
+        return isLong;
+    }
+
+    /**
+     * Returns the value of this complex number as a {@code long}, without going through its {@link BigDecimal} parts.
+     *
+     * @return the {@code long} value
+     * @throws ArithmeticException if this complex number is not a real integer that fits in a {@code long}
+     */
+    public long longValue() {
+        if (!isLong) {
+            throw new ArithmeticException("Not a long: " + this);
+        }
+        return small;
+    }
+
+    /**
+     * Returns whether this complex number is 0.
+     *
+     * @return {@code true} if both parts are 0
+     */
+    public boolean isZero() {
+        return isLong ? small == 0 : isReal && re.signum() == 0;
     }
 
     /**
@@ -477,6 +585,9 @@ public final class BigComplex implements Comparable<BigComplex> {
             return false;
         BigComplex other = (BigComplex) obj;
 
+        if (isLong && other.isLong) {
+            return small == other.small;
+        }
         return re.compareTo(other.re) == 0 && im.compareTo(other.im) == 0;
     }
 
@@ -505,7 +616,9 @@ public final class BigComplex implements Comparable<BigComplex> {
 
     @Override
     public String toString() {
-        if (im.signum() == 0) {
+        if (isLong) {
+            return Long.toString(small);
+        } else if (isReal) {
             return re.stripTrailingZeros().toPlainString();
         } else if (re.signum() == 0) {
             return im.stripTrailingZeros().toPlainString() + "i";
@@ -545,7 +658,16 @@ public final class BigComplex implements Comparable<BigComplex> {
      * @return the complex number
      */
     public static BigComplex valueOf(long real) {
-        return valueOf(BigDecimal.valueOf(real), BigDecimal.ZERO);
+        if (real < CACHE_LOW || real > CACHE_HIGH) {
+            return new BigComplex(real);
+        }
+        int index = (int) real - CACHE_LOW;
+        BigComplex cached = CACHE[index];
+        if (cached == null) {
+            cached = new BigComplex(real);
+            CACHE[index] = cached;
+        }
+        return cached;
     }
 
     /**
@@ -586,6 +708,12 @@ public final class BigComplex implements Comparable<BigComplex> {
             }
         }
         if (imaginary.signum() == 0) {
+            if (real.scale() == 0 && real.precision() <= CACHE_DIGITS) {
+                long value = real.longValue();
+                if (value >= CACHE_LOW && value <= CACHE_HIGH) {
+                    return valueOf(value);
+                }
+            }
             if (real.compareTo(BigDecimal.ONE) == 0) {
                 return ONE;
             } else if (real.compareTo(DECIMAL_TWO) == 0) {
@@ -625,7 +753,10 @@ public final class BigComplex implements Comparable<BigComplex> {
      */
     @Override
     public int compareTo(@NotNull BigComplex o) {
-        if (im.signum() != 0 || o.im.signum() != 0) {
+        if (isLong && o.isLong) {
+            return Long.compare(small, o.small);
+        }
+        if (!isReal || !o.isReal) {
             throw new IllegalArgumentException("Cannot compare complex number " + this + " to complex number " + o);
         }
 
@@ -633,6 +764,6 @@ public final class BigComplex implements Comparable<BigComplex> {
     }
 
     public int toInt() {
-        return re.intValue();
+        return isLong ? (int) small : re.intValue();
     }
 }
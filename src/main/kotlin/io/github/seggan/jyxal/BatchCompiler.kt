@@ -0,0 +1,93 @@
+package io.github.seggan.jyxal
+
+import java.io.OutputStream
+import java.io.PrintStream
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.Collectors
+
+/**
+ * Compiles many programs at once, one per core. Each program gets a compiler of its own, so the only things
+ * shared are the runtime classes, which are read once for all of them.
+ */
+class BatchCompiler(private val options: Set<CompilerOptions>, private val precision: Int, private val isTest: Boolean) {
+
+    private class Result(val file: Path, val jarSize: Long, val error: Throwable?, val millis: Long)
+
+    private val quiet = PrintStream(OutputStream.nullOutputStream())
+
+    /**
+     * Compiles [files], then writes how each went to [out]. Returns whether they all compiled.
+     */
+    fun compile(files: List<Path>, out: PrintStream): Boolean {
+        val pool = ForkJoinPool(Runtime.getRuntime().availableProcessors())
+        val results = try {
+            pool.invokeAll(files.map { file -> Callable { compile(file) } }).map { it.get() }
+        } finally {
+            pool.shutdown()
+        }
+        var failed = 0
+        for (result in results) {
+            if (result.error == null) {
+                out.println("OK   %6d ms %9d bytes  %s".format(result.millis, result.jarSize, result.file))
+            } else {
+                failed++
+                out.println("FAIL %6d ms %15s  %s: %s".format(result.millis, "", result.file, result.error))
+            }
+        }
+        out.println("Compiled ${results.size - failed} of ${results.size} programs in ${results.sumOf { it.millis }} ms of compile time")
+        return failed == 0
+    }
+
+    private fun compile(file: Path): Result {
+        val start = System.nanoTime()
+        return try {
+            val name = file.toString()
+            val jar = Main.compile(name, options, precision, isTest, Path.of("$name-debug.log"), quiet)
+            Result(file, jar.length(), null, (System.nanoTime() - start) / 1_000_000)
+        } catch (e: Exception) {
+            Result(file, 0, e, (System.nanoTime() - start) / 1_000_000)
+        }
+    }
+
+    companion object {
+        private val GLOB_CHARS = charArrayOf('*', '?', '[', '{')
+
+        /**
+         * The extensions of the programs in a directory. Anything else is left alone, including the jars,
+         * logs, metrics and line tables the compiler writes next to them.
+         */
+        private val PROGRAM_EXTENSIONS = listOf(".vy", ".vyxal")
+
+        /**
+         * The programs [pattern] names: every file in a directory with one of the [PROGRAM_EXTENSIONS], or
+         * the files matching a glob
+         */
+        fun findPrograms(pattern: String): List<Path> {
+            val glob = pattern.indexOfAny(GLOB_CHARS)
+            if (glob == -1) {
+                return Files.list(Path.of(pattern)).use { files ->
+                    files.filter { Files.isRegularFile(it) }
+                            .filter { file ->
+                                val name = file.fileName.toString()
+                                PROGRAM_EXTENSIONS.any { name.endsWith(it) }
+                            }
+                            .sorted()
+                            .collect(Collectors.toList())
+                }
+            }
+            // the walk starts from the directory before the first wildcard, so the paths it finds have the same
+            // form as the pattern
+            val base = pattern.substring(0, pattern.lastIndexOf('/', glob) + 1)
+            val matcher = FileSystems.getDefault().getPathMatcher("glob:$pattern")
+            return Files.walk(Path.of(base)).use { files ->
+                files.filter { Files.isRegularFile(it) && matcher.matches(it) }
+                        .sorted()
+                        .collect(Collectors.toList())
+            }
+        }
+    }
+}
\ No newline at end of file
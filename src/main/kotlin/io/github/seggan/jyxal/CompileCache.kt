@@ -0,0 +1,96 @@
+package io.github.seggan.jyxal
+
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.stream.Collectors
+
+/**
+ * Compiled jars kept in [dir], named after the hash of everything that goes into them: the source, the
+ * options and precision, the version of the compiler and the runtime. Entries are copied rather than linked into place, as
+ * the next compilation of the same program overwrites its jar. Once the entries add up to more than [maxSize]
+ * bytes, the ones used least recently are deleted.
+ */
+class CompileCache(private val dir: Path, private val maxSize: Long) {
+
+    fun key(
+            source: ByteArray,
+            options: Set<CompilerOptions>,
+            precision: Int,
+            compilerVersion: String,
+            runtimeDigest: ByteArray
+    ): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update(source)
+        digest.update(0)
+        digest.update(options.joinToString("") { it.name + ";" }.toByteArray())
+        digest.update(0)
+        digest.update(precision.toString().toByteArray())
+        digest.update(0)
+        digest.update(compilerVersion.toByteArray())
+        digest.update(0)
+        digest.update(runtimeDigest)
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    /**
+     * Copies the jar cached under [key] to [target], returning whether there was one
+     */
+    fun get(key: String, target: File): Boolean {
+        val entry = dir.resolve("$key.jar")
+        try {
+            Files.copy(entry, target.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            // the modification time doubles as the time it was last used
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()))
+            return true
+        } catch (e: IOException) {
+            return false
+        }
+    }
+
+    fun put(key: String, jar: File) {
+        Files.createDirectories(dir)
+        val temp = Files.createTempFile(dir, key, ".tmp")
+        try {
+            Files.copy(jar.toPath(), temp, StandardCopyOption.REPLACE_EXISTING)
+            Files.move(temp, dir.resolve("$key.jar"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+        evict()
+    }
+
+    @Synchronized
+    private fun evict() {
+        val entries = Files.list(dir).use { files ->
+            files.filter { it.fileName.toString().endsWith(".jar") }
+                    .map { it to Files.readAttributes(it, "size,lastModifiedTime") }
+                    .collect(Collectors.toList())
+        }
+        var size = entries.sumOf { it.second["size"] as Long }
+        for ((entry, attributes) in entries.sortedBy { it.second["lastModifiedTime"] as FileTime }) {
+            if (size <= maxSize) break
+            size -= attributes["size"] as Long
+            Files.deleteIfExists(entry)
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_MAX_SIZE = 256L * 1024 * 1024
+
+        /**
+         * The cache configured by the `jyxal.cache.dir` and `jyxal.cache.maxSize` system properties, or null if
+         * `jyxal.cache.dir` is `none`
+         */
+        fun fromProperties(): CompileCache? {
+            val dir = System.getProperty("jyxal.cache.dir", Path.of(System.getProperty("user.home"), ".cache", "jyxal").toString())
+            if (dir == "none") return null
+            val maxSize = System.getProperty("jyxal.cache.maxSize")?.toLong() ?: DEFAULT_MAX_SIZE
+            return CompileCache(Path.of(dir), maxSize)
+        }
+    }
+}
\ No newline at end of file
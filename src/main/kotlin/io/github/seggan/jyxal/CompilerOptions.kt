@@ -1,5 +1,6 @@
 package io.github.seggan.jyxal
 
+import io.github.seggan.jyxal.runtime.DEFAULT_PRECISION
 import java.util.EnumSet
 
 enum class CompilerOptions(private val c: Char) {
@@ -8,26 +9,37 @@ enum class CompilerOptions(private val c: Char) {
     DONT_OPTIMISE('o'),
     DONT_OPTIMISE_AFTER_COMPILE('O'),
     DONT_VECTORISE_MONADS('v'),
-    PRINT_TO_FILE('f');
+    PRINT_TO_FILE('f'),
+    DUMP_BYTECODE('b'),
+    PRINT_METRICS('m'),
+    INTERPRET('i'),
+    LINE_TABLE('l'),
+    COUNT_ELEMENTS('c'),
+    TIME_ELEMENTS('t'),
+    FAST_MATH('F');
 
     companion object {
-        private var OPTIONS: MutableSet<CompilerOptions> = EnumSet.noneOf(CompilerOptions::class.java)
-        fun fromString(s: String) {
+        fun fromString(s: String): Set<CompilerOptions> {
+            val options = EnumSet.noneOf(CompilerOptions::class.java)
             for (c in s.toCharArray()) {
                 for (option in values()) {
                     if (option.c == c) {
-                        OPTIONS.add(option)
+                        options.add(option)
                     }
                 }
             }
+            return options
         }
 
-        fun contains(option: CompilerOptions): Boolean {
-            return OPTIONS.contains(option)
-        }
-
-        fun doesNotContain(option: CompilerOptions): Boolean {
-            return !OPTIONS.contains(option)
+        /**
+         * The number of digits given among the flags in [s], e.g. `F100`, that results which cannot be exact
+         * are rounded to
+         */
+        fun precisionOf(s: String): Int {
+            val digits = Regex("\\d+").find(s) ?: return DEFAULT_PRECISION
+            val precision = digits.value.toIntOrNull() ?: 0
+            require(precision > 0) { "Invalid precision: ${digits.value}" }
+            return precision
         }
     }
 }
\ No newline at end of file
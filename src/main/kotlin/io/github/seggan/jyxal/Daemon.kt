@@ -0,0 +1,82 @@
+package io.github.seggan.jyxal
+
+import java.io.BufferedReader
+import java.io.InputStreamReader
+import java.io.OutputStream
+import java.io.OutputStreamWriter
+import java.io.PrintStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketException
+import java.nio.charset.StandardCharsets
+import java.nio.file.Path
+import java.util.concurrent.Executors
+
+/**
+ * Keeps the compiler running between programs, so the JVM, the parser's DFA caches and the loaded classes of
+ * ASM and the runtime stay warm. It listens on [port] on the loopback interface, and takes one program per
+ * connection: a line with the path of the source file, then a line with the flags. It answers with
+ * `OK <path of the jar>` or `ERROR <message>` and closes the connection. The bytecode dump goes to
+ * `<file>-debug.log`, so programs compiled at the same time do not share one.
+ */
+class Daemon(private val port: Int, private val isTest: Boolean) {
+
+    private val executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) { runnable ->
+        val thread = Thread(runnable, "jyxal-compiler")
+        thread.isDaemon = true
+        thread
+    }
+
+    private val quiet = PrintStream(OutputStream.nullOutputStream())
+
+    fun run() {
+        ServerSocket(port, 50, InetAddress.getLoopbackAddress()).use { server ->
+            println("Listening on port ${server.localPort}")
+            serve(server)
+        }
+    }
+
+    /**
+     * Answers the connections to [server] until it is closed
+     */
+    internal fun serve(server: ServerSocket) {
+        while (!server.isClosed) {
+            val socket = try {
+                server.accept()
+            } catch (e: SocketException) {
+                break
+            }
+            executor.execute { handle(socket) }
+        }
+    }
+
+    private fun handle(socket: Socket) {
+        socket.use {
+            val reader = BufferedReader(InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+            val writer = OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)
+            val response = try {
+                val fileName = reader.readLine() ?: return
+                val flags = reader.readLine() ?: ""
+                val jar = Main.compile(
+                        fileName,
+                        CompilerOptions.fromString(flags),
+                        CompilerOptions.precisionOf(flags),
+                        isTest,
+                        Path.of("$fileName-debug.log"),
+                        quiet
+                )
+                "OK ${jar.absolutePath}"
+            } catch (e: Exception) {
+                "ERROR ${e.toString().replace('\n', ' ')}"
+            }
+            writer.write(response)
+            writer.write("\n")
+            writer.flush()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_PORT = 4173
+    }
+}
\ No newline at end of file
@@ -0,0 +1,489 @@
+package io.github.seggan.jyxal
+
+import io.github.seggan.jyxal.antlr.JyxalParser.*
+import io.github.seggan.jyxal.compiler.Compiler
+import io.github.seggan.jyxal.compiler.ConstantFolder
+import io.github.seggan.jyxal.compiler.Constants
+import io.github.seggan.jyxal.compiler.Element
+import io.github.seggan.jyxal.compiler.JyxalCompileException
+import io.github.seggan.jyxal.compiler.screamingSnakeToCamel
+import io.github.seggan.jyxal.runtime.DEFAULT_PRECISION
+import io.github.seggan.jyxal.runtime.Lambda
+import io.github.seggan.jyxal.runtime.ProgramStack
+import io.github.seggan.jyxal.runtime.applyLambda
+import io.github.seggan.jyxal.runtime.filterLambda
+import io.github.seggan.jyxal.runtime.forify
+import io.github.seggan.jyxal.runtime.infinitePrimes
+import io.github.seggan.jyxal.runtime.list.JyxalList
+import io.github.seggan.jyxal.runtime.mapLambda
+import io.github.seggan.jyxal.runtime.math.BigComplex
+import io.github.seggan.jyxal.runtime.monadVectorise
+import io.github.seggan.jyxal.runtime.printToFile
+import io.github.seggan.jyxal.runtime.truthValue
+import io.github.seggan.jyxal.runtime.withMath
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.tree.ErrorNode
+import org.antlr.v4.runtime.tree.ParseTree
+import org.antlr.v4.runtime.tree.Trees
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.reflect.Field
+import java.math.BigDecimal
+import kotlin.system.exitProcess
+
+/**
+ * Runs a parsed program by walking its tree, which saves compiling the whole of it for programs that do not
+ * run long enough to make up for that. Every node is turned into a closure once, before the program starts.
+ *
+ * The bodies of loops and lambdas count how often they run. Once one has run [tierUpThreshold] times, it
+ * is compiled on its own with [Compiler.compileRegion] and runs as bytecode from then on. The variables and
+ * the register are kept in a class of their own, so the interpreter and the compiled bodies share them.
+ * Nodes the interpreter has no closure for are compiled the first time they run.
+ */
+class Interpreter(
+        private val file: FileContext,
+        private val options: Set<CompilerOptions>,
+        private val tierUpThreshold: Int = DEFAULT_TIER_UP_THRESHOLD,
+        private val precision: Int = DEFAULT_PRECISION
+) {
+
+    private class Frame(val stack: ProgramStack, var ctx: Any)
+
+    private val aliases: MutableMap<String, ProgramContext> = HashMap()
+    private val constantFolder = ConstantFolder(aliases, precision, CompilerOptions.FAST_MATH in options)
+
+    /**
+     * The for loop variables of the program, with the index of the token each one is declared at
+     */
+    private val forVariables: List<Pair<Int, String>>
+
+    private val variablesLoader: ClassLoader
+    private val variables: Map<String, Field>
+    private val register: Field
+
+    private val handles: MutableMap<Element, MethodHandle> = HashMap()
+
+    /**
+     * The nodes ANTLR had to recover from a syntax error in, which may be missing children. They are left
+     * to the compiler, which copes with that.
+     */
+    private val malformed: MutableSet<ParseTree> = HashSet()
+
+    init {
+        markMalformed(file)
+        for (alias in file.alias()) {
+            if (alias.theAlias != null && alias.program() != null) {
+                aliases[alias.theAlias.text] = alias.program()
+            }
+        }
+        forVariables = Trees.findAllRuleNodes(file, RULE_for_loop)
+                .map { it as For_loopContext }
+                .filter { it.variable() != null }
+                .map { it.start.tokenIndex to it.variable().text }
+        val names = Trees.findAllRuleNodes(file, RULE_variable_assn).mapNotNullTo(HashSet()) {
+            (it as Variable_assnContext).variable()?.text
+        }
+        val className = Compiler.VARIABLES_CLASS.replace('/', '.')
+        variablesLoader = ProgramClassLoader(Compiler.compileVariables(names), className)
+        val variablesClass = variablesLoader.loadClass(className)
+        variables = names.associateWith { variablesClass.getField(it) }
+        register = variablesClass.getField("register")
+    }
+
+    // a syntax error can leave the file without a program at all
+    private val main = file.program()?.let(::program) ?: { true }
+
+    /**
+     * Runs the program with [args] as its flags and inputs, printing what is left on top of the stack. It
+     * runs in the mode of its own [precision] and flags, as a compiled program does.
+     */
+    fun run(args: Array<String>) {
+        withMath(precision, CompilerOptions.FAST_MATH in options) {
+            val stack = ProgramStack(args)
+            main(Frame(stack, BigComplex.ZERO))
+            if (CompilerOptions.PRINT_TO_FILE in options) {
+                printToFile(stack)
+            } else {
+                println(stack.pop())
+            }
+        }
+    }
+
+    // the closures return false when an X leaves the loop or if they are in
+
+    private fun program(ctx: ProgramContext) = nodes(ctx.program_node())
+
+    private fun nodes(nodes: List<Program_nodeContext>): (Frame) -> Boolean {
+        val closures = nodes.map(::node).toTypedArray()
+        return { frame -> closures.all { it(frame) } }
+    }
+
+    private fun markMalformed(tree: ParseTree): Boolean {
+        var isMalformed = tree is ErrorNode || tree is ParserRuleContext && tree.exception != null
+        for (i in 0 until tree.childCount) {
+            isMalformed = markMalformed(tree.getChild(i)) || isMalformed
+        }
+        if (isMalformed) {
+            malformed.add(tree)
+        }
+        return isMalformed
+    }
+
+    private fun node(ctx: Program_nodeContext): (Frame) -> Boolean {
+        if (ctx in malformed) return compiled(ctx)
+        return when (val child = ctx.getChild(0)) {
+            is LiteralContext -> literal(child, ctx)
+            is StatementContext -> statement(child.getChild(0), ctx)
+            is ElementContext -> element(child, ctx)
+            else -> compiled(ctx)
+        }
+    }
+
+    private fun literal(ctx: LiteralContext, node: Program_nodeContext): (Frame) -> Boolean {
+        val constant = ctx.constant()
+        if (constant != null && Constants.valueOf(constant.text) == null) {
+            throw JyxalCompileException("Unknown constant: ${constant.text}")
+        }
+        val value = constantFolder.valueOf(ctx) ?: return compiled(node)
+        return push { value }
+    }
+
+    private fun statement(ctx: ParseTree, node: Program_nodeContext): (Frame) -> Boolean {
+        return when (ctx) {
+            is If_statementContext -> ifStatement(ctx)
+            is While_loopContext -> whileLoop(ctx)
+            is For_loopContext -> forLoop(ctx)
+            is Fori_loopContext -> foriLoop(ctx)
+            is LambdaContext -> lambda(ctx)
+            is One_element_lambdaContext -> elementLambda(listOf(ctx.program_node()))
+            is Two_element_lambdaContext -> elementLambda(ctx.program_node())
+            is Three_element_lambdaContext -> elementLambda(ctx.program_node())
+            is Variable_assnContext -> variableAssn(ctx)
+            else -> compiled(node)
+        }
+    }
+
+    private fun ifStatement(ctx: If_statementContext): (Frame) -> Boolean {
+        val then = program(ctx.program(0))
+        val otherwise = if (ctx.program().size > 1) program(ctx.program(1)) else null
+        return { frame ->
+            // as compiled, an X in either branch goes to the start of the else branch
+            if ((!truthValue(frame.stack.pop()) || !then(frame)) && otherwise != null) {
+                while (!otherwise(frame)) {
+                }
+            }
+            true
+        }
+    }
+
+    private fun whileLoop(ctx: While_loopContext): (Frame) -> Boolean {
+        val cond = ctx.cond?.let { Body(listOf(it), program(it)) }
+        val body = Body(listOf(ctx.body), program(ctx.body))
+        return { frame ->
+            val ctxStore = frame.ctx
+            frame.ctx = BigComplex.ONE
+            while (cond == null || cond.run(frame) && truthValue(frame.stack.pop())) {
+                if (!body.run(frame)) break
+                frame.ctx = (frame.ctx as BigComplex).add(BigComplex.ONE)
+            }
+            frame.ctx = ctxStore
+            true
+        }
+    }
+
+    private fun forLoop(ctx: For_loopContext): (Frame) -> Boolean {
+        val body = Body(listOf(ctx.program()), program(ctx.program()))
+        return { frame -> loop(forify(frame.stack.pop()), body, frame) }
+    }
+
+    private fun foriLoop(ctx: Fori_loopContext): (Frame) -> Boolean {
+        val body = Body(listOf(ctx.program()), program(ctx.program()))
+        val num = ctx.DIGIT().joinToString("")
+        if (Trees.findAllTokenNodes(ctx.program(), CONTEXT_VAR).isEmpty()) {
+            val times = num.toInt()
+            return { frame ->
+                var counter = times
+                while (counter != 0 && body.run(frame)) {
+                    counter--
+                }
+                true
+            }
+        }
+        val count = BigComplex.valueOf(BigDecimal(num))
+        return { frame -> loop(forify(count), body, frame) }
+    }
+
+    private fun loop(iterator: Iterator<Any>, body: Body, frame: Frame): Boolean {
+        val ctxStore = frame.ctx
+        while (iterator.hasNext()) {
+            frame.ctx = iterator.next()
+            if (!body.run(frame)) break
+        }
+        frame.ctx = ctxStore
+        return true
+    }
+
+    private fun lambda(ctx: LambdaContext): (Frame) -> Boolean {
+        val type = ctx.LAMBDA_TYPE().text
+        val arity = if (type == "λ" && ctx.integer() != null) ctx.integer().text.toInt() else 1
+        val handle = Body(listOf(ctx.program()), program(ctx.program())).lambdaHandle()
+        val helper: ((Lambda, Any) -> Any)? = when (type) {
+            "ƛ" -> ::mapLambda
+            "'" -> ::filterLambda
+            "⟑" -> ::applyLambda
+            // normal lambda
+            else -> null
+        }
+        if (helper != null) {
+            return { frame ->
+                frame.stack.push(helper(Lambda(arity, handle), frame.stack.pop()))
+                true
+            }
+        }
+        return push { Lambda(arity, handle) }
+    }
+
+    private fun elementLambda(nodes: List<Program_nodeContext>): (Frame) -> Boolean {
+        val handle = Body(nodes, nodes(nodes)).lambdaHandle()
+        return push { Lambda(1, handle) }
+    }
+
+    private fun variableAssn(ctx: Variable_assnContext): (Frame) -> Boolean {
+        val name = ctx.variable().text
+        val set = ctx.ASSN_SIGN().text == "→"
+        val start = ctx.start.tokenIndex
+        if (forVariables.any { it.first < start && it.second == name }) {
+            return if (set) {
+                { frame ->
+                    frame.ctx = frame.stack.pop()
+                    true
+                }
+            } else {
+                push { it.ctx }
+            }
+        }
+        val field = variables.getValue(name)
+        return if (set) {
+            { frame ->
+                field.set(null, frame.stack.pop())
+                true
+            }
+        } else {
+            push { field.get(null) }
+        }
+    }
+
+    private fun element(ctx: ElementContext, node: Program_nodeContext): (Frame) -> Boolean {
+        var text = ctx.element_type().text
+        if (ctx.PREFIX() != null) {
+            text = ctx.PREFIX().text + text
+        } else {
+            val alias = aliases[text]
+            if (alias != null) {
+                // an alias may well use itself
+                val program by lazy(LazyThreadSafetyMode.NONE) { program(alias) }
+                return { frame -> program(frame) }
+            }
+        }
+        val constant = Constants.valueOf(text)
+        val action: (Frame) -> Boolean = when {
+            text == "X" -> { _ -> false }
+            constant != null -> push { constant }
+            else -> element(Element.getByText(text)) ?: return compiled(node)
+        }
+        return when (ctx.MODIFIER()?.text) {
+            "ß" -> { frame -> !truthValue(frame.stack.pop()) || action(frame) }
+            "&" -> { frame ->
+                frame.stack.push(register.get(null))
+                // an X skips putting the register back
+                val done = action(frame)
+                if (done) {
+                    register.set(null, frame.stack.pop())
+                }
+                done
+            }
+            else -> action
+        }
+    }
+
+    /**
+     * The closure running [element], or null if it is left to the compiler
+     */
+    private fun element(element: Element): ((Frame) -> Boolean)? {
+        return when (element.type) {
+            Element.LinkedMethodType.DYAD -> {
+                val handle = handle(element)
+                return { frame ->
+                    val top = frame.stack.pop()
+                    frame.stack.push(handle.invoke(frame.stack.pop(), top))
+                    true
+                }
+            }
+            Element.LinkedMethodType.OBJECT_OBJECT -> {
+                val handle = handle(element)
+                if (element.vectorises && CompilerOptions.DONT_VECTORISE_MONADS !in options) {
+                    return { frame ->
+                        frame.stack.push(monadVectorise(frame.stack.pop(), handle))
+                        true
+                    }
+                }
+                return { frame ->
+                    frame.stack.push(handle.invoke(frame.stack.pop()))
+                    true
+                }
+            }
+            Element.LinkedMethodType.STACK_OBJECT -> {
+                val handle = handle(element)
+                return push { handle.invoke(it.stack) }
+            }
+            null -> when (element) {
+                Element.INFINITE_PRIMES -> push { infinitePrimes() }
+                Element.BOOLIFY -> push { BigComplex.valueOf(truthValue(it.stack.pop())) }
+                Element.LOGICAL_NOT -> push { BigComplex.valueOf(!truthValue(it.stack.pop())) }
+                Element.STRINGIFY -> push { it.stack.pop().toString() }
+                Element.DUPLICATE -> { frame ->
+                    val value = frame.stack.pop()
+                    frame.stack.push(value)
+                    frame.stack.push(value)
+                    true
+                }
+                Element.POP -> { frame ->
+                    frame.stack.pop()
+                    true
+                }
+                Element.PUSH_REGISTER -> push { register.get(null) }
+                Element.SET_REGISTER -> { frame ->
+                    register.set(null, frame.stack.pop())
+                    true
+                }
+                Element.STACK_SIZE -> push { BigComplex.valueOf(it.stack.size.toLong()) }
+                Element.WRAP -> push { JyxalList.create(it.stack) }
+                Element.CONTEXT_VAR -> push { it.ctx }
+                Element.INPUT -> push { it.stack.getInput() }
+                Element.PRINT -> { frame ->
+                    print(frame.stack.pop())
+                    true
+                }
+                Element.PRINT_NO_POP -> { frame ->
+                    print(frame.stack.peek())
+                    true
+                }
+                Element.PRINTLN -> { frame ->
+                    println(frame.stack.pop())
+                    true
+                }
+                Element.QUIT -> { _ -> exitProcess(0) }
+                else -> null
+            }
+            else -> null
+        }
+    }
+
+    private fun handle(element: Element): MethodHandle {
+        return handles.getOrPut(element) {
+            val type = element.type!!
+            MethodHandles.publicLookup().findStatic(
+                    RUNTIME_METHODS,
+                    screamingSnakeToCamel(element.name),
+                    MethodType.methodType(type.returnType.java, type.argTypes.map { it.java })
+            )
+        }
+    }
+
+    private inline fun push(crossinline value: (Frame) -> Any?): (Frame) -> Boolean {
+        return { frame ->
+            frame.stack.push(value(frame))
+            true
+        }
+    }
+
+    /**
+     * Runs [node] compiled, compiling it the first time it runs
+     */
+    private fun compiled(node: ParseTree): (Frame) -> Boolean {
+        val region by lazy(LazyThreadSafetyMode.NONE) { compile(listOf(node)) }
+        return { frame ->
+            frame.ctx = region.invoke(frame.stack, frame.ctx) as Any
+            true
+        }
+    }
+
+    private fun compile(nodes: List<ParseTree>): MethodHandle {
+        val start = (nodes[0] as ParserRuleContext).start.tokenIndex
+        val contextVariables = forVariables.filter { it.first < start }.mapTo(HashSet()) { it.second }
+        val bytes = Compiler.compileRegion(nodes, aliases, contextVariables, options, precision)
+        val region = ProgramClassLoader(bytes, parent = variablesLoader).loadClass("jyxal.Main")
+        return MethodHandles.publicLookup().findStatic(region, "region", REGION_TYPE)
+    }
+
+    /**
+     * The body of a loop or lambda, which is compiled once it has run often enough
+     */
+    private inner class Body(private val nodes: List<ParseTree>, private val interpret: (Frame) -> Boolean) {
+
+        private var runs = 0
+        private var region: MethodHandle? = null
+
+        // an X has to stay inside the compiled code, as it cannot jump out of it
+        private var compilable = nodes.none { it.breaksOut() }
+
+        fun run(frame: Frame): Boolean {
+            val region = region ?: if (compilable && ++runs > tierUpThreshold) tierUp() else null
+            if (region == null) return interpret(frame)
+            frame.ctx = region.invoke(frame.stack, frame.ctx) as Any
+            return true
+        }
+
+        private fun tierUp(): MethodHandle? {
+            compilable = false
+            region = try {
+                compile(nodes)
+            } catch (e: Exception) {
+                // whatever the compiler cannot handle on its own carries on being interpreted
+                null
+            }
+            return region
+        }
+
+        /**
+         * Calls this as the lambda of a [Lambda], with the lambda's own stack
+         */
+        @Suppress("UNCHECKED_CAST")
+        fun call(stack: ProgramStack): Any {
+            run(Frame(stack, JyxalList.create(stack as Collection<Any>)))
+            return stack.pop()
+        }
+
+        fun lambdaHandle(): MethodHandle = CALL.bindTo(this)
+    }
+
+    companion object {
+        private val RUNTIME_METHODS = Class.forName("io.github.seggan.jyxal.runtime.RuntimeMethods")
+
+        private val REGION_TYPE = MethodType.methodType(Any::class.java, ProgramStack::class.java, Any::class.java)
+
+        private val CALL = MethodHandles.lookup().findVirtual(
+                Body::class.java,
+                "call",
+                MethodType.methodType(Any::class.java, ProgramStack::class.java)
+        )
+
+        /**
+         * How often a body runs before it is compiled, which can be changed with the `jyxal.tierUpThreshold`
+         * system property
+         */
+        val DEFAULT_TIER_UP_THRESHOLD: Int = Integer.getInteger("jyxal.tierUpThreshold", 1000)
+
+        /**
+         * Whether [this] has an X that is not inside a loop or if of its own, which would leave it
+         */
+        private fun ParseTree.breaksOut(): Boolean {
+            return when (this) {
+                is ElementContext -> PREFIX() == null && element_type().text == "X"
+                is If_statementContext, is While_loopContext, is For_loopContext, is Fori_loopContext -> false
+                else -> (0 until childCount).any { getChild(it).breaksOut() }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -1,25 +1,26 @@
 package io.github.seggan.jyxal
 
-import io.github.seggan.jyxal.antlr.JyxalLexer
 import io.github.seggan.jyxal.antlr.JyxalParser
+import io.github.seggan.jyxal.antlr.JyxalParser.FileContext
+import io.github.seggan.jyxal.compiler.CompileMetrics
 import io.github.seggan.jyxal.compiler.Compiler
+import io.github.seggan.jyxal.compiler.Lexer
+import io.github.seggan.jyxal.compiler.LineTable
+import io.github.seggan.jyxal.compiler.Parser
 import io.github.seggan.jyxal.runtime.text.Compression
-import org.antlr.v4.runtime.CharStreams
-import org.antlr.v4.runtime.CommonTokenStream
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.util.TraceClassVisitor
-import proguard.ClassPath
-import proguard.ClassPathEntry
-import proguard.Configuration
-import proguard.ConfigurationParser
-import proguard.ProGuard
 import java.io.File
-import java.io.FileInputStream
 import java.io.FileOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.PrintStream
 import java.io.PrintWriter
+import java.lang.reflect.InvocationTargetException
 import java.nio.charset.StandardCharsets
 import java.nio.file.Files
 import java.nio.file.Path
+import java.security.MessageDigest
 import java.util.Scanner
 import java.util.jar.Attributes
 import java.util.jar.JarEntry
@@ -29,104 +30,303 @@ import java.util.jar.Manifest
 object Main {
     private const val runtimeClasses = "/build/runtime-classes"
 
+    private val runtimeResources by lazy { loadRuntimeResources(false) }
+    private val testRuntimeResources by lazy { loadRuntimeResources(true) }
+    private val runtimeIndex by lazy { loadRuntimeIndex(false) }
+    private val testRuntimeIndex by lazy { loadRuntimeIndex(true) }
+
+    private val cache by lazy { CompileCache.fromProperties() }
+
+    /**
+     * Identifies the build of the compiler, or null if it is not running from a jar, in which case nothing
+     * is cached as the compiler may change without its version changing
+     */
+    private val compilerVersion by lazy {
+        val location = Main::class.java.protectionDomain.codeSource?.location ?: return@lazy null
+        val jar = File(location.toURI())
+        if (jar.isFile) "${Main::class.java.`package`.implementationVersion}:${jar.length()}:${jar.lastModified()}" else null
+    }
+
+    private val runtimeDigest by lazy {
+        val digest = MessageDigest.getInstance("SHA-256")
+        for ((resource, contents) in runtimeResources) {
+            digest.update(resource.toByteArray())
+            digest.update(contents)
+        }
+        digest.digest()
+    }
+
     @JvmStatic
     fun doMain(args: Array<String>, isTest: Boolean) {
         if (args.isEmpty()) {
-            println("Usage: java -jar jyxal.jar <file>")
+            println("Usage: java -jar jyxal.jar <file> [flags]")
+            println("       java -jar jyxal.jar --run <file> [flags] [program flags] [inputs...]")
+            println("       java -jar jyxal.jar --batch <directory|glob> [flags]")
+            println("       java -jar jyxal.jar --daemon [port]")
+            println("       java -jar jyxal.jar --profile <lines file> <profile>")
+            return
+        }
+        if (args[0] == "--batch") {
+            if (args.size < 2) {
+                println("Usage: java -jar jyxal.jar --batch <directory|glob> [flags]")
+                return
+            }
+            val flags = if (args.size > 2) args[2] else ""
+            BatchCompiler(CompilerOptions.fromString(flags), CompilerOptions.precisionOf(flags), isTest)
+                    .compile(BatchCompiler.findPrograms(args[1]), System.out)
+            return
+        }
+        if (args[0] == "--daemon") {
+            Daemon(if (args.size > 1) args[1].toInt() else Daemon.DEFAULT_PORT, isTest).run()
+            return
+        }
+        if (args[0] == "--profile") {
+            if (args.size < 3) {
+                println("Usage: java -jar jyxal.jar --profile <lines file> <profile>")
+                return
+            }
+            val lines = LineTable.read(Files.readAllLines(Path.of(args[1])))
+            ProfileRewriter(lines).rewrite(Path.of(args[2]), System.out)
+            return
+        }
+        if (args[0] == "--run") {
+            if (args.size < 2) {
+                println("Usage: java -jar jyxal.jar --run <file> [flags] [program flags] [inputs...]")
+                return
+            }
+            val flags = if (args.size > 2) args[2] else ""
+            run(
+                    Files.readAllBytes(Path.of(args[1])),
+                    args[1],
+                    CompilerOptions.fromString(flags),
+                    CompilerOptions.precisionOf(flags),
+                    args.copyOfRange(minOf(3, args.size), args.size)
+            )
             return
         }
-        CompilerOptions.fromString(if (args.size > 1) args[1] else "")
+        val flags = if (args.size > 1) args[1] else ""
+        compile(args[0], CompilerOptions.fromString(flags), CompilerOptions.precisionOf(flags), isTest, Path.of("debug.log"), System.out)
+    }
 
-        println("Parsing program...")
-        val bytes: ByteArray = Files.readAllBytes(Path.of(args[0]))
-        val s: String = if (CompilerOptions.contains(CompilerOptions.VYXAL_CODEPAGE)) {
+    /**
+     * Compiles [fileName] with [options] and [precision] into a jar next to it, which is returned. If asked
+     * to, the bytecode is dumped to [debugLog], the time each phase took is written to `<name>-metrics.json`
+     * and the [LineTable] to `<name>-lines.tsv`. Progress is printed to [log]. Nothing here is shared between
+     * calls, so several programs may be compiled at once.
+     */
+    fun compile(
+            fileName: String,
+            options: Set<CompilerOptions>,
+            precision: Int,
+            isTest: Boolean,
+            debugLog: Path,
+            log: PrintStream
+    ): File {
+        val bytes: ByteArray = Files.readAllBytes(Path.of(fileName))
+        val name = fileName.substring(0, fileName.lastIndexOf('.'))
+        val final = File("$name.jar")
+        val metrics = CompileMetrics()
+        val cache = if (isTest) null else this.cache
+        val version = compilerVersion
+        val cacheKey = if (cache != null && version != null) cache.key(bytes, options, precision, version, runtimeDigest) else null
+        if (cacheKey != null && metrics.time("cache") { cache?.get(cacheKey, final) } == true) {
+            log.println("Using cached jar")
+            if (CompilerOptions.LINE_TABLE in options) {
+                writeLineTable(parse(bytes, options, log, metrics), name)
+            }
+            writeMetrics(metrics, fileName, name, final, options)
+            return final
+        }
+
+        val report = if (CompilerOptions.DUMP_BYTECODE in options) StringBuilder() else null
+        val file = parse(bytes, options, log, metrics)
+        if (CompilerOptions.LINE_TABLE in options) {
+            writeLineTable(file, name)
+        }
+        val main = compileClass(file, fileName, options, precision, log, report, metrics)
+        if (report != null) {
+            metrics.time("dump") {
+                FileOutputStream(debugLog.toFile()).use { os ->
+                    val writer = PrintWriter(os)
+                    writer.print(report)
+                    val tcv = TraceClassVisitor(writer)
+                    ClassReader(main).accept(tcv, 0)
+                }
+            }
+        }
+        val resources = metrics.time("runtime extraction") { if (isTest) testRuntimeResources else runtimeResources }
+        val index = metrics.time("runtime extraction") { if (isTest) testRuntimeIndex else runtimeIndex }
+        val kept = if (index != null && CompilerOptions.DONT_OPTIMISE_AFTER_COMPILE !in options) {
+            log.println("Shrinking runtime...")
+            metrics.time("shrinking") { RuntimeShrinker.shrink(main, index, resources) }
+        } else {
+            resources
+        }
+        log.println("Writing to jar...")
+        metrics.time("jar writing") {
+            JarOutputStream(FileOutputStream(final)).use { jar ->
+                for ((resource, contents) in kept) {
+                    val entry = JarEntry(resource)
+                    entry.time = System.currentTimeMillis()
+                    jar.putNextEntry(entry)
+                    jar.write(contents)
+                }
+                val manifest = Manifest()
+                manifest.mainAttributes[Attributes.Name.MANIFEST_VERSION] = "1.0"
+                manifest.mainAttributes[Attributes.Name.MAIN_CLASS] = "jyxal.Main"
+                jar.putNextEntry(JarEntry("META-INF/MANIFEST.MF"))
+                manifest.write(jar)
+                val entry = JarEntry("jyxal/Main.class")
+                entry.time = System.currentTimeMillis()
+                jar.putNextEntry(entry)
+                jar.write(main)
+            }
+        }
+        if (cacheKey != null) {
+            metrics.time("cache") { cache?.put(cacheKey, final) }
+        }
+        writeMetrics(metrics, fileName, name, final, options)
+        log.println("Done!")
+        return final
+    }
+
+    private fun writeLineTable(file: FileContext, name: String) {
+        val out = StringBuilder()
+        LineTable.of(file).write(out)
+        Files.writeString(Path.of("$name-lines.tsv"), out)
+    }
+
+    private fun writeMetrics(metrics: CompileMetrics, fileName: String, name: String, jar: File, options: Set<CompilerOptions>) {
+        if (CompilerOptions.PRINT_METRICS in options) {
+            metrics.jarSize = jar.length()
+            Files.writeString(Path.of("$name-metrics.json"), metrics.toJson(fileName))
+        }
+    }
+
+    /**
+     * Compiles [source] with [options] and [precision] and runs it straight away with [args] as its inputs,
+     * without writing anything. The program is loaded in a class loader of its own on top of the runtime the
+     * compiler already has loaded. With the `i` flag, the program is [interpreted][Interpreter] instead,
+     * compiling only what gets hot.
+     */
+    fun run(source: ByteArray, fileName: String, options: Set<CompilerOptions>, precision: Int, args: Array<String>) {
+        val metrics = CompileMetrics()
+        val log = PrintStream(OutputStream.nullOutputStream())
+        if (CompilerOptions.INTERPRET in options) {
+            val interpreter = Interpreter(parse(source, options, log, metrics), options, precision = precision)
+            if (CompilerOptions.PRINT_METRICS in options) {
+                System.err.print(metrics.toJson(fileName))
+            }
+            interpreter.run(args)
+            return
+        }
+        val main = compileClass(parse(source, options, log, metrics), fileName, options, precision, log, null, metrics)
+        if (CompilerOptions.PRINT_METRICS in options) {
+            // there is no jar to write them next to
+            System.err.print(metrics.toJson(fileName))
+        }
+        val program = ProgramClassLoader(main).loadClass("jyxal.Main")
+        try {
+            program.getMethod("main", Array<String>::class.java).invoke(null, args)
+        } catch (e: InvocationTargetException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun compileClass(
+            file: FileContext,
+            fileName: String,
+            options: Set<CompilerOptions>,
+            precision: Int,
+            log: PrintStream,
+            report: Appendable?,
+            metrics: CompileMetrics
+    ): ByteArray {
+        log.println("Compiling program...")
+        return metrics.time("codegen") { Compiler.compile(file, fileName, options, precision, report, metrics) }
+    }
+
+    private fun parse(source: ByteArray, options: Set<CompilerOptions>, log: PrintStream, metrics: CompileMetrics): FileContext {
+        log.println("Parsing program...")
+        val s: String = if (CompilerOptions.VYXAL_CODEPAGE in options) {
             val sb = StringBuilder()
-            for (b in bytes) {
+            for (b in source) {
                 sb.append(Compression.CODEPAGE[b.toInt()])
             }
             sb.toString()
         } else {
-            String(bytes, StandardCharsets.UTF_8)
-        }
-        val lexer = JyxalLexer(CharStreams.fromString(s))
-        val parser = JyxalParser(CommonTokenStream(lexer))
-        if (CompilerOptions.contains(CompilerOptions.PRINT_DEBUG_TREE)) {
-            println(parser.file().toStringTree(parser))
-            parser.reset()
-        }
-        println("Compiling program...")
-        val main = Compiler.compile(parser, args[0])
-        val cr = ClassReader(main)
-        FileOutputStream("debug.log").use { os ->
-            val tcv = TraceClassVisitor(PrintWriter(os))
-            cr.accept(tcv, 0)
-        }
-        println("Extracting runtime classes...")
-        val resourceList: MutableSet<String> = HashSet()
-        val buildDir: Path = Path.of(System.getProperty("user.dir"), runtimeClasses)
-        Scanner(if (isTest) Files.newInputStream(buildDir.resolve("runtime.list")) else
-            Main::class.java.getResourceAsStream("/runtime.list")!!).use { scanner ->
+            String(source, StandardCharsets.UTF_8)
+        }
+        val tokens = metrics.time("lexing") { Lexer(s).tokenize() }
+        val file = metrics.time("parsing") {
+            // the few programs the parser cannot handle are left to ANTLR, which reports their syntax errors
+            tokens?.let { Parser(it).file() } ?: Parser.parseWithAntlr(s)
+        }
+        if (CompilerOptions.PRINT_DEBUG_TREE in options) {
+            log.println(file.toStringTree(JyxalParser.ruleNames.asList()))
+        }
+        return file
+    }
+
+    /**
+     * Reads the runtime classes that go into every jar. They are read once, so a daemon does not go back to
+     * the disk for every program.
+     */
+    private fun loadRuntimeResources(isTest: Boolean): Map<String, ByteArray> {
+        val resourceList: MutableSet<String> = LinkedHashSet()
+        Scanner(openRuntimeResource("runtime.list", isTest)!!).use { scanner ->
             while (scanner.hasNextLine()) {
                 resourceList.add(scanner.nextLine())
             }
         }
-        println("Writing to jar...")
-        val fileName = args[0].substring(0, args[0].lastIndexOf('.'))
-        val file = File("$fileName-temp.jar")
-        val final = File("$fileName.jar")
-        JarOutputStream(FileOutputStream(file)).use { jar ->
-            for (resource in resourceList) {
-                val entry = JarEntry(resource)
-                entry.time = System.currentTimeMillis()
-                jar.putNextEntry(entry)
-                if (isTest) Files.newInputStream(buildDir.resolve(resource)) else Main::class.java.getResourceAsStream("/$resource").use { inp ->
-                    if (inp == null) throw NullPointerException("Resource not found: $resource")
-                    inp.transferTo(jar)
-                }
+        val resources: MutableMap<String, ByteArray> = LinkedHashMap()
+        for (resource in resourceList) {
+            openRuntimeResource(resource, isTest).use { inp ->
+                if (inp == null) throw NullPointerException("Resource not found: $resource")
+                resources[resource] = inp.readAllBytes()
             }
-            val manifest = Manifest()
-            manifest.mainAttributes[Attributes.Name.MANIFEST_VERSION] = "1.0"
-            manifest.mainAttributes[Attributes.Name.MAIN_CLASS] = "jyxal.Main"
-            jar.putNextEntry(JarEntry("META-INF/MANIFEST.MF"))
-            manifest.write(jar)
-            val entry = JarEntry("jyxal/Main.class")
-            entry.time = System.currentTimeMillis()
-            jar.putNextEntry(entry)
-            jar.write(main)
-        }
-        if (!CompilerOptions.contains(CompilerOptions.DONT_OPTIMISE_AFTER_COMPILE)) {
-            println("Performing post-compilation optimisations...")
-            val config = Configuration()
-            ConfigurationParser(Main::class.java.getResource("/rules.pro")!!, System.getProperties())
-                    .parse(config)
-            config.obfuscate = false
-            config.optimizationPasses = 2
-            config.programJars = ClassPath()
-            config.programJars.add(ClassPathEntry(file, false))
-            config.programJars.add(ClassPathEntry(final, true))
-            config.libraryJars = ClassPath()
-            config.libraryJars.add(ClassPathEntry(File(
-                    "${System.getProperty("java.home")}/jmods/java.base.jmod"
-            ), false))
-            config.libraryJars.add(ClassPathEntry(File(
-                    "${System.getProperty("java.home")}/jmods/jdk.jshell.jmod"
-            ), false))
-            config.warn = mutableListOf("!java.lang.invoke.MethodHandle")
-            config.optimizations = mutableListOf("!class/unboxing/enum")
-            ProGuard(config).execute()
+        }
+        return resources
+    }
+
+    /**
+     * Reads what each runtime class refers to, which the build works out with [RuntimeShrinker]. Without it,
+     * the whole runtime goes into every jar.
+     */
+    private fun loadRuntimeIndex(isTest: Boolean): RuntimeShrinker.Index? {
+        val inp = openRuntimeResource(RuntimeShrinker.INDEX, isTest) ?: return null
+        return inp.bufferedReader().use { RuntimeShrinker.readIndex(it.readLines()) }
+    }
+
+    private fun openRuntimeResource(resource: String, isTest: Boolean): InputStream? {
+        return if (isTest) {
+            val path = Path.of(System.getProperty("user.dir"), runtimeClasses, resource)
+            if (Files.exists(path)) Files.newInputStream(path) else null
         } else {
-            FileInputStream(file).use { fis ->
-                FileOutputStream(final).use { fos ->
-                    fis.copyTo(fos)
-                }
-            }
+            Main::class.java.getResourceAsStream("/$resource")
         }
-        file.delete()
-        println("Done!")
     }
 
     @JvmStatic
     fun main(args: Array<String>) {
         doMain(args, false)
     }
+}
+
+/**
+ * Defines nothing but the compiled class [className], leaving the runtime and anything else to [parent],
+ * which is the compiler's own class loader unless given
+ */
+internal class ProgramClassLoader(
+        private val bytes: ByteArray,
+        private val className: String = "jyxal.Main",
+        parent: ClassLoader = Main::class.java.classLoader
+) : ClassLoader(parent) {
+
+    override fun findClass(name: String): Class<*> {
+        if (name == className) {
+            return defineClass(name, bytes, 0, bytes.size)
+        }
+        throw ClassNotFoundException(name)
+    }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package io.github.seggan.jyxal
+
+import io.github.seggan.jyxal.compiler.LineTable
+import jdk.jfr.consumer.RecordedFrame
+import jdk.jfr.consumer.RecordingFile
+import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.regex.Matcher
+import java.util.regex.Pattern
+
+/**
+ * Rewrites a profile of a compiled program so that the frames of its code say which part of the program
+ * they are in, going by the [LineTable] written with the `l` flag. A JFR recording is turned into collapsed
+ * stacks on the way, so either way the result can go straight into a flame graph.
+ */
+class ProfileRewriter(private val lines: LineTable) {
+
+    fun rewrite(profile: Path, out: PrintStream) {
+        if (isRecording(profile)) {
+            collapse(profile, out)
+        } else {
+            Files.lines(profile).use { stacks ->
+                stacks.forEach { out.println(rewriteCollapsed(it)) }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the frames in a line of collapsed stacks, which look like `jyxal/Main.main:12` when the
+     * profiler was asked for line numbers
+     */
+    fun rewriteCollapsed(stack: String): String {
+        return FRAME.matcher(stack).replaceAll { match ->
+            Matcher.quoteReplacement(describe(match.group(1), match.group(2).toInt()))
+        }
+    }
+
+    private fun collapse(recording: Path, out: PrintStream) {
+        val stacks: MutableMap<String, Int> = LinkedHashMap()
+        RecordingFile(recording).use { file ->
+            while (file.hasMoreEvents()) {
+                val event = file.readEvent()
+                if (event.eventType.name != "jdk.ExecutionSample") continue
+                val trace = event.stackTrace ?: continue
+                // collapsed stacks start at the root
+                val stack = trace.frames.asReversed().joinToString(";", transform = ::describe)
+                stacks.merge(stack, 1, Int::plus)
+            }
+        }
+        for ((stack, count) in stacks) {
+            out.println("$stack $count")
+        }
+    }
+
+    private fun describe(frame: RecordedFrame): String {
+        val type = frame.method.type.name.replace('.', '/')
+        val name = "$type.${frame.method.name}"
+        return if (type == PROGRAM_CLASS) describe(name, frame.lineNumber) else name
+    }
+
+    private fun describe(method: String, line: Int): String {
+        val entry = lines[line] ?: return "$method:$line"
+        return "$method [$entry]"
+    }
+
+    companion object {
+        private const val PROGRAM_CLASS = "jyxal/Main"
+
+        private val FRAME = Pattern.compile("(jyxal[/.]Main[/.][\\w$<>]+):(\\d+)")
+
+        private fun isRecording(file: Path): Boolean {
+            val magic = ByteArray(4)
+            val read = Files.newInputStream(file).use { it.readNBytes(magic, 0, magic.size) }
+            return read == magic.size && String(magic, Charsets.ISO_8859_1) == "FLR\u0000"
+        }
+    }
+}
\ No newline at end of file
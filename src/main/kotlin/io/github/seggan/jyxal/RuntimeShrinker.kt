@@ -0,0 +1,296 @@
+package io.github.seggan.jyxal
+
+import org.objectweb.asm.AnnotationVisitor
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Handle
+import org.objectweb.asm.MethodVisitor
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.commons.ClassRemapper
+import org.objectweb.asm.commons.MethodRemapper
+import org.objectweb.asm.commons.Remapper
+import org.objectweb.asm.tree.ClassNode
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.ArrayDeque
+
+/**
+ * Works out which parts of the runtime a program needs, starting from what the compiled program refers to and
+ * following the references of everything that is kept in turn. A class is kept along with its fields and
+ * instance methods, as those may be called from anywhere through virtual dispatch, but a static method is
+ * only kept if something calls it. That is what keeps the huge facade classes of the Kotlin standard library
+ * down to the few functions the runtime uses.
+ *
+ * What the runtime refers to does not depend on the program, so it is worked out when Jyxal is built and
+ * stored in `runtime.deps`, leaving only the compiled program to be read when compiling.
+ */
+object RuntimeShrinker {
+
+    const val INDEX = "runtime.deps"
+
+    /**
+     * How many bytes of stripped classes each runtime keeps around for the next program
+     */
+    private const val MAX_STRIPPED_BYTES = 16L * 1024 * 1024
+
+    /**
+     * What a runtime class refers to. The references are either resources or static methods, written as
+     * `<resource>#<name><descriptor>`. The static methods that may be left out are listed separately.
+     */
+    class ClassInfo(val superName: String?, val uses: List<String>, val staticMethods: Map<String, List<String>>)
+
+    class Index(val classes: Map<String, ClassInfo>, val resources: List<String>) {
+
+        /**
+         * The classes of this runtime already stripped down to a set of static methods, as most programs need
+         * the same ones
+         */
+        internal val stripped = StrippedClasses()
+    }
+
+    /**
+     * Stripped class files by the class and the methods left out, keeping the ones used most recently up to
+     * [maxBytes] in all
+     */
+    internal class StrippedClasses(private val maxBytes: Long = MAX_STRIPPED_BYTES) {
+        private val classes = LinkedHashMap<String, ByteArray>(16, 0.75f, true)
+        private var size = 0L
+
+        fun getOrStrip(key: String, strip: () -> ByteArray): ByteArray {
+            synchronized(this) { classes[key] }?.let { return it }
+            // stripped outside the lock, as another thread stripping the same class only wastes a little time
+            val classFile = strip()
+            synchronized(this) {
+                classes.put(key, classFile)?.let { size -= it.size }
+                size += classFile.size
+                val eldest = classes.values.iterator()
+                while (size > maxBytes && eldest.hasNext()) {
+                    size -= eldest.next().size
+                    eldest.remove()
+                }
+            }
+            return classFile
+        }
+
+        val keys: Set<String>
+            @Synchronized get() = HashSet(classes.keys)
+    }
+
+    /**
+     * Finds what [classFile] refers to out of [resources], separating out what each static method refers to
+     * if [splitStatics] is true
+     */
+    private fun analyse(classFile: ByteArray, resources: Set<String>, splitStatics: Boolean): ClassInfo {
+        val classUses = LinkedHashSet<String>()
+        val staticMethods = LinkedHashMap<String, MutableSet<String>>()
+        var uses: MutableSet<String> = classUses
+        val remapper = object : Remapper() {
+            override fun map(internalName: String): String {
+                val resource = "$internalName.class"
+                if (resource in resources) {
+                    uses.add(resource)
+                }
+                return internalName
+            }
+
+            // generic signatures are only read by reflection
+            override fun mapSignature(signature: String?, typeSignature: Boolean): String? = signature
+        }
+
+        fun call(owner: String, name: String, descriptor: String) {
+            val resource = "$owner.class"
+            if (resource in resources) {
+                uses.add("$resource#$name$descriptor")
+            }
+        }
+
+        fun call(value: Any?) {
+            if (value is Handle && value.tag == Opcodes.H_INVOKESTATIC) {
+                call(value.owner, value.name, value.desc)
+            }
+        }
+
+        var superclass: String? = null
+        var keepStatics = !splitStatics
+        // the remapper sees every class named anywhere in the class file, including in descriptors and handles,
+        // as long as there is something to pass the members on to
+        val visitor = object : ClassRemapper(ClassNode(), remapper) {
+            override fun visit(version: Int, access: Int, name: String, signature: String?, superName: String?, interfaces: Array<out String>?) {
+                superclass = superName?.let { "$it.class" }
+                // enum constants are looked up through the static methods by reflection
+                if (access and Opcodes.ACC_ENUM != 0) keepStatics = true
+                super.visit(version, access, name, signature, superName, interfaces)
+            }
+
+            // the classes nested in this one, and the one it is nested in, are not loaded along with it
+            override fun visitInnerClass(name: String, outerName: String?, innerName: String?, access: Int) {}
+
+            override fun visitOuterClass(owner: String, name: String?, descriptor: String?) {}
+
+            override fun visitAnnotation(descriptor: String, visible: Boolean): AnnotationVisitor? = null
+
+            override fun visitMethod(access: Int, name: String, descriptor: String, signature: String?, exceptions: Array<out String>?): MethodVisitor? {
+                // the methods are visited one after the other, so whatever is found next belongs to this one
+                uses = if (!keepStatics && access and Opcodes.ACC_STATIC != 0 && name != "<clinit>") {
+                    staticMethods.getOrPut(name + descriptor) { LinkedHashSet() }
+                } else {
+                    classUses
+                }
+                return super.visitMethod(access, name, descriptor, signature, exceptions)
+            }
+
+            override fun createMethodRemapper(methodVisitor: MethodVisitor): MethodVisitor {
+                return object : MethodRemapper(api, methodVisitor, remapper) {
+                    override fun visitMethodInsn(opcodeAndSource: Int, owner: String, name: String, descriptor: String, isInterface: Boolean) {
+                        if (opcodeAndSource and 0xFF == Opcodes.INVOKESTATIC) call(owner, name, descriptor)
+                        super.visitMethodInsn(opcodeAndSource, owner, name, descriptor, isInterface)
+                    }
+
+                    override fun visitLdcInsn(value: Any?) {
+                        call(value)
+                        super.visitLdcInsn(value)
+                    }
+
+                    override fun visitInvokeDynamicInsn(name: String, descriptor: String, bootstrapMethodHandle: Handle, vararg bootstrapMethodArguments: Any?) {
+                        call(bootstrapMethodHandle)
+                        bootstrapMethodArguments.forEach { call(it) }
+                        super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, *bootstrapMethodArguments)
+                    }
+                }
+            }
+
+            override fun visitEnd() {
+                uses = classUses
+                super.visitEnd()
+            }
+        }
+        ClassReader(classFile).accept(visitor, 0)
+        return ClassInfo(superclass, classUses.toList(), staticMethods.mapValues { it.value.toList() })
+    }
+
+    /**
+     * The resources needed to run [main], each along with the class file to write for it, which leaves out
+     * the static methods nothing calls. Everything that is not a class is always kept, as there is no telling
+     * who reads it.
+     */
+    fun shrink(main: ByteArray, index: Index, resources: Map<String, ByteArray>): Map<String, ByteArray> {
+        val keptClasses = HashSet<String>()
+        val keptMethods = HashMap<String, MutableSet<String>>()
+        val worklist = ArrayDeque(analyse(main, index.classes.keys, false).uses)
+        while (worklist.isNotEmpty()) {
+            val use = worklist.poll()
+            val hash = use.indexOf('#')
+            if (hash == -1) {
+                val info = index.classes[use] ?: continue
+                if (keptClasses.add(use)) {
+                    worklist.addAll(info.uses)
+                }
+                continue
+            }
+            var owner: String? = use.substring(0, hash)
+            val method = use.substring(hash + 1)
+            worklist.add(owner)
+            // a static method may be called through a subclass of the class declaring it
+            while (owner != null) {
+                val info = index.classes[owner] ?: break
+                val uses = info.staticMethods[method]
+                if (uses != null) {
+                    if (keptMethods.getOrPut(owner) { HashSet() }.add(method)) {
+                        worklist.add(owner)
+                        worklist.addAll(uses)
+                    }
+                    break
+                }
+                owner = info.superName
+            }
+        }
+
+        val kept = LinkedHashMap<String, ByteArray>()
+        for (resource in index.resources) {
+            val info = index.classes[resource]
+            if (info == null) {
+                kept[resource] = resources.getValue(resource)
+            } else if (resource in keptClasses) {
+                val unused = info.staticMethods.keys - (keptMethods[resource] ?: emptySet<String>())
+                kept[resource] = if (unused.isEmpty()) {
+                    resources.getValue(resource)
+                } else {
+                    index.stripped.getOrStrip(resource + " " + unused.sorted().joinToString(" ")) {
+                        strip(resources.getValue(resource), unused)
+                    }
+                }
+            }
+        }
+        return kept
+    }
+
+    /**
+     * Removes [methods] from [classFile], along with the Kotlin metadata that describes them, which is only
+     * read by Kotlin reflection
+     */
+    private fun strip(classFile: ByteArray, methods: Set<String>): ByteArray {
+        val writer = ClassWriter(0)
+        ClassReader(classFile).accept(object : ClassVisitor(Opcodes.ASM9, writer) {
+            override fun visitAnnotation(descriptor: String, visible: Boolean): AnnotationVisitor? {
+                return if (descriptor == "Lkotlin/Metadata;") null else super.visitAnnotation(descriptor, visible)
+            }
+
+            override fun visitMethod(access: Int, name: String, descriptor: String, signature: String?, exceptions: Array<out String>?): MethodVisitor? {
+                return if (name + descriptor in methods) null else super.visitMethod(access, name, descriptor, signature, exceptions)
+            }
+        }, 0)
+        return writer.toByteArray()
+    }
+
+    /**
+     * Reads the index [main] writes. Each class is a line starting with `C`, followed by its superclass and
+     * what it refers to, then a line starting with `M` for each of its static methods that may be left out.
+     * Every other resource is a line starting with `R`.
+     */
+    fun readIndex(lines: List<String>): Index {
+        val classes = LinkedHashMap<String, ClassInfo>()
+        val resources = ArrayList<String>()
+        var i = 0
+        while (i < lines.size) {
+            val parts = lines[i++].split(' ')
+            when (parts[0]) {
+                "R" -> resources.add(parts[1])
+                "C" -> {
+                    val staticMethods = LinkedHashMap<String, List<String>>()
+                    while (i < lines.size && lines[i].startsWith("M ")) {
+                        val method = lines[i++].split(' ')
+                        staticMethods[method[1]] = method.subList(2, method.size)
+                    }
+                    resources.add(parts[1])
+                    classes[parts[1]] = ClassInfo(parts[2].takeIf { it != "-" }, parts.subList(3, parts.size), staticMethods)
+                }
+            }
+        }
+        return Index(classes, resources)
+    }
+
+    /**
+     * Writes the index of the runtime classes in the directory given as the only argument, which holds them
+     * along with the `runtime.list` of them
+     */
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val dir = Path.of(args[0])
+        val resources = Files.readAllLines(dir.resolve("runtime.list")).filter { it.isNotEmpty() }.toSortedSet()
+        val lines = ArrayList<String>()
+        for (resource in resources) {
+            if (resource.endsWith(".class")) {
+                val info = analyse(Files.readAllBytes(dir.resolve(resource)), resources, true)
+                lines.add((listOf("C", resource, info.superName ?: "-") + (info.uses - resource)).joinToString(" "))
+                for ((method, uses) in info.staticMethods) {
+                    lines.add((listOf("M", method) + uses).joinToString(" "))
+                }
+            } else {
+                lines.add("R $resource")
+            }
+        }
+        Files.write(dir.resolve(INDEX), lines, StandardCharsets.UTF_8)
+    }
+}
\ No newline at end of file
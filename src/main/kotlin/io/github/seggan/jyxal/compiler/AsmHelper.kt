@@ -1,6 +1,8 @@
 package io.github.seggan.jyxal.compiler
 
 import io.github.seggan.jyxal.compiler.wrappers.JyxalMethod
+import io.github.seggan.jyxal.runtime.list.JyxalList
+import io.github.seggan.jyxal.runtime.math.BigComplex
 import org.objectweb.asm.MethodVisitor
 import org.objectweb.asm.Opcodes
 
@@ -29,6 +31,48 @@ object AsmHelper : Opcodes {
         )
     }
 
+    /**
+     * Loads a value computed at compile time: a string, a number, or a finite list of those
+     */
+    fun addConstant(value: Any, mv: JyxalMethod) {
+        when (value) {
+            is String -> mv.visitLdcInsn(value)
+            is BigComplex -> {
+                if (value.im.signum() == 0) {
+                    addBigComplex(value.re.toString(), mv)
+                } else {
+                    addBigDecimal(value.re.toString(), mv)
+                    addBigDecimal(value.im.toString(), mv)
+                    mv.visitMethodInsn(
+                        Opcodes.INVOKESTATIC,
+                        "runtime/math/BigComplex",
+                        "valueOf",
+                        "(Ljava/math/BigDecimal;Ljava/math/BigDecimal;)Lruntime/math/BigComplex;",
+                        false
+                    )
+                }
+            }
+            is JyxalList -> {
+                selectNumberInsn(mv, value.size)
+                mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object")
+                for ((i, item) in value.withIndex()) {
+                    mv.visitInsn(Opcodes.DUP)
+                    selectNumberInsn(mv, i)
+                    addConstant(item, mv)
+                    mv.visitInsn(Opcodes.AASTORE)
+                }
+                mv.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    "runtime/list/JyxalList",
+                    "create",
+                    "([Ljava/lang/Object;)Lruntime/list/JyxalList;",
+                    false
+                )
+            }
+            else -> throw JyxalCompileException("Cannot compile constant of type ${value.javaClass.name}")
+        }
+    }
+
     fun push(mv: JyxalMethod) {
         mv.visitMethodInsn(
             Opcodes.INVOKEVIRTUAL,
@@ -0,0 +1,86 @@
+package io.github.seggan.jyxal.compiler
+
+import java.lang.management.ManagementFactory
+import java.util.Locale
+
+/**
+ * How long each phase of compiling a program took and how much it allocated, along with the size of what it
+ * produced. A phase that runs inside another is only counted towards the inner one. The allocations are
+ * those of the current thread, so everything has to be measured on the thread compiling the program.
+ */
+class CompileMetrics {
+
+    private class Phase {
+        var nanos = 0L
+        var bytes = 0L
+    }
+
+    private class Running(val phase: Phase, val startNanos: Long, val startBytes: Long) {
+        var innerNanos = 0L
+        var innerBytes = 0L
+    }
+
+    private val phases: MutableMap<String, Phase> = LinkedHashMap()
+    private val running: ArrayDeque<Running> = ArrayDeque()
+
+    /**
+     * The number of instructions in the compiled methods before they were optimised
+     */
+    var instructionsBefore = 0L
+
+    /**
+     * The number of instructions in the compiled methods after they were optimised
+     */
+    var instructionsAfter = 0L
+
+    var jarSize = -1L
+
+    fun <T> time(phase: String, block: () -> T): T {
+        val current = Running(phases.getOrPut(phase) { Phase() }, System.nanoTime(), allocatedBytes())
+        running.addLast(current)
+        try {
+            return block()
+        } finally {
+            running.removeLast()
+            val nanos = System.nanoTime() - current.startNanos
+            val bytes = allocatedBytes() - current.startBytes
+            current.phase.nanos += nanos - current.innerNanos
+            current.phase.bytes += bytes - current.innerBytes
+            running.lastOrNull()?.let {
+                it.innerNanos += nanos
+                it.innerBytes += bytes
+            }
+        }
+    }
+
+    fun toJson(fileName: String): String {
+        val sb = StringBuilder()
+        sb.append("{\n  \"file\": \"").append(fileName.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n")
+        sb.append("  \"phases\": {")
+        var first = true
+        for ((name, phase) in phases) {
+            if (!first) sb.append(',')
+            first = false
+            sb.append("\n    \"").append(name).append("\": {\"millis\": ")
+            sb.append(String.format(Locale.ROOT, "%.3f", phase.nanos / 1e6))
+            sb.append(", \"allocatedBytes\": ").append(if (ALLOCATIONS == null) -1 else phase.bytes).append('}')
+        }
+        sb.append("\n  },\n")
+        sb.append("  \"instructions\": {\"beforeOptimisation\": ").append(instructionsBefore)
+        sb.append(", \"afterOptimisation\": ").append(instructionsAfter).append("},\n")
+        sb.append("  \"jarSize\": ").append(jarSize).append("\n}\n")
+        return sb.toString()
+    }
+
+    companion object {
+        /**
+         * Only HotSpot's thread bean can tell how much a thread allocated
+         */
+        private val ALLOCATIONS = (ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean)
+                ?.takeIf { it.isThreadAllocatedMemorySupported && it.isThreadAllocatedMemoryEnabled }
+
+        private fun allocatedBytes(): Long {
+            return ALLOCATIONS?.getThreadAllocatedBytes(Thread.currentThread().id) ?: 0
+        }
+    }
+}
\ No newline at end of file
@@ -1,76 +1,254 @@
 package io.github.seggan.jyxal.compiler
 
 import io.github.seggan.jyxal.CompilerOptions
-import io.github.seggan.jyxal.antlr.JyxalParser
 import io.github.seggan.jyxal.antlr.JyxalParser.*
 import io.github.seggan.jyxal.antlr.JyxalParserBaseVisitor
+import io.github.seggan.jyxal.compiler.wrappers.ContextualVariable
 import io.github.seggan.jyxal.compiler.wrappers.JyxalClassWriter
 import io.github.seggan.jyxal.compiler.wrappers.JyxalMethod
-import io.github.seggan.jyxal.runtime.text.Compression.decompress
-import io.github.seggan.jyxal.runtime.unescapeString
+import io.github.seggan.jyxal.compiler.wrappers.Region
+import io.github.seggan.jyxal.runtime.DEFAULT_PRECISION
+import io.github.seggan.jyxal.runtime.list.JyxalList
+import io.github.seggan.jyxal.runtime.math.BigComplex
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.tree.ParseTree
+import org.antlr.v4.runtime.tree.Trees
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.Handle
 import org.objectweb.asm.Label
-import org.objectweb.asm.MethodVisitor
 import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
 import org.objectweb.asm.util.CheckClassAdapter
 import java.io.FileOutputStream
 import java.io.PrintWriter
 import java.util.ArrayDeque
 import java.util.Deque
 import java.util.function.Consumer
-import java.util.regex.Pattern
 
-class Compiler private constructor(private val classWriter: JyxalClassWriter, private val clinit: MethodVisitor) : JyxalParserBaseVisitor<Unit>(), Opcodes {
+class Compiler private constructor(
+        private val classWriter: JyxalClassWriter,
+        private val clinit: JyxalMethod,
+        private val precision: Int
+) : JyxalParserBaseVisitor<Unit>(), Opcodes {
 
     private val variables: MutableSet<String> = HashSet()
     private val contextVariables: MutableSet<String> = HashSet()
 
+    /**
+     * The locals of the main method holding the variables that are not captured, see [EscapeAnalyser]
+     */
+    private val localVariables: MutableMap<String, ContextualVariable> = LinkedHashMap()
+
+    /**
+     * Those and the register, if it is in a local too
+     */
+    private val mainLocals: MutableList<ContextualVariable> = ArrayList()
+
     private val callStack: Deque<JyxalMethod> = ArrayDeque()
     private val loopStack: Deque<Loop> = ArrayDeque()
 
     private val aliases: MutableMap<String, ProgramContext> = HashMap()
+    private val stackAnalyser = StackAnalyser(aliases)
+    private val typeAnalyser = TypeAnalyser(aliases)
+    private val constantFolder = ConstantFolder(aliases, precision, CompilerOptions.FAST_MATH in classWriter.options)
+    private val outliner = Outliner(aliases, stackAnalyser)
+
+    /**
+     * Whether the context variable of the code being compiled is known to hold a small integer
+     */
+    private val integerContext: Deque<Boolean> = ArrayDeque()
+
+    /**
+     * The number of values an enclosing construct has left on the JVM stack. An exception handler would
+     * throw those away, so no integer runs are compiled while this is not zero.
+     */
+    private var pendingOperands = 0
+
+    /**
+     * The static fields holding the constants built in the static initialiser, see [pushConstant]
+     */
+    private val constantFields: MutableMap<String, String> = HashMap()
 
     private var listCounter = 0
     private var lambdaCounter = 0
+    private var blockCounter = 0
 
-    override fun visitInteger(ctx: IntegerContext) {
-        val mv = callStack.peek()
-        mv.loadStack()
-        AsmHelper.addBigComplex(ctx.text, mv)
-        AsmHelper.push(mv)
+    /**
+     * Whether each element is [counted][compileElement], in which case the long arithmetic of integer runs
+     * is left out so that the elements in them are counted too
+     */
+    private val countElements = CompilerOptions.COUNT_ELEMENTS in classWriter.options
+            || CompilerOptions.TIME_ELEMENTS in classWriter.options
+
+    init {
+        if (countElements) {
+            clinit.visitLdcInsn(Element.values().joinToString("\n") { it.text })
+            clinit.visitInsn(if (CompilerOptions.TIME_ELEMENTS in classWriter.options) Opcodes.ICONST_1 else Opcodes.ICONST_0)
+            clinit.visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/ElementCounters", "registerElements", "(Ljava/lang/String;Z)V", false)
+        }
     }
 
-    override fun visitComplex_number(ctx: Complex_numberContext) {
+    override fun visitProgram(ctx: ProgramContext) {
+        visitNodes(ctx.program_node(), true)
+    }
+
+    /**
+     * Compiles [nodes], moving the runs of them the [Outliner] picked to methods of their own if [outline]
+     */
+    private fun visitNodes(nodes: List<Program_nodeContext>, outline: Boolean) {
+        var i = 0
+        var nextBlock = if (outline) nextBlock(nodes, 0) else nodes.size
+        while (i < nodes.size) {
+            val mv = callStack.peek()
+            // a run or a fold is put down to the node it starts at
+            mv.markLine(LineTable.lineOf(nodes[i].start))
+            if (i == nextBlock) {
+                val block = nodes.subList(i, i + outliner.runAt(nodes[i])!!)
+                compileBlock(nodes[i]) { visitNodes(block, false) }
+                i += block.size
+                nextBlock = nextBlock(nodes, i)
+                continue
+            }
+            // runs and folds stop where a block starts
+            val before = nodes.subList(0, nextBlock)
+            val fused = if (mv.optimise && !countElements) fusedLambda(before, i) else null
+            if (fused != null) {
+                visitFused(fused, before.subList(i, fused.end))
+                i = fused.end
+                continue
+            }
+            val run = if (pendingOperands == 0 && !countElements) {
+                typeAnalyser.integerRun(before, i, integerContext.peek(), contextVariables)
+            } else {
+                null
+            }
+            // a run that reads the context variable is better left to the long arithmetic
+            val folded = if (mv.optimise && (run == null || !run.expression.usesContext)) {
+                constantFolder.fold(before, i)
+            } else {
+                null
+            }
+            if (folded != null) {
+                for (value in folded.values) {
+                    pushConstant(value)
+                }
+                i = folded.end
+            } else if (run != null) {
+                visitIntegerRun(run, nodes.subList(i, run.end))
+                i = run.end
+            } else {
+                visit(nodes[i])
+                i++
+            }
+        }
+    }
+
+    private fun nextBlock(nodes: List<Program_nodeContext>, from: Int): Int {
+        for (i in from until nodes.size) {
+            if (outliner.runAt(nodes[i]) != null) {
+                return i
+            }
+        }
+        return nodes.size
+    }
+
+    /**
+     * Computes the run with long arithmetic, falling back to the generic elements if anything overflows
+     */
+    private fun visitIntegerRun(run: IntegerRun, nodes: List<Program_nodeContext>) {
         val mv = callStack.peek()
-        val parts = COMPLEX_SEPARATOR.split(ctx.text)
-        mv.loadStack()
-        AsmHelper.addBigDecimal(parts[0], mv)
-        AsmHelper.addBigDecimal(parts[1], mv)
+        val start = Label()
+        val end = Label()
+        val handler = Label()
+        val done = Label()
+        mv.visitTryCatchBlock(start, end, handler, "java/lang/ArithmeticException")
+        mv.visitLabel(start)
+        run.expression.compile(mv)
         mv.visitMethodInsn(
                 Opcodes.INVOKESTATIC,
                 "runtime/math/BigComplex",
                 "valueOf",
-                "(Ljava/math/BigDecimal;Ljava/math/BigDecimal;)Lruntime/math/BigComplex;",
+                "(J)Lruntime/math/BigComplex;",
                 false
         )
+        mv.visitLabel(end)
+        mv.loadStack()
+        mv.visitInsn(Opcodes.SWAP)
         AsmHelper.push(mv)
+        mv.visitJumpInsn(Opcodes.GOTO, done)
+        mv.visitLabel(handler)
+        mv.visitInsn(Opcodes.POP)
+        for (node in nodes) {
+            visit(node)
+        }
+        mv.visitLabel(done)
     }
 
-    override fun visitString(ctx: StringContext) {
+    /**
+     * Pushes a value known at compile time. Numbers and lists are built once in the static initialiser and
+     * shared from then on, which is safe as they are immutable. Strings are constants to the JVM already.
+     */
+    private fun pushConstant(value: Any) {
         val mv = callStack.peek()
         mv.loadStack()
-        var str = ctx.text.substring(1)
-        if (str.endsWith("«") || str.endsWith("\"")) {
-            str = str.substring(0, str.length - 1)
+        if (value is String) {
+            mv.visitLdcInsn(value)
+        } else {
+            val field = constantFields.getOrPut(constantKey(value)) {
+                val name = "const$" + constantFields.size
+                classWriter.visitField(
+                        Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC or Opcodes.ACC_FINAL,
+                        name,
+                        "Ljava/lang/Object;",
+                        null,
+                        null
+                ).visitEnd()
+                AsmHelper.addConstant(value, clinit)
+                clinit.visitFieldInsn(Opcodes.PUTSTATIC, "jyxal/Main", name, "Ljava/lang/Object;")
+                name
+            }
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "jyxal/Main", field, "Ljava/lang/Object;")
         }
-        mv.visitLdcInsn(decompress(unescapeString(str)))
+        AsmHelper.push(mv)
+    }
+
+    /**
+     * A key that tells constants apart exactly, including the scale of numbers
+     */
+    private fun constantKey(value: Any): String {
+        return when (value) {
+            is BigComplex -> "n${value.re}i${value.im}"
+            is String -> "s${value.length}:$value"
+            is JyxalList -> value.joinToString(",", "[", "]") { constantKey(it) }
+            else -> throw JyxalCompileException("Cannot compile constant of type ${value.javaClass.name}")
+        }
+    }
+
+    override fun visitNumber(ctx: NumberContext) {
+        pushConstant(ConstantFolder.numberValue(ctx))
+    }
+
+    override fun visitComplex_number(ctx: Complex_numberContext) {
+        pushConstant(ConstantFolder.complexValue(ctx))
+    }
+
+    override fun visitString(ctx: StringContext) {
+        val mv = callStack.peek()
+        mv.loadStack()
+        mv.visitLdcInsn(ConstantFolder.stringValue(ctx))
         AsmHelper.push(mv)
     }
 
     override fun visitList(ctx: ListContext) {
         val method = callStack.peek()
+        if (method.optimise) {
+            val value = constantFolder.listValue(ctx)
+            if (value != null) {
+                pushConstant(value)
+                return
+            }
+        }
         method.loadStack()
         AsmHelper.selectNumberInsn(method, ctx.program().size)
         method.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object")
@@ -79,13 +257,13 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
             val item = program[i]
             method.visitInsn(Opcodes.DUP)
             AsmHelper.selectNumberInsn(method, i)
-            if (item.childCount == 1 && item.getChild(0) is LiteralContext) {
-                // we can inline the literal
-                visit(item.getChild(0))
-                // we need to pop the literal value, it's going to get optimized away anyway
+            if (stackAnalyser.effectOf(item) == StackEffect.PUSH) {
+                // the item only produces a value, so we can inline it
+                pendingOperands += 3
+                visit(item)
+                pendingOperands -= 3
+                // we need to pop the value, it's going to get optimized away anyway
                 AsmHelper.pop(method)
-                method.visitInsn(Opcodes.SWAP)
-                method.visitInsn(Opcodes.POP)
             } else {
                 val methodName = "listInit$" + listCounter++
                 val mv = classWriter.visitMethod(
@@ -95,7 +273,9 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
                 )
                 mv.visitCode()
                 callStack.push(mv)
+                integerContext.push(false)
                 visit(item)
+                integerContext.pop()
                 callStack.pop()
                 AsmHelper.pop(mv)
                 mv.visitInsn(Opcodes.ARETURN)
@@ -122,10 +302,7 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
     }
 
     override fun visitConstant(ctx: ConstantContext) {
-        val mv = callStack.peek()
-        mv.loadStack()
-        Constants.compile(ctx.text, classWriter, mv)
-        AsmHelper.push(mv)
+        pushConstant(Constants.valueOf(ctx.text) ?: throw JyxalCompileException("Unknown constant: ${ctx.text}"))
     }
 
     override fun visitVariable_assn(ctx: Variable_assnContext) {
@@ -139,12 +316,25 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
             } else {
                 // get
                 mv.loadStack()
-                mv.visitVarInsn(Opcodes.ALOAD, mv.ctxVar)
+                mv.loadContextVar()
+                AsmHelper.push(mv)
+            }
+        } else if (name in localVariables) {
+            val mv = callStack.peek()
+            val variable = localVariables.getValue(name)
+            if (ctx.ASSN_SIGN().text == "→") {
+                // set
+                AsmHelper.pop(mv)
+                variable.store()
+            } else {
+                // get
+                mv.loadStack()
+                variable.load()
                 AsmHelper.push(mv)
             }
         } else {
-            if (!variables.contains(name)) {
-                variables.add(name)
+            // a program compiled a part at a time has its variables declared once for all the parts
+            if (variables.add(name) && classWriter.variableOwner == MAIN_CLASS) {
                 classWriter.visitField(
                         Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC,
                         name,
@@ -171,17 +361,16 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
                 AsmHelper.pop(mv)
                 mv.visitFieldInsn(
                         Opcodes.PUTSTATIC,
-                        "jyxal/Main",
+                        mv.variableOwner,
                         name,
                         "Ljava/lang/Object;"
                 )
             } else {
                 // get
                 mv.loadStack()
-                mv.loadStack()
                 mv.visitFieldInsn(
                         Opcodes.GETSTATIC,
-                        "jyxal/Main",
+                        mv.variableOwner,
                         name,
                         "Ljava/lang/Object;"
                 )
@@ -190,6 +379,17 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
         }
     }
 
+    /**
+     * Reserves a local of [main] for [name], starting off as zero like the fields it stands in for
+     */
+    private fun initialiseLocal(main: JyxalMethod, name: String): ContextualVariable {
+        main.visitFieldInsn(Opcodes.GETSTATIC, "runtime/math/BigComplex", "ZERO", "Lruntime/math/BigComplex;")
+        val variable = main.reserveVar(name)
+        variable.store()
+        mainLocals.add(variable)
+        return variable
+    }
+
     override fun visitAlias(ctx: AliasContext) {
         aliases[ctx.theAlias.text] = ctx.program()
     }
@@ -213,63 +413,170 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
             val loop = loopStack.peek()
             mv.visitJumpInsn(Opcodes.GOTO, loop.end)
         } else {
-            Constants.compile(element, classWriter, mv)
+            val constant = Constants.valueOf(element)
+            if (constant != null) {
+                pushConstant(constant)
+            } else {
+                compileElement(Element.getByText(element), mv)
+            }
         }
         consumer?.accept(mv)
     }
 
+    /**
+     * Compiles [element], counting it first if asked to. Timing it as well means it has to be told when the
+     * element is done.
+     */
+    private fun compileElement(element: Element, mv: JyxalMethod) {
+        if (!countElements) {
+            element.compile(classWriter, mv)
+            return
+        }
+        val timed = CompilerOptions.TIME_ELEMENTS in mv.options
+        AsmHelper.selectNumberInsn(mv, element.ordinal)
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/ElementCounters", if (timed) "enterElement" else "countElement", "(I)V", false)
+        element.compile(classWriter, mv)
+        if (timed) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/ElementCounters", "exitElement", "()V", false)
+        }
+    }
+
+    override fun visitStatement(ctx: StatementContext) {
+        val construct = ctx.getChild(0)
+        if (outliner.isBlock(construct)) {
+            compileBlock(ctx) { visit(construct) }
+        } else {
+            visit(construct)
+        }
+    }
+
+    /**
+     * Compiles the code [body] generates for [start] and what follows it to a method of its own that takes the
+     * program stack and the context variable and returns the context variable, see [Outliner]
+     */
+    private inline fun compileBlock(start: ParserRuleContext, body: () -> Unit) {
+        val blockName = "block$${blockCounter++}"
+        val block = classWriter.visitMethod(Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC, blockName, Region.DESCRIPTOR) as Region
+        block.visitCode()
+        callStack.push(block)
+        // the context variable is passed on as it is
+        integerContext.push(integerContext.peek() == true)
+        block.markLine(LineTable.lineOf(start.start))
+        body()
+        integerContext.pop()
+        callStack.pop()
+        block.returnContextVar()
+        block.visitMaxs(-1, -1)
+        block.visitEnd()
+
+        val mv = callStack.peek()
+        mv.loadStack()
+        mv.loadContextVar()
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, MAIN_CLASS, blockName, Region.DESCRIPTOR, false)
+        if (mv.longContextVar == -1) {
+            mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
+        } else {
+            // a counting loop is never given a new context variable
+            mv.visitInsn(Opcodes.POP)
+        }
+    }
+
     override fun visitWhile_loop(ctx: While_loopContext) {
         val start = Label()
         val end = Label()
         loopStack.push(Loop(start, end))
         val mv = callStack.peek()
-        mv.reserveVar().use { ctxStore ->
-            mv.visitVarInsn(Opcodes.ALOAD, mv.ctxVar)
-            ctxStore.store()
-            mv.visitFieldInsn(
-                    Opcodes.GETSTATIC,
-                    "runtime/math/BigComplex",
-                    "ONE",
-                    "Lruntime/math/BigComplex;"
-            )
-            mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
-            mv.visitLabel(start)
-            if (ctx.cond != null) {
-                // we have a finite loop
-                visit(ctx.cond)
-                AsmHelper.pop(mv)
+        val counts = !typeAnalyser.assignsContext(ctx, contextVariables)
+        integerContext.push(counts)
+        if (counts) {
+            // the context variable only ever counts up, so it can be kept as a long
+            mv.reserveWideVar().use { counter ->
+                mv.visitInsn(Opcodes.LCONST_1)
+                counter.store(Opcodes.LSTORE)
+                withLongContext(mv, counter.index) {
+                    mv.visitLabel(start)
+                    visitWhileCondition(ctx, end)
+                    visit(ctx.body)
+                }
+                incrementCounter(mv, counter)
+                mv.visitJumpInsn(Opcodes.GOTO, start)
+                mv.visitLabel(end)
+            }
+        } else {
+            mv.reserveVar().use { ctxStore ->
+                mv.visitVarInsn(Opcodes.ALOAD, mv.ctxVar)
+                ctxStore.store()
+                mv.visitFieldInsn(
+                        Opcodes.GETSTATIC,
+                        "runtime/math/BigComplex",
+                        "ONE",
+                        "Lruntime/math/BigComplex;"
+                )
+                mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
+                withLongContext(mv, -1) {
+                    mv.visitLabel(start)
+                    visitWhileCondition(ctx, end)
+                    visit(ctx.body)
+                }
+                mv.visitVarInsn(Opcodes.ALOAD, mv.ctxVar)
+                mv.visitTypeInsn(Opcodes.CHECKCAST, "runtime/math/BigComplex")
+                mv.visitFieldInsn(
+                        Opcodes.GETSTATIC,
+                        "runtime/math/BigComplex",
+                        "ONE",
+                        "Lruntime/math/BigComplex;"
+                )
                 mv.visitMethodInsn(
-                        Opcodes.INVOKESTATIC,
-                        "runtime/RuntimeHelpers",
-                        "truthValue",
-                        "(Ljava/lang/Object;)Z",
+                        Opcodes.INVOKEVIRTUAL,
+                        "runtime/math/BigComplex",
+                        "add",
+                        "(Lruntime/math/BigComplex;)Lruntime/math/BigComplex;",
                         false
                 )
-                mv.visitJumpInsn(Opcodes.IFEQ, end)
+                mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
+                mv.visitJumpInsn(Opcodes.GOTO, start)
+                mv.visitLabel(end)
+                ctxStore.load()
+                mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
             }
-            visit(ctx.body)
-            mv.visitVarInsn(Opcodes.ALOAD, mv.ctxVar)
-            mv.visitTypeInsn(Opcodes.CHECKCAST, "runtime/math/BigComplex")
-            mv.visitFieldInsn(
-                    Opcodes.GETSTATIC,
-                    "runtime/math/BigComplex",
-                    "ONE",
-                    "Lruntime/math/BigComplex;"
-            )
+        }
+        integerContext.pop()
+        loopStack.pop()
+    }
+
+    private fun visitWhileCondition(ctx: While_loopContext, end: Label) {
+        if (ctx.cond != null) {
+            // we have a finite loop
+            val mv = callStack.peek()
+            visit(ctx.cond)
+            AsmHelper.pop(mv)
             mv.visitMethodInsn(
-                    Opcodes.INVOKEVIRTUAL,
-                    "runtime/math/BigComplex",
-                    "add",
-                    "(Lruntime/math/BigComplex;)Lruntime/math/BigComplex;",
+                    Opcodes.INVOKESTATIC,
+                    "runtime/RuntimeHelpers",
+                    "truthValue",
+                    "(Ljava/lang/Object;)Z",
                     false
             )
-            mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
-            mv.visitJumpInsn(Opcodes.GOTO, start)
-            mv.visitLabel(end)
-            ctxStore.load()
-            mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
+            mv.visitJumpInsn(Opcodes.IFEQ, end)
         }
-        loopStack.pop()
+    }
+
+    /**
+     * Runs [block] with the context variable kept in the long at [slot], or in the context variable itself if
+     * [slot] is -1, see [JyxalMethod.longContextVar]
+     */
+    private inline fun withLongContext(mv: JyxalMethod, slot: Int, block: () -> Unit) {
+        val outer = mv.longContextVar
+        mv.longContextVar = slot
+        block()
+        mv.longContextVar = outer
+    }
+
+    private fun incrementCounter(mv: JyxalMethod, counter: ContextualVariable) {
+        counter.load(Opcodes.LLOAD)
+        mv.visitInsn(Opcodes.LCONST_1)
+        mv.visitInsn(Opcodes.LADD)
+        counter.store(Opcodes.LSTORE)
     }
 
     override fun visitFor_loop(ctx: For_loopContext) {
@@ -279,7 +586,9 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
         val start = Label()
         val end = Label()
         loopStack.push(Loop(start, end))
+        integerContext.push(false)
         generateFor(start, end, ctx.program())
+        integerContext.pop()
         loopStack.pop()
     }
 
@@ -291,7 +600,7 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
 
         val num = ctx.DIGIT().joinToString("")
 
-        if (ctx.program().getTokens(CONTEXT_VAR).isEmpty()) {
+        if (Trees.findAllTokenNodes(ctx.program(), CONTEXT_VAR).isEmpty()) {
             // not freeing because this var is an int
             val counter = mv.reserveVar()
             AsmHelper.selectNumberInsn(mv, num.toInt())
@@ -304,8 +613,33 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
             mv.visitJumpInsn(Opcodes.GOTO, start)
             mv.visitLabel(end)
         } else {
-            AsmHelper.addBigComplex(num, mv)
-            generateFor(start, end, ctx.program())
+            val count = num.toLongOrNull()
+            val counts = !typeAnalyser.assignsContext(ctx, contextVariables)
+            integerContext.push(counts)
+            if (counts && count != null) {
+                // the context variable counts up from one, kept as a long like in a while loop
+                mv.reserveWideVar().use { counter ->
+                    mv.visitInsn(Opcodes.LCONST_1)
+                    counter.store(Opcodes.LSTORE)
+                    mv.visitLabel(start)
+                    counter.load(Opcodes.LLOAD)
+                    mv.visitLdcInsn(count)
+                    mv.visitInsn(Opcodes.LCMP)
+                    mv.visitJumpInsn(Opcodes.IFGT, end)
+                    withLongContext(mv, counter.index) {
+                        visit(ctx.program())
+                    }
+                    incrementCounter(mv, counter)
+                    mv.visitJumpInsn(Opcodes.GOTO, start)
+                    mv.visitLabel(end)
+                }
+            } else {
+                mv.loadStack()
+                AsmHelper.addBigComplex(num, mv)
+                AsmHelper.push(mv)
+                generateFor(start, end, ctx.program())
+            }
+            integerContext.pop()
         }
         loopStack.pop()
     }
@@ -344,7 +678,9 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
                         true
                 )
                 mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
-                visit(program)
+                withLongContext(mv, -1) {
+                    visit(program)
+                }
                 mv.visitJumpInsn(Opcodes.GOTO, start)
                 mv.visitLabel(end)
                 ctxStore.load()
@@ -396,128 +732,41 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
             return Consumer { m: JyxalMethod -> m.visitLabel(end) }
         } else if ("&" == modifier) {
             mv.loadStack()
-            mv.visitFieldInsn(
-                    Opcodes.GETSTATIC,
-                    "jyxal/Main",
-                    "register",
-                    "Ljava/lang/Object;"
-            )
+            mv.loadRegister()
             AsmHelper.push(mv)
             return Consumer { m: JyxalMethod ->
                 AsmHelper.pop(m)
-                m.visitFieldInsn(
-                        Opcodes.PUTSTATIC,
-                        "jyxal/Main",
-                        "register",
-                        "Ljava/lang/Object;"
-                )
+                m.storeRegister()
             }
         }
         return null
     }
 
     override fun visitLambda(ctx: LambdaContext) {
-        val lambdaName = "lambda$$lambdaCounter"
-        var mv = classWriter.visitMethod(
-                Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC,
-                lambdaName,
-                "(Lruntime/ProgramStack;)Ljava/lang/Object;"
-        )
-        callStack.push(mv)
-        visit(ctx.program())
-        callStack.pop()
-        AsmHelper.pop(mv)
-        mv.visitInsn(Opcodes.ARETURN)
-        mv.visitMaxs(-1, -1)
-        mv.visitEnd()
-        mv = callStack.peek()
-        mv.visitTypeInsn(Opcodes.NEW, "runtime/Lambda")
-        mv.visitInsn(Opcodes.DUP)
-        mv.visitInsn(Opcodes.ICONST_1)
-        mv.visitLdcInsn(
-                Handle(
-                        Opcodes.H_INVOKESTATIC,
-                        "jyxal/Main",
-                        lambdaName,
-                        "(Lruntime/ProgramStack;)Ljava/lang/Object;",
-                        false
-                )
-        )
-        mv.visitMethodInsn(
-                Opcodes.INVOKESPECIAL,
-                "runtime/Lambda",
-                "<init>",
-                "(ILjava/lang/invoke/MethodHandle;)V",
-                false
-        )
-
-        // normal lambda
-        when (ctx.LAMBDA_TYPE().text) {
-            "λ" -> {
-                mv.visitTypeInsn(Opcodes.NEW, "runtime/Lambda")
-                mv.visitInsn(Opcodes.DUP)
-                AsmHelper.selectNumberInsn(mv, if (ctx.integer() == null) 1 else ctx.integer().text.toInt())
-                mv.visitLdcInsn(
-                        Handle(
-                                Opcodes.H_INVOKESTATIC,
-                                "jyxal/Main",
-                                lambdaName,
-                                "(Lruntime/ProgramStack;)Ljava/lang/Object;",
-                                false
-                        )
-                )
-                mv.visitMethodInsn(
-                        Opcodes.INVOKESPECIAL,
-                        "runtime/Lambda",
-                        "<init>",
-                        "(ILjava/lang/invoke/MethodHandle;)V",
-                        false
-                )
-                mv.loadStack()
-                mv.visitInsn(Opcodes.SWAP)
-                AsmHelper.push(mv)
-            }
-            "ƛ" -> {
-                AsmHelper.pop(mv)
-                mv.visitMethodInsn(
-                        Opcodes.INVOKESTATIC,
-                        "runtime/RuntimeHelpers",
-                        "mapLambda",
-                        "(Lruntime/Lambda;Ljava/lang/Object;)Ljava/lang/Object;",
-                        false
-                )
-                mv.loadStack()
-                mv.visitInsn(Opcodes.SWAP)
-                AsmHelper.push(mv)
-            }
-            "'" -> {
-                AsmHelper.pop(mv)
-                mv.visitMethodInsn(
-                        Opcodes.INVOKESTATIC,
-                        "runtime/RuntimeHelpers",
-                        "filterLambda",
-                        "(Lruntime/Lambda;Ljava/lang/Object;)Ljava/lang/Object;",
-                        false
-                )
-                mv.loadStack()
-                mv.visitInsn(Opcodes.SWAP)
-                AsmHelper.push(mv)
-            }
-            "⟑" -> {
-                AsmHelper.pop(mv)
-                mv.visitMethodInsn(
-                        Opcodes.INVOKESTATIC,
-                        "runtime/RuntimeHelpers",
-                        "applyLambda",
-                        "(Lruntime/Lambda;Ljava/lang/Object;)Ljava/lang/Object;",
-                        false
-                )
-                mv.loadStack()
-                mv.visitInsn(Opcodes.SWAP)
-                AsmHelper.push(mv)
-            }
+        val type = ctx.LAMBDA_TYPE().text
+        val arity = if (type == "λ" && ctx.integer() != null) ctx.integer().text.toInt() else 1
+        compileLambda(listOf(ctx.program()), arity)
+        val mv = callStack.peek()
+        val helper = when (type) {
+            "ƛ" -> "mapLambda"
+            "'" -> "filterLambda"
+            "⟑" -> "applyLambda"
+            // normal lambda
+            else -> null
+        }
+        if (helper != null) {
+            AsmHelper.pop(mv)
+            mv.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    "runtime/RuntimeHelpers",
+                    helper,
+                    "(Lruntime/Lambda;Ljava/lang/Object;)Ljava/lang/Object;",
+                    false
+            )
         }
-        lambdaCounter++
+        mv.loadStack()
+        mv.visitInsn(Opcodes.SWAP)
+        AsmHelper.push(mv)
     }
 
     override fun visitOne_element_lambda(ctx: One_element_lambdaContext) {
@@ -533,80 +782,334 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
     }
 
     private fun visitLimitedLambda(nodes: List<Program_nodeContext>) {
-        val lambdaName = "lambda$$lambdaCounter"
-        var mv = classWriter.visitMethod(
-                Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC,
-                lambdaName,
-                "(Lruntime/ProgramStack;)Ljava/lang/Object;"
-        )
-        callStack.push(mv)
-        for (node in nodes) {
+        compileLambda(nodes, 1)
+        val mv = callStack.peek()
+        mv.loadStack()
+        mv.visitInsn(Opcodes.SWAP)
+        AsmHelper.push(mv)
+    }
+
+    /**
+     * Compiles [body] to a method of its own and leaves a [io.github.seggan.jyxal.runtime.Lambda] calling it
+     * on the JVM stack. If [body] is known to pop no more than its [arity] arguments, the method takes them
+     * directly and the stack taking entry point just forwards to it.
+     */
+    private fun compileLambda(body: List<ParseTree>, arity: Int) {
+        val lambdaName = "lambda$${lambdaCounter++}"
+        val effect = body.fold(StackEffect.NONE as StackEffect?) { effect, node ->
+            stackAnalyser.effectOf(node)?.let { effect?.then(it) }
+        }
+        val direct = arity in 1..2 && effect != null && effect.pops <= arity && arity + effect.net > 0
+        val desc = if (direct) directLambdaDescriptor(arity) else STACK_LAMBDA_DESCRIPTOR
+        val lambda = classWriter.visitMethod(Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC, lambdaName, desc)
+        callStack.push(lambda)
+        integerContext.push(false)
+        for (node in body) {
+            if (node is Program_nodeContext) {
+                lambda.markLine(LineTable.lineOf(node.start))
+            }
             visit(node)
         }
+        integerContext.pop()
         callStack.pop()
-        AsmHelper.pop(mv)
-        mv.visitInsn(Opcodes.ARETURN)
-        mv.visitMaxs(-1, -1)
-        mv.visitEnd()
-        mv = callStack.peek()
+        AsmHelper.pop(lambda)
+        lambda.visitInsn(Opcodes.ARETURN)
+        lambda.visitMaxs(-1, -1)
+        lambda.visitEnd()
+        if (direct) {
+            compileLambdaBridge(lambdaName, arity)
+        }
+
+        val mv = callStack.peek()
         mv.visitTypeInsn(Opcodes.NEW, "runtime/Lambda")
         mv.visitInsn(Opcodes.DUP)
-        mv.visitInsn(Opcodes.ICONST_1)
-        mv.visitLdcInsn(
-                Handle(
-                        Opcodes.H_INVOKESTATIC,
-                        "jyxal/Main",
-                        lambdaName,
-                        "(Lruntime/ProgramStack;)Ljava/lang/Object;",
-                        false
+        AsmHelper.selectNumberInsn(mv, arity)
+        mv.visitLdcInsn(Handle(Opcodes.H_INVOKESTATIC, "jyxal/Main", lambdaName, STACK_LAMBDA_DESCRIPTOR, false))
+        for (i in 1..2) {
+            if (direct && i == arity) {
+                val functionalInterface = if (i == 1) "java/util/function/Function" else "java/util/function/BiFunction"
+                mv.visitInvokeDynamicInsn(
+                        "apply",
+                        "()L$functionalInterface;",
+                        METAFACTORY,
+                        Type.getType(desc),
+                        Handle(Opcodes.H_INVOKESTATIC, "jyxal/Main", lambdaName, desc, false),
+                        Type.getType(desc)
                 )
-        )
+            } else {
+                mv.visitInsn(Opcodes.ACONST_NULL)
+            }
+        }
         mv.visitMethodInsn(
                 Opcodes.INVOKESPECIAL,
                 "runtime/Lambda",
                 "<init>",
-                "(ILjava/lang/invoke/MethodHandle;)V",
+                "(ILjava/lang/invoke/MethodHandle;Ljava/util/function/Function;Ljava/util/function/BiFunction;)V",
                 false
         )
+    }
+
+    /**
+     * The entry point of a direct lambda that takes a program stack, popping the arguments off it. It goes
+     * straight to the class writer instead of through a [JyxalMethod], so it has none of their prologues:
+     * the context variable is only built by the direct method, and only if that reads it.
+     */
+    private fun compileLambdaBridge(lambdaName: String, arity: Int) {
+        val mv = classWriter.visitMethod(
+                Opcodes.ACC_PRIVATE or Opcodes.ACC_STATIC,
+                lambdaName,
+                STACK_LAMBDA_DESCRIPTOR,
+                null,
+                null
+        )
+        mv.visitCode()
+        repeat(arity) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0)
+            mv.visitMethodInsn(
+                    Opcodes.INVOKEVIRTUAL,
+                    "io/github/seggan/jyxal/runtime/ProgramStack",
+                    "pop",
+                    "()Ljava/lang/Object;",
+                    false
+            )
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "jyxal/Main", lambdaName, directLambdaDescriptor(arity), false)
+        mv.visitInsn(Opcodes.ARETURN)
+        mv.visitMaxs(-1, -1)
+        mv.visitEnd()
+    }
+
+    /**
+     * Finds a lambda at [start] that maps or filters right away, with `ƛ`, `'`, `M` or `F`, and whose body
+     * only ever looks at its argument, so that it can be run in place by [visitFused]
+     */
+    private fun fusedLambda(nodes: List<Program_nodeContext>, start: Int): FusedLambda? {
+        val lambda = nodes[start].statement()?.getChild(0) ?: return null
+        val body = when (lambda) {
+            is LambdaContext -> {
+                val arity = lambda.integer()?.text?.toIntOrNull() ?: 1
+                if (lambda.LAMBDA_TYPE().text == "λ" && arity != 1) return null
+                listOf(lambda.program())
+            }
+            is One_element_lambdaContext -> listOf(lambda.program_node())
+            is Two_element_lambdaContext -> lambda.program_node()
+            is Three_element_lambdaContext -> lambda.program_node()
+            else -> return null
+        }
+        val filter = when ((lambda as? LambdaContext)?.LAMBDA_TYPE()?.text) {
+            "ƛ" -> false
+            "'" -> true
+            "λ", null -> {
+                val element = nodes.getOrNull(start + 1)?.element() ?: return null
+                if (element.MODIFIER() != null || element.PREFIX() != null) return null
+                when (element.element_type().text) {
+                    in aliases -> return null
+                    Element.MAP.text -> false
+                    Element.FILTER.text -> true
+                    else -> return null
+                }
+            }
+            else -> return null
+        }
+        val effect = body.fold(StackEffect.NONE as StackEffect?) { effect, node ->
+            stackAnalyser.effectOf(node)?.let { effect?.then(it) }
+        }
+        if (effect == null || effect.pops > 1 || effect.net < 0 || body.any(outliner::breaksOut)) {
+            return null
+        }
+        val usesContext = body.any {
+            typeAnalyser.readsContext(it, contextVariables) || typeAnalyser.assignsContext(it, contextVariables)
+        }
+        val end = if (lambda is LambdaContext && lambda.LAMBDA_TYPE().text != "λ") start + 1 else start + 2
+        return FusedLambda(body, filter, effect.net, usesContext, end)
+    }
+
+    /**
+     * Maps or filters a finite list with the body of [fused] compiled in place, which runs on the program
+     * stack with the item pushed on it. Anything else, infinite lists included, goes through a lambda made
+     * from [nodes] as usual.
+     */
+    private fun visitFused(fused: FusedLambda, nodes: List<Program_nodeContext>) {
+        val mv = callStack.peek()
+        val generic = Label()
+        val end = Label()
+        AsmHelper.pop(mv)
+        mv.reserveVar().use { input ->
+            input.store()
+            input.load()
+            mv.visitTypeInsn(Opcodes.INSTANCEOF, "runtime/list/JyxalList")
+            mv.visitJumpInsn(Opcodes.IFEQ, generic)
+            input.load()
+            mv.visitTypeInsn(Opcodes.CHECKCAST, "runtime/list/JyxalList")
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "runtime/list/JyxalList", "isLazy", "()Z", false)
+            mv.visitJumpInsn(Opcodes.IFNE, generic)
+            mv.reserveVar().use { results ->
+                mv.visitTypeInsn(Opcodes.NEW, "java/util/ArrayList")
+                mv.visitInsn(Opcodes.DUP)
+                input.load()
+                mv.visitTypeInsn(Opcodes.CHECKCAST, "runtime/list/JyxalList")
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "runtime/list/JyxalList", "size", "()I", false)
+                mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/util/ArrayList", "<init>", "(I)V", false)
+                results.store()
+                mv.reserveVar().use { iterator ->
+                    input.load()
+                    mv.visitTypeInsn(Opcodes.CHECKCAST, "runtime/list/JyxalList")
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "runtime/list/JyxalList", "iterator", "()Ljava/util/Iterator;", false)
+                    iterator.store()
+                    mv.reserveVar().use { ctxStore ->
+                        if (fused.usesContext) {
+                            mv.visitVarInsn(Opcodes.ALOAD, mv.ctxVar)
+                            ctxStore.store()
+                        }
+                        mv.reserveVar().use { item ->
+                            visitFusedLoop(fused, iterator, item, results)
+                        }
+                        if (fused.usesContext) {
+                            ctxStore.load()
+                            mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
+                        }
+                    }
+                }
+                mv.loadStack()
+                results.load()
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/RuntimeHelpers", "finiteList", "(Ljava/util/ArrayList;)Lruntime/list/JyxalList;", false)
+                AsmHelper.push(mv)
+            }
+            mv.visitJumpInsn(Opcodes.GOTO, end)
+            mv.visitLabel(generic)
+            mv.loadStack()
+            input.load()
+            AsmHelper.push(mv)
+        }
+        for (node in nodes) {
+            visit(node)
+        }
+        mv.visitLabel(end)
+    }
+
+    private fun visitFusedLoop(fused: FusedLambda, iterator: ContextualVariable, item: ContextualVariable, results: ContextualVariable) {
+        val mv = callStack.peek()
+        val start = Label()
+        val done = Label()
+        mv.visitLabel(start)
+        iterator.load()
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Iterator", "hasNext", "()Z", true)
+        mv.visitJumpInsn(Opcodes.IFEQ, done)
+        iterator.load()
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Iterator", "next", "()Ljava/lang/Object;", true)
+        item.store()
+        if (fused.usesContext) {
+            // as in a lambda, the context variable is the list of arguments
+            mv.visitInsn(Opcodes.ICONST_1)
+            mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object")
+            mv.visitInsn(Opcodes.DUP)
+            mv.visitInsn(Opcodes.ICONST_0)
+            item.load()
+            mv.visitInsn(Opcodes.AASTORE)
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/list/JyxalList", "create", "([Ljava/lang/Object;)Lruntime/list/JyxalList;", false)
+            mv.visitVarInsn(Opcodes.ASTORE, mv.ctxVar)
+        }
         mv.loadStack()
-        mv.visitInsn(Opcodes.SWAP)
+        item.load()
         AsmHelper.push(mv)
+        integerContext.push(false)
+        withLongContext(mv, -1) {
+            for (node in fused.body) {
+                visit(node)
+            }
+        }
+        integerContext.pop()
+        AsmHelper.pop(mv)
+        // a lambda only returns the top of its stack
+        repeat(fused.leftOver) {
+            AsmHelper.pop(mv)
+            mv.visitInsn(Opcodes.POP)
+        }
+        if (fused.filter) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/RuntimeHelpers", "truthValue", "(Ljava/lang/Object;)Z", false)
+            mv.visitJumpInsn(Opcodes.IFEQ, start)
+            item.load()
+        }
+        results.load()
+        mv.visitInsn(Opcodes.SWAP)
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/util/ArrayList", "add", "(Ljava/lang/Object;)Z", false)
+        mv.visitInsn(Opcodes.POP)
+        mv.visitJumpInsn(Opcodes.GOTO, start)
+        mv.visitLabel(done)
     }
 
     private data class Loop(val start: Label, val end: Label)
 
+    /**
+     * A lambda found by [fusedLambda], whose [body] leaves [leftOver] values under the one it returns. The
+     * lambda and what calls it end before the node at [end].
+     */
+    private class FusedLambda(
+            val body: List<ParseTree>,
+            val filter: Boolean,
+            val leftOver: Int,
+            val usesContext: Boolean,
+            val end: Int
+    )
+
     companion object {
-        private val COMPLEX_SEPARATOR = Pattern.compile("°")
+        private const val MAIN_CLASS = "jyxal/Main"
 
-        fun compile(parser: JyxalParser, fileName: String?): ByteArray {
-            val cw = JyxalClassWriter(ClassWriter.COMPUTE_FRAMES)
-            cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL, "jyxal/Main", null, "java/lang/Object", null)
+        /**
+         * The class holding the variables of a program compiled a part at a time, see [compileVariables]
+         */
+        const val VARIABLES_CLASS = "jyxal/Variables"
+
+        private const val STACK_LAMBDA_DESCRIPTOR = "(Lio/github/seggan/jyxal/runtime/ProgramStack;)Ljava/lang/Object;"
+
+        private val METAFACTORY = Handle(
+                Opcodes.H_INVOKESTATIC,
+                "java/lang/invoke/LambdaMetafactory",
+                "metafactory",
+                "(Ljava/lang/invoke/MethodHandles\$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                        + "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)"
+                        + "Ljava/lang/invoke/CallSite;",
+                false
+        )
+
+        private fun directLambdaDescriptor(arity: Int): String {
+            return "(" + "Ljava/lang/Object;".repeat(arity) + ")Ljava/lang/Object;"
+        }
 
-            // plus the register
-            cw.visitField(
-                    Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC,
-                    "register",
-                    "Ljava/lang/Object;",
-                    null,
-                    null
-            ).visitEnd()
+        /**
+         * Compiles the parsed program [file] with [options], rounding what cannot be exact to [precision]
+         * digits, and writing how much the optimiser did to [report] if given and how long it all took to
+         * [metrics]
+         */
+        fun compile(
+                file: FileContext,
+                fileName: String?,
+                options: Set<CompilerOptions>,
+                precision: Int = DEFAULT_PRECISION,
+                report: Appendable? = null,
+                metrics: CompileMetrics = CompileMetrics()
+        ): ByteArray {
+            val cw = JyxalClassWriter(ClassWriter.COMPUTE_FRAMES, options, metrics)
+            cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL, "jyxal/Main", null, "java/lang/Object", null)
             cw.visitSource(fileName, null)
             val clinit = cw.visitMethod(
                     Opcodes.ACC_STATIC,
                     "<clinit>",
-                    "()V",
-                    null,
-                    null
+                    "()V"
             )
             clinit.visitCode()
-            clinit.visitFieldInsn(
-                    Opcodes.GETSTATIC,
-                    "io/github/seggan/jyxal/runtime/math/BigComplex",
-                    "ZERO",
-                    "Lio/github/seggan/jyxal/runtime/math/BigComplex;"
-            )
-            clinit.visitFieldInsn(Opcodes.PUTSTATIC, "jyxal/Main", "register", "Ljava/lang/Object;")
-            val compiler = Compiler(cw, clinit)
+            val compiler = Compiler(cw, clinit, precision)
+            for (alias in file.alias()) {
+                compiler.visitAlias(alias)
+            }
+            file.program()?.let { compiler.outliner.plan(listOf(it)) }
+            // without optimisations, every variable stays in a field
+            val escapes = if (CompilerOptions.DONT_OPTIMISE in options) {
+                null
+            } else {
+                EscapeAnalyser(compiler.aliases, compiler.stackAnalyser, compiler.outliner).also { it.analyse(file) }
+            }
+
             val main = cw.visitMethod(
                     Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC,
                     "main",
@@ -614,7 +1117,34 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
             )
             compiler.callStack.push(main)
             main.visitCode()
-            compiler.visit(parser.file())
+            // the runtime is shared by every program in the JVM, so each one brings its own
+            main.visitLdcInsn(precision)
+            main.visitInsn(if (CompilerOptions.FAST_MATH in options) Opcodes.ICONST_1 else Opcodes.ICONST_0)
+            main.visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/MathSettings", "enterMath", "(IZ)V", false)
+            for (name in escapes?.localVariables.orEmpty()) {
+                compiler.localVariables[name] = compiler.initialiseLocal(main, name)
+            }
+            if (escapes?.registerIsLocal == true) {
+                main.registerVar = compiler.initialiseLocal(main, "register").index
+            } else {
+                cw.visitField(
+                        Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC,
+                        "register",
+                        "Ljava/lang/Object;",
+                        null,
+                        null
+                ).visitEnd()
+                clinit.visitFieldInsn(
+                        Opcodes.GETSTATIC,
+                        "io/github/seggan/jyxal/runtime/math/BigComplex",
+                        "ZERO",
+                        "Lio/github/seggan/jyxal/runtime/math/BigComplex;"
+                )
+                clinit.visitFieldInsn(Opcodes.PUTSTATIC, "jyxal/Main", "register", "Ljava/lang/Object;")
+            }
+            // the context variable of the main method starts off as zero
+            compiler.integerContext.push(!compiler.typeAnalyser.assignsContext(file, compiler.contextVariables))
+            compiler.visit(file)
 
             // finish up clinit
             clinit.visitInsn(Opcodes.RETURN)
@@ -624,7 +1154,7 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
             // TODO: reverse the signs for the variable assns
 
             // finish up main
-            if (CompilerOptions.contains(CompilerOptions.PRINT_TO_FILE)) {
+            if (CompilerOptions.PRINT_TO_FILE in options) {
                 main.loadStack()
                 main.visitMethodInsn(
                         Opcodes.INVOKESTATIC,
@@ -652,6 +1182,10 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
                         false
                 )
             }
+            for (variable in compiler.mainLocals) {
+                variable.close()
+            }
+            main.visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/MathSettings", "exitMath", "()V", false)
             main.visitInsn(Opcodes.RETURN)
             try {
                 main.visitEnd()
@@ -666,6 +1200,80 @@ class Compiler private constructor(private val classWriter: JyxalClassWriter, pr
                 }
                 throw RuntimeException(e)
             }
+            if (report != null) {
+                cw.writeOptimiserReport(report)
+            }
+            return cw.toByteArray()
+        }
+
+        /**
+         * Compiles [nodes] on their own, for the interpreter to call once they get hot. The class is another
+         * `jyxal.Main` with a static `region` method of the [Region] descriptor, so it has to be loaded on
+         * its own, by a class loader that can see the class from [compileVariables]. [aliases] are those of
+         * the whole program, and [contextVariables] the for loop variables declared before [nodes]. The
+         * interpreter runs it in the mode of [precision] itself, so this only folds constants with it.
+         */
+        fun compileRegion(
+                nodes: List<ParseTree>,
+                aliases: Map<String, ProgramContext>,
+                contextVariables: Set<String>,
+                options: Set<CompilerOptions>,
+                precision: Int
+        ): ByteArray {
+            val cw = JyxalClassWriter(ClassWriter.COMPUTE_FRAMES, options, CompileMetrics(), VARIABLES_CLASS)
+            cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL, MAIN_CLASS, null, "java/lang/Object", null)
+            val clinit = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V")
+            clinit.visitCode()
+            val compiler = Compiler(cw, clinit, precision)
+            compiler.aliases.putAll(aliases)
+            compiler.contextVariables.addAll(contextVariables)
+            compiler.outliner.plan(nodes)
+            val region = cw.visitMethod(Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC, "region", Region.DESCRIPTOR) as Region
+            region.visitCode()
+            compiler.callStack.push(region)
+            // nothing is known about the context variable the interpreter passes in
+            compiler.integerContext.push(false)
+            for (node in nodes) {
+                compiler.visit(node)
+            }
+            clinit.visitInsn(Opcodes.RETURN)
+            clinit.visitMaxs(0, 0)
+            clinit.visitEnd()
+            region.returnContextVar()
+            region.visitMaxs(0, 0)
+            region.visitEnd()
+            return cw.toByteArray()
+        }
+
+        /**
+         * Compiles the class [compileRegion] keeps the variables named [names] and the register in, all of
+         * which start off as zero
+         */
+        fun compileVariables(names: Set<String>): ByteArray {
+            val cw = ClassWriter(ClassWriter.COMPUTE_MAXS)
+            cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL, VARIABLES_CLASS, null, "java/lang/Object", null)
+            val clinit = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null)
+            clinit.visitCode()
+            for (name in names + "register") {
+                cw.visitField(
+                        Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC,
+                        name,
+                        "Ljava/lang/Object;",
+                        null,
+                        null
+                ).visitEnd()
+                clinit.visitFieldInsn(
+                        Opcodes.GETSTATIC,
+                        "io/github/seggan/jyxal/runtime/math/BigComplex",
+                        "ZERO",
+                        "Lio/github/seggan/jyxal/runtime/math/BigComplex;"
+                )
+                clinit.visitFieldInsn(Opcodes.PUTSTATIC, VARIABLES_CLASS, name, "Ljava/lang/Object;")
+            }
+            clinit.visitInsn(Opcodes.RETURN)
+            clinit.visitMaxs(0, 0)
+            clinit.visitEnd()
+            cw.visitEnd()
             return cw.toByteArray()
         }
     }
@@ -0,0 +1,228 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalParser.*
+import io.github.seggan.jyxal.runtime.list.JyxalList
+import io.github.seggan.jyxal.runtime.math.BigComplex
+import io.github.seggan.jyxal.runtime.text.Compression.decompress
+import io.github.seggan.jyxal.runtime.unescapeString
+import io.github.seggan.jyxal.runtime.withMath
+import org.antlr.v4.runtime.tree.ParseTree
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.math.BigDecimal
+import java.util.regex.Pattern
+
+/**
+ * Runs [pure][Element.isPure] elements at compile time when all of their operands are literals, in the same
+ * [precision] and mode of [fastMath] as the program would at run time
+ */
+class ConstantFolder(
+        private val aliases: Map<String, ProgramContext>,
+        private val precision: Int,
+        private val fastMath: Boolean
+) {
+
+    private val methods: MutableMap<Element, Method> = HashMap()
+
+    /**
+     * Folds as much of [nodes] starting at [start] as possible. Returns null if no element could be run,
+     * in which case there is nothing to gain from replacing the literals.
+     */
+    fun fold(nodes: List<Program_nodeContext>, start: Int): FoldedRun? {
+        val stack = ArrayList<Any>()
+        var run: FoldedRun? = null
+        for (i in start until nodes.size) {
+            when (step(nodes[i].getChild(0), stack)) {
+                Step.STOP -> break
+                Step.RUN -> run = FoldedRun(ArrayList(stack), i + 1)
+                Step.PUSH -> {}
+            }
+        }
+        return run
+    }
+
+    private fun step(node: ParseTree, stack: MutableList<Any>): Step {
+        if (node is LiteralContext) {
+            stack.add(valueOf(node) ?: return Step.STOP)
+            return Step.PUSH
+        }
+        if (node !is ElementContext || node.MODIFIER() != null) return Step.STOP
+        val text = if (node.PREFIX() != null) node.PREFIX().text + node.element_type().text else node.element_type().text
+        if (node.PREFIX() == null && aliases.containsKey(text)) return Step.STOP
+        val constant = Constants.valueOf(text)
+        if (constant != null) {
+            stack.add(constant)
+            return Step.PUSH
+        }
+        val element = Element.findByText(text) ?: return Step.STOP
+        val effect = element.effect
+        if (!element.isPure || effect == null || effect.pushes != 1 || stack.size < effect.pops) return Step.STOP
+        val operands = stack.subList(stack.size - effect.pops, stack.size)
+        // whether a monad vectorises is decided when it is compiled, so leave lists to the runtime
+        if (element.type != Element.LinkedMethodType.DYAD && operands.any { it is JyxalList }) return Step.STOP
+        // what is too big to keep as a constant can take as long to work with as running the program
+        if (!operands.all(::isSmallOperand)) return Step.STOP
+        if (element in REPEATING && !isSmallRepeat(element, operands)) return Step.STOP
+        if (precision > MAX_PRECISION && element in ROUNDED) return Step.STOP
+        val result = invoke(element, operands) ?: return Step.STOP
+        operands.clear()
+        stack.add(result)
+        return Step.RUN
+    }
+
+    /**
+     * The value of [literal], or null if it cannot be known at compile time
+     */
+    fun valueOf(literal: LiteralContext): Any? {
+        val child = literal.getChild(0)
+        return when (child) {
+            is NumberContext -> numberValue(child)
+            is Complex_numberContext -> complexValue(child)
+            is StringContext -> stringValue(child)
+            is ConstantContext -> Constants.valueOf(child.text)
+            is ListContext -> listValue(child)
+            else -> null
+        }
+    }
+
+    /**
+     * The value of a list literal, if every item of it can be computed at compile time
+     */
+    fun listValue(ctx: ListContext): JyxalList? {
+        val items = ArrayList<Any>()
+        for (program in ctx.program()) {
+            val stack = ArrayList<Any>()
+            for (node in program.program_node()) {
+                if (step(node.getChild(0), stack) == Step.STOP) return null
+            }
+            if (stack.size != 1) return null
+            items.add(stack[0])
+        }
+        return if (isSmall(items)) JyxalList.create(items) else null
+    }
+
+    private fun invoke(element: Element, operands: List<Any>): Any? {
+        val method = methods.getOrPut(element) {
+            RUNTIME_METHODS.getMethod(
+                    screamingSnakeToCamel(element.name),
+                    *element.type!!.argTypes.map { it.java }.toTypedArray()
+            )
+        }
+        val result = try {
+            withMath(precision, fastMath) { method.invoke(null, *operands.toTypedArray()) }
+        } catch (e: InvocationTargetException) {
+            // the program would fail at this point, so let it do so at runtime
+            return null
+        }
+        return when (result) {
+            is String -> if (result.length <= MAX_STRING_LENGTH) result else null
+            is BigComplex -> if (result.re.precision() + result.im.precision() <= MAX_PRECISION) result else null
+            is JyxalList -> {
+                // a lazy list prints differently from a finite one, and a constant has to be finite
+                if (result.isLazy() || result.hasAtLeast(MAX_LIST_SIZE + 1)) return null
+                val items = result.toList()
+                if (isSmall(items)) JyxalList.create(items) else null
+            }
+            else -> null
+        }
+    }
+
+    private fun isSmallOperand(operand: Any): Boolean {
+        return when (operand) {
+            is String -> operand.length <= MAX_STRING_LENGTH
+            is BigComplex -> operand.re.precision() + operand.im.precision() <= MAX_PRECISION
+            else -> true
+        }
+    }
+
+    /**
+     * Whether the strings [element] would repeat are short enough to be kept. The operands are small, but a
+     * string repeated a large number of times is not, and building it takes as long as running the program.
+     */
+    private fun isSmallRepeat(element: Element, operands: List<Any>): Boolean {
+        val values = ArrayList<Any>()
+        flattenInto(operands, values)
+        val longest = values.filterIsInstance<String>().maxOfOrNull { it.length } ?: return true
+        if (element == Element.DOUBLE_REPEAT) return longest * 2 <= MAX_STRING_LENGTH
+        val limit = BigDecimal.valueOf(MAX_STRING_LENGTH.toLong())
+        return values.none { it is BigComplex && it.re.abs() > limit }
+    }
+
+    private fun flattenInto(values: Iterable<Any>, into: MutableList<Any>) {
+        for (value in values) {
+            if (value is JyxalList) flattenInto(value, into) else into.add(value)
+        }
+    }
+
+    private fun isSmall(items: List<Any>): Boolean {
+        var size = 0
+        for (item in items) {
+            size += when (item) {
+                is JyxalList -> if (!item.isLazy() && isSmall(item.toList())) item.size else return false
+                is String -> if (item.length <= MAX_STRING_LENGTH) 1 else return false
+                is BigComplex -> 1
+                else -> return false
+            }
+            if (size > MAX_LIST_SIZE) return false
+        }
+        return true
+    }
+
+    private enum class Step {
+        /**
+         * A value was pushed
+         */
+        PUSH,
+
+        /**
+         * An element was run
+         */
+        RUN,
+
+        /**
+         * The node cannot be run at compile time
+         */
+        STOP
+    }
+
+    companion object {
+        private val RUNTIME_METHODS = Class.forName("io.github.seggan.jyxal.runtime.RuntimeMethods")
+        private val COMPLEX_SEPARATOR = Pattern.compile("°")
+
+        private const val MAX_LIST_SIZE = 256
+        private const val MAX_STRING_LENGTH = 1024
+        private const val MAX_PRECISION = 1000
+
+        /**
+         * The elements whose results are rounded to the precision, which take longer the more digits they need.
+         * Those of a program with more than [MAX_PRECISION] digits would not be kept anyway.
+         */
+        private val ROUNDED = setOf(Element.DIVIDE, Element.HALVE, Element.SQRT, Element.EXPONENTIATE,
+                Element.TWO_POW, Element.MULTI_COMMAND, Element.JOIN_BY_NOTHING)
+
+        /**
+         * The elements that repeat a string as many times as a number says, or twice
+         */
+        private val REPEATING = setOf(Element.MULTIPLY, Element.EXPONENTIATE, Element.DOUBLE_REPEAT)
+
+        fun numberValue(ctx: NumberContext): BigComplex = BigComplex.valueOf(BigDecimal(ctx.text))
+
+        fun complexValue(ctx: Complex_numberContext): BigComplex {
+            val parts = COMPLEX_SEPARATOR.split(ctx.text)
+            return BigComplex.valueOf(BigDecimal(parts[0]), BigDecimal(parts[1]))
+        }
+
+        fun stringValue(ctx: StringContext): String {
+            var str = ctx.text.substring(1)
+            if (str.endsWith("«") || str.endsWith("\"")) {
+                str = str.substring(0, str.length - 1)
+            }
+            return decompress(unescapeString(str))
+        }
+    }
+}
+
+/**
+ * The values left on the stack by a folded run of program nodes ending right before the node at [end]
+ */
+data class FoldedRun(val values: List<Any>, val end: Int)
\ No newline at end of file
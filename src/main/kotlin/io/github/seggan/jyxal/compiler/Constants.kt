@@ -1,35 +1,30 @@
 package io.github.seggan.jyxal.compiler
 
-import io.github.seggan.jyxal.compiler.wrappers.JyxalMethod
+import io.github.seggan.jyxal.runtime.math.BigComplex
 import io.github.seggan.jyxal.runtime.text.Compression
-import org.objectweb.asm.ClassWriter
+import java.math.BigDecimal
 
 object Constants {
 
-    private val constants: MutableMap<String, (JyxalMethod) -> Unit> = HashMap()
+    private val constants: MutableMap<String, Any> = HashMap()
 
-    fun compile(name: String, cw: ClassWriter, method: JyxalMethod) {
-        if (constants.containsKey(name)) {
-            constants[name]!!(method)
-        } else {
-            Element.getByText(name).compile(cw, method)
-        }
-    }
+    fun isConstant(name: String): Boolean = constants.containsKey(name)
+
+    /**
+     * The value of the constant with the given name, or null if there is none
+     */
+    fun valueOf(name: String): Any? = constants[name]
 
     private fun number(name: String, value: Int) {
-        registerConstant(name) { mv: JyxalMethod -> AsmHelper.selectNumberInsn(mv, value) }
+        constants[name] = BigComplex.valueOf(value.toLong())
     }
 
     private fun number(name: String, value: String) {
-        registerConstant(name) { mv: JyxalMethod -> AsmHelper.addBigComplex(value, mv) }
-    }
-
-    private fun registerConstant(name: String, method: (JyxalMethod) -> Unit) {
-        constants[name] = method
+        constants[name] = BigComplex.valueOf(BigDecimal(value))
     }
 
     private fun string(name: String, value: String) {
-        registerConstant(name) { mv: JyxalMethod -> mv.visitLdcInsn(value) }
+        constants[name] = value
     }
 
     init {
@@ -0,0 +1,98 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.compiler.wrappers.JyxalMethod
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.IincInsnNode
+import org.objectweb.asm.tree.VarInsnNode
+import org.objectweb.asm.tree.analysis.Analyzer
+import org.objectweb.asm.tree.analysis.AnalyzerException
+import org.objectweb.asm.tree.analysis.Frame
+import org.objectweb.asm.tree.analysis.Interpreter
+import org.objectweb.asm.tree.analysis.Value
+
+/**
+ * The control flow graph of a method, along with the frames [interpreter] computes for each instruction. The
+ * graph is a snapshot: it goes stale as soon as the instructions are changed.
+ */
+class ControlFlowGraph<V : Value>(method: JyxalMethod, interpreter: Interpreter<V>) {
+
+    val instructions: Array<AbstractInsnNode> = method.instructions.toArray()
+
+    /**
+     * The frame before each instruction, or null if the instruction is unreachable
+     */
+    val frames: Array<Frame<V>?>
+
+    private val successors = Array(instructions.size) { ArrayList<Int>(2) }
+    private val predecessors = Array(instructions.size) { ArrayList<Int>(2) }
+    private val exceptionSuccessors = Array(instructions.size) { ArrayList<Int>(1) }
+
+    private val indices = HashMap<AbstractInsnNode, Int>(instructions.size * 2)
+
+    init {
+        for ((i, insn) in instructions.withIndex()) {
+            indices[insn] = i
+        }
+        val analyzer = object : Analyzer<V>(interpreter) {
+            override fun newControlFlowEdge(insnIndex: Int, successorIndex: Int) {
+                successors[insnIndex].add(successorIndex)
+                predecessors[successorIndex].add(insnIndex)
+            }
+
+            override fun newControlFlowExceptionEdge(insnIndex: Int, successorIndex: Int): Boolean {
+                exceptionSuccessors[insnIndex].add(successorIndex)
+                return true
+            }
+        }
+        // the real maximums are only computed once the class is written
+        val maxStack = method.maxStack
+        val maxLocals = method.maxLocals
+        method.maxLocals = localsNeeded(method)
+        method.maxStack = 16
+        try {
+            var analysed: Array<Frame<V>?>? = null
+            while (analysed == null) {
+                analysed = try {
+                    analyzer.analyze("jyxal/Main", method)
+                } catch (e: AnalyzerException) {
+                    if (method.maxStack > instructions.size * 2) throw JyxalCompileException("Cannot analyse ${method.name}: ${e.message}")
+                    method.maxStack *= 2
+                    for (list in successors) list.clear()
+                    for (list in predecessors) list.clear()
+                    for (list in exceptionSuccessors) list.clear()
+                    null
+                }
+            }
+            frames = analysed
+        } finally {
+            method.maxStack = maxStack
+            method.maxLocals = maxLocals
+        }
+    }
+
+    fun indexOf(insn: AbstractInsnNode): Int = indices[insn] ?: throw NoSuchElementException("Not in the graph: $insn")
+
+    fun successors(index: Int): List<Int> = successors[index]
+
+    fun predecessors(index: Int): List<Int> = predecessors[index]
+
+    /**
+     * The handlers an exception thrown by the instruction at [index] may go to
+     */
+    fun exceptionSuccessors(index: Int): List<Int> = exceptionSuccessors[index]
+
+    fun isReachable(index: Int): Boolean = frames[index] != null
+
+    private fun localsNeeded(method: JyxalMethod): Int {
+        var max = Type.getArgumentsAndReturnSizes(method.desc) shr 2
+        for (insn in instructions) {
+            if (insn is VarInsnNode) {
+                max = maxOf(max, insn.`var` + 2)
+            } else if (insn is IincInsnNode) {
+                max = maxOf(max, insn.`var` + 1)
+            }
+        }
+        return max
+    }
+}
\ No newline at end of file
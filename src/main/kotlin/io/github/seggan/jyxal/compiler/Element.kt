@@ -5,9 +5,9 @@ import io.github.seggan.jyxal.compiler.wrappers.JyxalMethod
 import io.github.seggan.jyxal.runtime.ProgramStack
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.Handle
-import org.objectweb.asm.Label
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
+import java.util.EnumSet
 import kotlin.reflect.KClass
 
 @Suppress("unused")
@@ -16,21 +16,21 @@ enum class Element {
     /**
      * Math
      */
-    ADD("+"),
+    ADD("+", LinkedMethodType.DYAD),
     BINARY("b", true),
     COMPLEMENT("⌐", true),
-    DIVIDE("/"),
+    DIVIDE("/", LinkedMethodType.DYAD),
     DECREMENT("‹", true),
     DIV_FIVE("₅", false),
     DIV_THREE("₃", false),
     DOUBLE_REPEAT("d", true),
-    EXPONENTIATE("e"),
+    EXPONENTIATE("e", LinkedMethodType.DYAD),
     FACTORS("K", false),
     FACTORIAL("¡", true),
     HALVE("½"),
     HEX_TO_DECIMAL("H", true),
     INCREMENT("›", true),
-    INFINITE_PRIMES("Þp", { mv ->
+    INFINITE_PRIMES("Þp", StackEffect.PUSH, { mv ->
         mv.loadStack()
         mv.visitMethodInsn(
                 Opcodes.INVOKESTATIC,
@@ -43,13 +43,13 @@ enum class Element {
     }),
     IS_EVEN("₂", false),
     IS_PRIME("æ", true),
-    MODULO_FORMAT("%"),
-    MULTI_COMMAND("•"),
-    MULTIPLY("*"),
+    MODULO_FORMAT("%", LinkedMethodType.DYAD),
+    MULTI_COMMAND("•", LinkedMethodType.DYAD),
+    MULTIPLY("*", LinkedMethodType.DYAD),
     NEGATE("N", true),
     PARITY("∷", true),
     SQRT("√", true),
-    SUBTRACT("-"),
+    SUBTRACT("-", LinkedMethodType.DYAD),
     SUM("∑", false),
     TWO_POW("E", true),
 
@@ -58,7 +58,7 @@ enum class Element {
      */
     ALL("A", false),
     ANY("a", false),
-    BOOLIFY("ḃ", { mv ->
+    BOOLIFY("ḃ", StackEffect.MONAD, { mv ->
         mv.loadStack()
         AsmHelper.pop(mv)
         mv.visitMethodInsn(
@@ -68,23 +68,22 @@ enum class Element {
                 "(Ljava/lang/Object;)Z",
                 false
         )
-        mv.visitInsn(Opcodes.I2L)
         mv.visitMethodInsn(
                 Opcodes.INVOKESTATIC,
                 "runtime/math/BigComplex",
                 "valueOf",
-                "(J)Lruntime/math/BigComplex;",
+                "(Z)Lruntime/math/BigComplex;",
                 false
         )
         AsmHelper.push(mv)
     }),
-    EQUAL("="),
-    GREATER_THAN(">"),
-    GREATER_THAN_OR_EQUAL("≥"),
-    LESS_THAN("<"),
-    LESS_THAN_OR_EQUAL("≤"),
-    LOGICAL_AND("∧"),
-    LOGICAL_NOT("¬", { mv ->
+    EQUAL("=", LinkedMethodType.DYAD),
+    GREATER_THAN(">", LinkedMethodType.DYAD),
+    GREATER_THAN_OR_EQUAL("≥", LinkedMethodType.DYAD),
+    LESS_THAN("<", LinkedMethodType.DYAD),
+    LESS_THAN_OR_EQUAL("≤", LinkedMethodType.DYAD),
+    LOGICAL_AND("∧", LinkedMethodType.DYAD),
+    LOGICAL_NOT("¬", StackEffect.MONAD, { mv ->
         AsmHelper.pop(mv)
         mv.visitMethodInsn(
                 Opcodes.INVOKESTATIC,
@@ -93,42 +92,36 @@ enum class Element {
                 "(Ljava/lang/Object;)Z",
                 false
         )
-        val elseStart = Label()
-        val elseEnd = Label()
-        mv.visitJumpInsn(Opcodes.IFEQ, elseStart)
-        mv.visitInsn(Opcodes.LCONST_0)
-        mv.visitJumpInsn(Opcodes.GOTO, elseEnd)
-        mv.visitLabel(elseStart)
-        mv.visitInsn(Opcodes.LCONST_1)
-        mv.visitLabel(elseEnd)
+        mv.visitInsn(Opcodes.ICONST_1)
+        mv.visitInsn(Opcodes.IXOR)
         mv.visitMethodInsn(
                 Opcodes.INVOKESTATIC,
                 "runtime/math/BigComplex",
                 "valueOf",
-                "(J)Lruntime/math/BigComplex;",
+                "(Z)Lruntime/math/BigComplex;",
                 false
         )
         mv.loadStack()
         mv.visitInsn(Opcodes.SWAP)
         AsmHelper.push(mv)
     }),
-    LOGICAL_OR("∨"),
+    LOGICAL_OR("∨", LinkedMethodType.DYAD),
 
     /**
      * String
      */
     CHR_ORD("C", true),
-    INFINITE_REPLACE("ÞI"),
+    INFINITE_REPLACE("ÞI", effect = StackEffect(3, 1)),
     ITEM_SPLIT("÷"),
     JOIN_BY_NEWLINES("⁋", false),
     JOIN_BY_NOTHING("ṅ", false),
     JSON_PARSE("øJ", true),
     MIRROR("m", false),
-    REMOVE("o"),
+    REMOVE("o", LinkedMethodType.DYAD),
     REVERSE("Ṙ", false),
     SPACES("I", false),
-    SPLIT_ON("€"),
-    STRINGIFY("S", { mv ->
+    SPLIT_ON("€", LinkedMethodType.DYAD),
+    STRINGIFY("S", StackEffect.MONAD, { mv ->
         AsmHelper.pop(mv)
         mv.visitMethodInsn(
                 Opcodes.INVOKEVIRTUAL,
@@ -141,53 +134,53 @@ enum class Element {
         mv.visitInsn(Opcodes.SWAP)
         AsmHelper.push(mv)
     }),
-    STRIP("P"),
+    STRIP("P", LinkedMethodType.DYAD),
     UNEVAL("q", false),
 
     /**
      * List
      */
-    CONTAINS("c"),
-    COUNT("O"),
-    CUMULATIVE_GROUPS("l"),
+    CONTAINS("c", LinkedMethodType.DYAD),
+    COUNT("O", LinkedMethodType.DYAD),
+    CUMULATIVE_GROUPS("l", LinkedMethodType.DYAD),
     EZR("ʁ", true),
     EOR("ɽ", true),
-    FILTER("F"),
+    FILTER("F", LinkedMethodType.DYAD),
     FLATTEN("f", false),
     HEAD("h", false),
-    HEAD_EXTRACT("ḣ"),
-    INDEX_INTO("i"),
-    INTERLEAVE("Y"),
+    HEAD_EXTRACT("ḣ", effect = StackEffect(1, 2)),
+    INDEX_INTO("i", LinkedMethodType.DYAD),
+    INTERLEAVE("Y", LinkedMethodType.DYAD),
     IOR("ɾ", true), // inclusive one range
     IZR("ʀ", true), // inclusive zero range
-    JOIN("j"),
+    JOIN("j", LinkedMethodType.DYAD),
     LISTI("w", false),
     LENGTH("L", false),
-    MAP("M"),
+    MAP("M", LinkedMethodType.DYAD),
     MAP_GET_SET("Þd"),
     MAX("G", false),
-    MERGE("J"),
+    MERGE("J", LinkedMethodType.DYAD),
     MIN("g", false),
-    PREPEND("p"),
-    RANGE("r"),
+    PREPEND("p", LinkedMethodType.DYAD),
+    RANGE("r", LinkedMethodType.DYAD),
     REDUCE("R"),
-    REMOVE_AT_INDEX("⟇"),
-    REPLACE("V"),
-    SLICE_UNTIL("Ẏ"),
+    REMOVE_AT_INDEX("⟇", LinkedMethodType.DYAD),
+    REPLACE("V", effect = StackEffect(3, 1)),
+    SLICE_UNTIL("Ẏ", LinkedMethodType.DYAD),
     SORT("s", false),
-    SORT_BY_FUNCTION("ṡ"),
+    SORT_BY_FUNCTION("ṡ", LinkedMethodType.DYAD),
     TAIL("t", false),
     TRUTHY_INDEXES("T", false),
-    UNINTERLEAVE("y"),
+    UNINTERLEAVE("y", effect = StackEffect(1, 2)),
     UNIQUIFY("U", false),
-    ZIP("Z"),
+    ZIP("Z", LinkedMethodType.DYAD),
     ZIP_SELF("z", false),
 
     /**
      * Stack
      */
-    TRIPLICATE("D"),
-    DUPLICATE("`", { mv ->
+    TRIPLICATE("D", effect = StackEffect(1, 3)),
+    DUPLICATE("`", StackEffect(1, 2), { mv ->
         AsmHelper.pop(mv)
         mv.visitInsn(Opcodes.DUP)
         mv.loadStack()
@@ -197,30 +190,20 @@ enum class Element {
         mv.visitInsn(Opcodes.SWAP)
         AsmHelper.push(mv)
     }),
-    POP("_", { mv ->
+    POP("_", StackEffect.POP, { mv ->
         AsmHelper.pop(mv)
         mv.visitInsn(Opcodes.POP)
     }),
-    PUSH_REGISTER("¥", { mv ->
+    PUSH_REGISTER("¥", StackEffect.PUSH, { mv ->
         mv.loadStack()
-        mv.visitFieldInsn(
-                Opcodes.GETSTATIC,
-                "jyxal/Main",
-                "register",
-                "Ljava/lang/Object;"
-        )
+        mv.loadRegister()
         AsmHelper.push(mv)
     }),
-    SET_REGISTER("£", { mv ->
+    SET_REGISTER("£", StackEffect.POP, { mv ->
         AsmHelper.pop(mv)
-        mv.visitFieldInsn(
-                Opcodes.PUTSTATIC,
-                "jyxal/Main",
-                "register",
-                "Ljava/lang/Object;"
-        )
+        mv.storeRegister()
     }),
-    STACK_SIZE("!", { mv ->
+    STACK_SIZE("!", null, { mv ->
         mv.loadStack()
         mv.visitMethodInsn(
                 Opcodes.INVOKEVIRTUAL,
@@ -238,9 +221,10 @@ enum class Element {
                 false
         )
         mv.loadStack()
+        mv.visitInsn(Opcodes.SWAP)
         AsmHelper.push(mv)
     }),
-    WRAP("W", { mv ->
+    WRAP("W", null, { mv ->
         mv.loadStack()
         mv.visitMethodInsn(
                 Opcodes.INVOKESTATIC,
@@ -257,14 +241,14 @@ enum class Element {
     /**
      * Misc
      */
-    CONTEXT_VAR("n", { mv ->
+    CONTEXT_VAR("n", StackEffect.PUSH, { mv ->
         mv.loadStack()
         mv.loadContextVar()
         AsmHelper.push(mv)
     }),
     FUNCTION_CALL("†"),
     GET_REQUEST("¨U", true),
-    INPUT("?", { mv ->
+    INPUT("?", StackEffect.PUSH, { mv ->
         mv.loadStack()
         mv.visitMethodInsn(
                 Opcodes.INVOKEVIRTUAL,
@@ -277,13 +261,13 @@ enum class Element {
         mv.visitInsn(Opcodes.SWAP)
         AsmHelper.push(mv)
     }),
-    PRINT("₴", { mv ->
+    PRINT("₴", StackEffect.POP, { mv ->
         AsmHelper.pop(mv)
         mv.visitFieldInsn(Opcodes.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;")
         mv.visitInsn(Opcodes.SWAP)
         mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream", "print", "(Ljava/lang/Object;)V", false)
     }),
-    PRINT_NO_POP("…", { mv ->
+    PRINT_NO_POP("…", StackEffect.MONAD, { mv ->
         mv.visitFieldInsn(Opcodes.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;")
         mv.loadStack()
         mv.visitMethodInsn(
@@ -295,13 +279,13 @@ enum class Element {
         )
         mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream", "print", "(Ljava/lang/Object;)V", false)
     }),
-    PRINTLN(",", { mv ->
+    PRINTLN(",", StackEffect.POP, { mv ->
         AsmHelper.pop(mv)
         mv.visitFieldInsn(Opcodes.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;")
         mv.visitInsn(Opcodes.SWAP)
         mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/Object;)V", false)
     }),
-    QUIT("Q", { mv ->
+    QUIT("Q", StackEffect.NONE, { mv ->
         mv.visitInsn(Opcodes.ICONST_0)
         mv.visitMethodInsn(
                 Opcodes.INVOKESTATIC,
@@ -315,48 +299,92 @@ enum class Element {
     @JvmField
     val type: LinkedMethodType?
     val text: String
+
+    /**
+     * Whether this element is a monad that maps over lists unless vectorisation is turned off
+     */
+    val vectorises: Boolean
+
+    /**
+     * The static effect of this element on the stack, or null if it depends on the stack contents
+     */
+    val effect: StackEffect?
     private val compileMethod: (ClassWriter, JyxalMethod) -> Unit
 
-    constructor(text: String, compileMethod: (JyxalMethod) -> Unit) : this(
+    constructor(text: String, effect: StackEffect?, compileMethod: (JyxalMethod) -> Unit) : this(
             text,
+            effect,
             { _, mv -> compileMethod(mv) }
     )
 
-    constructor(text: String, compileMethod: (ClassWriter, JyxalMethod) -> Unit) {
+    constructor(text: String, effect: StackEffect?, compileMethod: (ClassWriter, JyxalMethod) -> Unit) {
         this.text = text
+        this.effect = effect
         this.compileMethod = compileMethod
         this.type = null
+        this.vectorises = false
     }
 
-    constructor(text: String, type: LinkedMethodType = LinkedMethodType.STACK_OBJECT) {
+    constructor(
+            text: String,
+            type: LinkedMethodType = LinkedMethodType.STACK_OBJECT,
+            effect: StackEffect? = if (type == LinkedMethodType.DYAD) StackEffect.DYAD else null
+    ) {
         this.text = text
-        compileMethod = { _, mv ->
-            mv.loadStack()
-            if (type.returnType != Void.TYPE) {
+        this.effect = effect
+        compileMethod = if (type == LinkedMethodType.DYAD) {
+            { _, mv ->
+                // the operands come off the stack in reverse order
                 mv.loadStack()
-            }
-            mv.visitMethodInsn(
-                    Opcodes.INVOKESTATIC,
-                    "runtime/RuntimeMethods",
-                    screamingSnakeToCamel(name),
-                    Type.getMethodDescriptor(
-                            Type.getType(type.returnType.java),
-                            if (type.argType == Any::class) Type.getType(Any::class.java) else Type.getType("Lruntime/ProgramStack;")
-                    ),
-                    false
-            )
-            if (type.returnType != Void.TYPE) {
+                AsmHelper.pop(mv)
+                AsmHelper.pop(mv)
+                mv.visitInsn(Opcodes.SWAP)
+                // linked through an inline cache that specialises on the classes of the operands
+                mv.visitInvokeDynamicInsn(
+                        screamingSnakeToCamel(name),
+                        DYAD_DESCRIPTOR,
+                        DYAD_BOOTSTRAP,
+                        Handle(
+                                Opcodes.H_INVOKESTATIC,
+                                "io/github/seggan/jyxal/runtime/RuntimeMethods",
+                                screamingSnakeToCamel(name),
+                                DYAD_DESCRIPTOR,
+                                false
+                        )
+                )
                 AsmHelper.push(mv)
             }
+        } else {
+            { _, mv ->
+                mv.loadStack()
+                if (type.returnType != Void.TYPE) {
+                    mv.loadStack()
+                }
+                mv.visitMethodInsn(
+                        Opcodes.INVOKESTATIC,
+                        "runtime/RuntimeMethods",
+                        screamingSnakeToCamel(name),
+                        Type.getMethodDescriptor(
+                                Type.getType(type.returnType.java),
+                                if (type.argTypes[0] == Any::class) Type.getType(Any::class.java) else Type.getType("Lruntime/ProgramStack;")
+                        ),
+                        false
+                )
+                if (type.returnType != Void.TYPE) {
+                    AsmHelper.push(mv)
+                }
+            }
         }
         this.type = type
+        this.vectorises = false
     }
 
     constructor(text: String, vectorise: Boolean) {
         this.text = text
+        this.vectorises = vectorise
         val methodName = screamingSnakeToCamel(name)
         compileMethod = { _, mv ->
-            if (vectorise && CompilerOptions.doesNotContain(CompilerOptions.DONT_VECTORISE_MONADS)) {
+            if (vectorise && CompilerOptions.DONT_VECTORISE_MONADS !in mv.options) {
                 mv.loadStack()
                 AsmHelper.pop(mv)
                 mv.visitLdcInsn(
@@ -390,28 +418,124 @@ enum class Element {
             }
         }
         type = LinkedMethodType.OBJECT_OBJECT
+        effect = StackEffect.MONAD
     }
 
+    /**
+     * Whether this element can be run at compile time, see [PURE]
+     */
+    val isPure: Boolean
+        get() = this in PURE
+
     fun compile(cw: ClassWriter, mv: JyxalMethod) {
         compileMethod(cw, mv)
     }
 
-    enum class LinkedMethodType(val argType: KClass<*>, val returnType: KClass<*>) {
+    enum class LinkedMethodType(val returnType: KClass<*>, vararg val argTypes: KClass<*>) {
         OBJECT_OBJECT(Any::class, Any::class),
-        OBJECT_VOID(Any::class, Void::class),
-        STACK_VOID(ProgramStack::class, Void::class),
-        STACK_OBJECT(ProgramStack::class, Any::class);
+        OBJECT_VOID(Void::class, Any::class),
+        STACK_VOID(Void::class, ProgramStack::class),
+        STACK_OBJECT(Any::class, ProgramStack::class),
+
+        /**
+         * Takes both of its operands directly, the deeper one first
+         */
+        DYAD(Any::class, Any::class, Any::class);
     }
 
     companion object {
+        private const val DYAD_DESCRIPTOR = "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;"
+
+        private val DYAD_BOOTSTRAP = Handle(
+                Opcodes.H_INVOKESTATIC,
+                "io/github/seggan/jyxal/runtime/Bootstraps",
+                "dyad",
+                "(Ljava/lang/invoke/MethodHandles\$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                        + "Ljava/lang/invoke/MethodHandle;)Ljava/lang/invoke/CallSite;",
+                false
+        )
+
+        /**
+         * Elements that compute their result from their operands alone, without side effects or looking at
+         * the rest of the stack. When all the operands are literals, the compiler folds these into a constant.
+         */
+        private val PURE: Set<Element> = EnumSet.of(
+                ADD,
+                BINARY,
+                COMPLEMENT,
+                DIVIDE,
+                DECREMENT,
+                DIV_FIVE,
+                DIV_THREE,
+                DOUBLE_REPEAT,
+                EXPONENTIATE,
+                HEX_TO_DECIMAL,
+                INCREMENT,
+                IS_EVEN,
+                MODULO_FORMAT,
+                MULTIPLY,
+                NEGATE,
+                PARITY,
+                SQRT,
+                SUBTRACT,
+                SUM,
+                ALL,
+                ANY,
+                EQUAL,
+                GREATER_THAN,
+                GREATER_THAN_OR_EQUAL,
+                LESS_THAN,
+                LESS_THAN_OR_EQUAL,
+                LOGICAL_AND,
+                LOGICAL_OR,
+                CHR_ORD,
+                JOIN_BY_NEWLINES,
+                JOIN_BY_NOTHING,
+                MIRROR,
+                REMOVE,
+                REVERSE,
+                SPLIT_ON,
+                STRIP,
+                UNEVAL,
+                CONTAINS,
+                COUNT,
+                EZR,
+                EOR,
+                FLATTEN,
+                HEAD,
+                INDEX_INTO,
+                IOR,
+                IZR,
+                JOIN,
+                LISTI,
+                LENGTH,
+                MAX,
+                MERGE,
+                MIN,
+                PREPEND,
+                RANGE,
+                SLICE_UNTIL,
+                SORT,
+                TAIL,
+                UNIQUIFY
+        )
+
+        // built up front, as a daemon looks elements up from several threads at once
+        private val byText: Map<String, Element> = values().associateBy { it.text }
+
+        private val byMethodName: Map<String, Element> =
+                values().filter { it.type != null }.associateBy { screamingSnakeToCamel(it.name) }
+
         fun getByText(text: String): Element {
-            for (e in values()) {
-                if (e.text == text) {
-                    return e
-                }
-            }
-            throw JyxalCompileException("Unknown element: $text")
+            return findByText(text) ?: throw JyxalCompileException("Unknown element: $text")
         }
+
+        fun findByText(text: String): Element? = byText[text]
+
+        /**
+         * Gets the element linked to the runtime method with the given name, if any
+         */
+        fun getByMethodName(name: String): Element? = byMethodName[name]
     }
 }
 
@@ -0,0 +1,86 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalParser.*
+import org.antlr.v4.runtime.tree.ParseTree
+
+/**
+ * Works out which variables are only ever used by the code of the main method itself, so that they can be
+ * kept in its locals instead of static fields. A variable used in a lambda, in a list item compiled to a
+ * helper method of its own or in a construct the [Outliner] moved out, directly or through an alias, is
+ * captured and has to stay in a field. The same goes for the register.
+ */
+class EscapeAnalyser(
+        private val aliases: Map<String, ProgramContext>,
+        private val stackAnalyser: StackAnalyser,
+        private val outliner: Outliner
+) {
+
+    private val variables: MutableSet<String> = LinkedHashSet()
+    private val captured: MutableSet<String> = HashSet()
+    private var registerCaptured = false
+    private val seen: MutableSet<Pair<ProgramContext, Boolean>> = HashSet()
+
+    /**
+     * The variables of the analysed code that are not captured, in the order they first appear
+     */
+    val localVariables: Set<String>
+        get() = variables - captured
+
+    val registerIsLocal: Boolean
+        get() = !registerCaptured
+
+    fun analyse(node: ParseTree) {
+        visit(node, false)
+    }
+
+    private fun visit(node: ParseTree, inHelper: Boolean) {
+        if (!inHelper && node in outliner) {
+            visit(node, true)
+            return
+        }
+        when (node) {
+            is Variable_assnContext -> {
+                val name = node.variable()?.text ?: return
+                variables.add(name)
+                if (inHelper) {
+                    captured.add(name)
+                }
+                return
+            }
+            is AliasContext -> {
+                // only where the alias is used matters
+                return
+            }
+            is ElementContext -> {
+                val text = node.element_type()?.text ?: return
+                val alias = if (node.PREFIX() == null) aliases[text] else null
+                if (alias != null) {
+                    if (seen.add(alias to inHelper)) {
+                        visit(alias, inHelper)
+                    }
+                    return
+                }
+                if (node.PREFIX() == null && (text == "£" || text == "¥") || node.MODIFIER()?.text == "&") {
+                    registerCaptured = registerCaptured || inHelper
+                }
+                return
+            }
+            is LambdaContext, is One_element_lambdaContext, is Two_element_lambdaContext, is Three_element_lambdaContext -> {
+                for (i in 0 until node.childCount) {
+                    visit(node.getChild(i), true)
+                }
+                return
+            }
+            is ListContext -> {
+                // see Compiler.visitList
+                for (item in node.program()) {
+                    visit(item, inHelper || stackAnalyser.effectOf(item) != StackEffect.PUSH)
+                }
+                return
+            }
+        }
+        for (i in 0 until node.childCount) {
+            visit(node.getChild(i), inHelper)
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,148 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalLexer
+import org.antlr.v4.runtime.CommonToken
+import org.antlr.v4.runtime.Token
+
+/**
+ * Splits a program into the same tokens as [JyxalLexer], in a single pass over the source. Nearly every token
+ * is a single character, so all the ANTLR lexer's state machine does is look the character up; the few longer
+ * tokens are strings, which run to their closing quote, and comments, which are dropped.
+ */
+class Lexer(private val source: String) {
+
+    private var offset = 0
+    private var index = 0
+    private var line = 1
+    private var column = 0
+
+    /**
+     * The tokens of the program, ending with [Token.EOF], or null if it has a character [JyxalLexer] reports as
+     * an error, in which case it should be left to ANTLR
+     */
+    fun tokenize(): List<Token>? {
+        val tokens = ArrayList<Token>(source.length + 1)
+        while (offset < source.length) {
+            val startOffset = offset
+            val startIndex = index
+            val startLine = line
+            val startColumn = column
+            val c = source.codePointAt(offset)
+            val type = when (c) {
+                '#'.code -> {
+                    // a comment is made of pairs of characters, the first of which is not a newline
+                    consume(1)
+                    while (remaining() >= 2 && source[offset] != '\n') {
+                        consume(2)
+                    }
+                    continue
+                }
+                '"'.code -> string(JyxalLexer.NORMAL_STRING, '"')
+                '«'.code -> string(JyxalLexer.COMPRESSED_STRING, '«')
+                '\\'.code -> if (remaining() >= 2) consume(2, JyxalLexer.SINGLE_CHAR_STRING) else consume(1, JyxalLexer.LITERALLY_ANY_TEXT)
+                '‛'.code -> if (remaining() >= 3) consume(3, JyxalLexer.DOUBLE_CHAR_STRING) else consume(1, JyxalLexer.LITERALLY_ANY_TEXT)
+                else -> {
+                    if (c !in 0x10..0xFFFF && c != '\t'.code && c != '\n'.code && c != '\r'.code) return null
+                    val type = SINGLE_CHARACTERS[c.toChar()] ?: JyxalLexer.LITERALLY_ANY_TEXT
+                    consume(1, type)
+                }
+            }
+            val token = CommonToken(type, source.substring(startOffset, offset))
+            token.line = startLine
+            token.charPositionInLine = startColumn
+            token.startIndex = startIndex
+            token.stopIndex = index - 1
+            token.tokenIndex = tokens.size
+            tokens.add(token)
+        }
+        val eof = CommonToken(Token.EOF, "<EOF>")
+        eof.line = line
+        eof.charPositionInLine = column
+        eof.startIndex = index
+        eof.stopIndex = index - 1
+        eof.tokenIndex = tokens.size
+        tokens.add(eof)
+        return tokens
+    }
+
+    /**
+     * Lexes a string running to the next [quote], or just the quote if there is no other
+     */
+    private fun string(type: Int, quote: Char): Int {
+        val end = source.indexOf(quote, offset + 1)
+        if (end == -1) {
+            return consume(1, JyxalLexer.LITERALLY_ANY_TEXT)
+        }
+        return consume(source.codePointCount(offset, end + 1), type)
+    }
+
+    /**
+     * The number of characters left, counting surrogate pairs once as ANTLR does
+     */
+    private fun remaining(): Int {
+        // only ever compared against small numbers, so there is no need to count them all
+        var count = 0
+        var i = offset
+        while (i < source.length && count < 3) {
+            i += Character.charCount(source.codePointAt(i))
+            count++
+        }
+        return count
+    }
+
+    private fun consume(characters: Int, type: Int = 0): Int {
+        repeat(characters) {
+            val c = source.codePointAt(offset)
+            offset += Character.charCount(c)
+            index++
+            if (c == '\n'.code) {
+                line++
+                column = 0
+            } else {
+                column++
+            }
+        }
+        return type
+    }
+
+    companion object {
+        private val SINGLE_CHARACTERS: Map<Char, Int> = HashMap<Char, Int>().apply {
+            // ANTLR gives a character matched by several rules to the first of them
+            fun add(characters: String, type: Int) {
+                for (c in characters) {
+                    putIfAbsent(c, type)
+                }
+            }
+
+            add("<:×Ṁṫ₇¾₄↵¹Πæṡ∑ẎṄ√ḋ§²…ṅŻǍ-∵↔≠ɾ¤₴Ǐ⇧ġẏ⁼⁋∩≈∷₈÷ȧʀ₀Ḃ⊍∴∨ȯ⁰Ẋ⇩ẇ‹ḭ†‟⌈₁!€ƈǒɽʁ,Ȯ⋎τǎṙ%Ẇ∧↲ǐ„Ėβ₂Ḟ꘍*ẋ?₅ŀ⟇℅¥₆Ġṗ•½∞ṖꜝǓ›ε□Ṫ¦ė\$Ṙİ=↓ċ₃Ḣ_⟑ĊĿ¬¶ðḟ¡¯≥ǔż↑Ḋ¼⋏Ǒ>ṁ£⅛ḣ+±/↳∪∇≤ḃ⌐^ṠȦ", JyxalLexer.NON_ALPHA_ELEMENT)
+            add("¨Þø∆", JyxalLexer.PREFIX)
+            add("k", JyxalLexer.CONSTANT_PREFIX)
+            add("n", JyxalLexer.CONTEXT_VAR)
+            add("¢", JyxalLexer.ALIAS)
+            add("ßvƒɖ⁺₌₍~&", JyxalLexer.MODIFIER)
+            add("0123456789", JyxalLexer.DIGIT)
+            add("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz", JyxalLexer.ALPHA)
+            add(" \t\r\n", JyxalLexer.WHITESPACE)
+            add("→←", JyxalLexer.ASSN_SIGN)
+            add("λƛ'µ", JyxalLexer.LAMBDA_TYPE)
+            add("|", JyxalLexer.PIPE)
+            add("{", JyxalLexer.WHILE_OPEN)
+            add("}", JyxalLexer.WHILE_CLOSE)
+            add("[", JyxalLexer.IF_OPEN)
+            add("]", JyxalLexer.IF_CLOSE)
+            add("(", JyxalLexer.FOR_OPEN)
+            add(")", JyxalLexer.FOR_CLOSE)
+            add("⟨", JyxalLexer.LIST_OPEN)
+            add("⟩", JyxalLexer.LIST_CLOSE)
+            add("`", JyxalLexer.BACKTICK)
+            add(".", JyxalLexer.PERIOD)
+            add(";", JyxalLexer.SEMICOLON)
+            add("@", JyxalLexer.AT_SIGN)
+            add("»", JyxalLexer.COMPRESSED_NUMBER)
+            add("°", JyxalLexer.COMPLEX_SEPARATOR)
+            add("⁽", JyxalLexer.ONE_ELEMENT_LAMBDA)
+            add("‡", JyxalLexer.TWO_ELEMENT_LAMBDA)
+            add("≬", JyxalLexer.THREE_ELEMENT_LAMBDA)
+        }
+    }
+}
\ No newline at end of file
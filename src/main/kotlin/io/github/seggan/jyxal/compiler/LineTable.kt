@@ -0,0 +1,90 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalParser.FileContext
+import io.github.seggan.jyxal.antlr.JyxalParser.RULE_program_node
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.tree.Trees
+
+/**
+ * Maps the line numbers of compiled code back to the program. Vyxal programs are mostly one line long, so
+ * the code of each program node is given the offset of its first character plus one as its line number,
+ * and this says which line, column and node that is.
+ */
+class LineTable(val entries: List<Entry>) {
+
+    class Entry(val line: Int, val offset: Int, val sourceLine: Int, val column: Int, val node: String) {
+
+        override fun toString(): String {
+            return "$node at $sourceLine:$column"
+        }
+    }
+
+    private val byLine: Map<Int, Entry> = entries.associateBy { it.line }
+
+    operator fun get(line: Int): Entry? = byLine[line]
+
+    /**
+     * One tab separated line per entry, after a header
+     */
+    fun write(out: Appendable) {
+        out.append("line\toffset\tposition\tnode\n")
+        for (entry in entries) {
+            out.append("${entry.line}\t${entry.offset}\t${entry.sourceLine}:${entry.column}\t${entry.node}\n")
+        }
+    }
+
+    companion object {
+        /**
+         * Class files only have room for line numbers up to this
+         */
+        private const val MAX_LINE = 65535
+
+        private const val MAX_NODE_LENGTH = 12
+
+        /**
+         * The line number the code of the node starting with [token] is given, or zero if there is none
+         */
+        fun lineOf(token: Token): Int {
+            val line = token.startIndex + 1
+            return if (line in 1..MAX_LINE) line else 0
+        }
+
+        fun of(file: FileContext): LineTable {
+            val entries = Trees.findAllRuleNodes(file, RULE_program_node)
+                    .map { it as ParserRuleContext }
+                    .filter { it.start != null && lineOf(it.start) != 0 }
+                    .distinctBy { lineOf(it.start) }
+                    .sortedBy { it.start.startIndex }
+                    .map { Entry(lineOf(it.start), it.start.startIndex, it.start.line, it.start.charPositionInLine + 1, describe(it.text)) }
+            return LineTable(entries)
+        }
+
+        fun read(lines: List<String>): LineTable {
+            val entries = lines.drop(1).filter { it.isNotEmpty() }.map { line ->
+                val (number, offset, position, node) = line.split('\t', limit = 4)
+                val (sourceLine, column) = position.split(':')
+                Entry(number.toInt(), offset.toInt(), sourceLine.toInt(), column.toInt(), node)
+            }
+            return LineTable(entries)
+        }
+
+        /**
+         * Shortens the text of a node to what it starts with, without anything that would get in the way of
+         * the formats it is written in: the separators of collapsed stacks and of [write]
+         */
+        private fun describe(text: String): String {
+            val end = text.indexOfFirst { it.isWhitespace() || it == ';' }
+            val cut = if (end == -1) text else text.substring(0, end)
+            if (cut.codePointCount(0, cut.length) <= MAX_NODE_LENGTH && cut.length == text.length) {
+                return cut
+            }
+            val short = if (cut.codePointCount(0, cut.length) > MAX_NODE_LENGTH) {
+                cut.substring(0, cut.offsetByCodePoints(0, MAX_NODE_LENGTH))
+            } else {
+                cut
+            }
+            return "$short…"
+        }
+    }
+}
\ No newline at end of file
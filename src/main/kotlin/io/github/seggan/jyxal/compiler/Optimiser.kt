@@ -4,62 +4,168 @@ import io.github.seggan.jyxal.compiler.wrappers.JyxalMethod
 import org.objectweb.asm.Opcodes.*
 import org.objectweb.asm.Type
 import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.FieldInsnNode
 import org.objectweb.asm.tree.InsnList
 import org.objectweb.asm.tree.InsnNode
+import org.objectweb.asm.tree.LdcInsnNode
 import org.objectweb.asm.tree.MethodInsnNode
 import org.objectweb.asm.tree.VarInsnNode
+import org.objectweb.asm.tree.analysis.BasicInterpreter
+import org.objectweb.asm.tree.analysis.SourceInterpreter
+import java.util.BitSet
 
-fun optimise(codeBlock: InsnList, jyxalMethod: JyxalMethod) {
-    // first remove all stack loads
-    val toRemove = HashSet<AbstractInsnNode>()
-    for (insn in codeBlock) {
-        if (insn is VarInsnNode && insn.`var` == jyxalMethod.stackVar && insn.opcode == ALOAD) {
-            toRemove.add(insn)
-            val next = insn.next
-            if (next != null && next.opcode == SWAP) {
-                toRemove.add(next)
-            }
+/**
+ * Optimises the use of the program stack across the whole of [method]: the stack loads are moved right
+ * next to the calls they are for, the stack is [allocated][allocateStack] to locals, and the stores and
+ * loads that leaves behind are cleaned up until nothing more goes. Returns the number of calls to the
+ * [io.github.seggan.jyxal.runtime.ProgramStack] that were removed.
+ */
+fun optimise(method: JyxalMethod): Int {
+    val before = countStackCalls(method.instructions)
+    moveStackLoads(method)
+    allocateStack(method)
+    // cleaning up can move a load right after the store it reads, which can then be forwarded
+    do {
+        val changed = removeDeadStores(method)
+        cleanUp(method.instructions)
+    } while (changed)
+    return before - countStackCalls(method.instructions)
+}
+
+private fun countStackCalls(instructions: InsnList): Int {
+    return instructions.count { it is MethodInsnNode && it.owner == PROGRAM_STACK && it.name != "<init>" }
+}
+
+/**
+ * The code generator loads the stack before computing what to push onto it. This moves every such load to
+ * right before the call it is the receiver of, followed by a `SWAP` if the call takes an argument, wherever
+ * the load is the only value the receiver can come from.
+ */
+private fun moveStackLoads(method: JyxalMethod) {
+    val graph = ControlFlowGraph(method, SourceInterpreter())
+    // the calls each load is the receiver of, with the number of values above it
+    val receivers = LinkedHashMap<VarInsnNode, MutableList<Pair<MethodInsnNode, Int>>>()
+    for ((i, insn) in graph.instructions.withIndex()) {
+        if (insn !is MethodInsnNode) continue
+        val frame = graph.frames[i] ?: continue
+        val arguments = Type.getArgumentTypes(insn.desc)
+        if (arguments.any { it.size != 1 }) continue
+        val above = when {
+            insn.owner == PROGRAM_STACK && insn.opcode == INVOKEVIRTUAL && arguments.size <= 1 -> arguments.size
+            insn.opcode == INVOKESTATIC && arguments.size == 1 && arguments[0].internalName == PROGRAM_STACK -> 0
+            else -> continue
+        }
+        val load = frame.getStack(frame.stackSize - 1 - above).insns.singleOrNull()
+        if (load is VarInsnNode && load.opcode == ALOAD && load.`var` == method.stackVar) {
+            receivers.getOrPut(load) { ArrayList(1) }.add(insn to above)
         }
     }
-    for (insn in toRemove) {
-        codeBlock.remove(insn)
+    val instructions = method.instructions
+    for ((load, calls) in receivers) {
+        // a load used on more than one path is left where it is
+        val (call, above) = calls.singleOrNull() ?: continue
+        val next = load.next
+        if (above == 0 && next == call || above == 1 && next.opcode == SWAP && next.next == call) continue
+        if (next.opcode in DUP..DUP2_X2) continue
+        instructions.remove(load)
+        instructions.insertBefore(call, VarInsnNode(ALOAD, method.stackVar))
+        if (above == 1) {
+            instructions.insertBefore(call, InsnNode(SWAP))
+        }
     }
-    toRemove.clear()
-    toRemove.clear()
-    // then remove all push-pop pairs
-    for (insn in codeBlock) {
-        if (insn.opcode == INVOKEVIRTUAL
-                && insn is MethodInsnNode
-                && insn.name == "push"
-                && insn.desc == "(Ljava/lang/Object;)V"
-                && insn.owner == "io/github/seggan/jyxal/runtime/ProgramStack") {
-            val next = insn.getNext()
-            if (next.opcode == INVOKEVIRTUAL
-                    && next is MethodInsnNode
-                    && next.name == "pop"
-                    && next.desc == "()Ljava/lang/Object;"
-                    && next.owner == "io/github/seggan/jyxal/runtime/ProgramStack") {
-                toRemove.add(insn)
-                toRemove.add(next)
+}
+
+/**
+ * Removes the stores to the stack slots that are never read, and forwards a store that is immediately
+ * loaded back to where it is needed if nothing else reads it. Returns whether anything was removed.
+ */
+private fun removeDeadStores(method: JyxalMethod): Boolean {
+    val graph = ControlFlowGraph(method, BasicInterpreter())
+    val insns = graph.instructions
+    val firstSlot = method.stackSlot(0)
+    fun isStackSlot(insn: AbstractInsnNode) = insn is VarInsnNode && insn.`var` >= firstSlot
+
+    // the stack slots live after each instruction
+    val liveOut = Array(insns.size) { BitSet() }
+    val liveIn = Array(insns.size) { BitSet() }
+    var changed = true
+    while (changed) {
+        changed = false
+        for (i in insns.indices.reversed()) {
+            if (!graph.isReachable(i)) continue
+            val out = BitSet()
+            for (succ in graph.successors(i)) out.or(liveIn[succ])
+            for (succ in graph.exceptionSuccessors(i)) out.or(liveIn[succ])
+            val insn = insns[i]
+            val live = out.clone() as BitSet
+            if (isStackSlot(insn)) {
+                insn as VarInsnNode
+                if (insn.opcode == ASTORE) live.clear(insn.`var`) else live.set(insn.`var`)
+            }
+            liveOut[i] = out
+            if (live != liveIn[i]) {
+                liveIn[i] = live
+                changed = true
             }
         }
     }
-    for (insn in toRemove) {
-        codeBlock.remove(insn)
+
+    val instructions = method.instructions
+    var removed = false
+    for ((i, insn) in insns.withIndex()) {
+        if (!graph.isReachable(i) || !isStackSlot(insn) || insn.opcode != ASTORE) continue
+        val slot = (insn as VarInsnNode).`var`
+        val next = insn.next
+        if (!liveOut[i][slot]) {
+            instructions.set(insn, InsnNode(POP))
+            removed = true
+        } else if (next is VarInsnNode && next.opcode == ALOAD && next.`var` == slot && !liveOut[i + 1][slot]) {
+            instructions.remove(insn)
+            instructions.remove(next)
+            removed = true
+        }
     }
-    for (insn in codeBlock) {
-        if (insn is MethodInsnNode) {
-            if (insn.owner == "io/github/seggan/jyxal/runtime/ProgramStack" && insn.name != "<init>") {
-                val arguments = (Type.getArgumentsAndReturnSizes(insn.desc) shr 2) - 1
-                codeBlock.insertBefore(insn, VarInsnNode(ALOAD, jyxalMethod.stackVar))
-                if (arguments != 0) {
-                    // one argument
-                    codeBlock.insertBefore(insn, InsnNode(SWAP))
-                }
-            } else if (insn.desc.startsWith("(Lio/github/seggan/jyxal/runtime/ProgramStack;)")) {
-                // these all take the stack as input
-                codeBlock.insertBefore(insn, VarInsnNode(ALOAD, jyxalMethod.stackVar))
+    return removed
+}
+
+/**
+ * Removes values that are pushed only to be popped and swaps that can be done by loading in the other order
+ */
+private fun cleanUp(instructions: InsnList) {
+    var changed = true
+    while (changed) {
+        changed = false
+        var insn: AbstractInsnNode? = instructions.first
+        while (insn != null) {
+            val next = insn.next ?: break
+            val after = next.next
+            if (isPureLoad(insn) && next.opcode == POP || insn.opcode == SWAP && next.opcode == SWAP) {
+                instructions.remove(insn)
+                instructions.remove(next)
+                changed = true
+                insn = after
+            } else if (after != null && after.opcode == SWAP && isPureLoad(insn) && isPureLoad(next)) {
+                val resume = after.next
+                instructions.remove(next)
+                instructions.insertBefore(insn, next)
+                instructions.remove(after)
+                changed = true
+                insn = resume
+            } else {
+                insn = next
             }
         }
     }
+}
+
+/**
+ * Whether [insn] pushes a single word without side effects
+ */
+private fun isPureLoad(insn: AbstractInsnNode): Boolean {
+    return when (insn) {
+        is VarInsnNode -> insn.opcode == ALOAD || insn.opcode == ILOAD || insn.opcode == FLOAD
+        is FieldInsnNode -> insn.opcode == GETSTATIC && insn.owner == "jyxal/Main" && Type.getType(insn.desc).size == 1
+        is LdcInsnNode -> insn.cst is String || insn.cst is Int || insn.cst is Float
+        else -> insn.opcode == ACONST_NULL || insn.opcode in ICONST_M1..ICONST_5
+    }
 }
\ No newline at end of file
@@ -0,0 +1,267 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalParser.*
+import org.antlr.v4.runtime.tree.ParseTree
+
+/**
+ * Picks the parts of a program that are compiled to methods of their own, so that no method gets past the
+ * size HotSpot stops compiling methods at. Sizes are estimated from the parse tree. While a method is too
+ * big, the largest loop or if statement compiled into it is moved out, and once there are none worth moving
+ * its longest program is cut into runs of nodes that are moved out instead. Everything moved out is then
+ * split up the same way. A loop moved out is a method of its own that the JIT can compile, on stack
+ * replacement included, instead of a part of one it never will.
+ */
+class Outliner(private val aliases: Map<String, ProgramContext>, private val stackAnalyser: StackAnalyser) {
+
+    private val outlined: MutableSet<ParseTree> = HashSet()
+
+    /**
+     * The number of nodes in each run that is moved out, by its first node
+     */
+    private val runs: MutableMap<ParseTree, Int> = HashMap()
+    private val inRuns: MutableSet<ParseTree> = HashSet()
+
+    private val sizes: MutableMap<ParseTree, Int> = HashMap()
+
+    /**
+     * Whether [node] is compiled to a method of its own, by itself or as part of a run
+     */
+    operator fun contains(node: ParseTree): Boolean = node in outlined || node in inRuns
+
+    /**
+     * Whether [construct] is compiled to a method of its own by itself
+     */
+    fun isBlock(construct: ParseTree): Boolean = construct in outlined
+
+    /**
+     * The number of nodes in the run starting at [node], or null if none does
+     */
+    fun runAt(node: ParseTree): Int? = runs[node]
+
+    /**
+     * Plans the method compiled from [body] and every method in it
+     */
+    fun plan(body: List<ParseTree>) {
+        plan(body, null)
+    }
+
+    /**
+     * Plans a method, which is either [body] or, if [block] is given, that construct on its own
+     */
+    private fun plan(body: List<ParseTree>, block: ParseTree?) {
+        val nodes = if (block == null) body else children(block)
+        while (methodSize(body, block) > METHOD_BUDGET) {
+            val constructs = ArrayList<ParseTree>()
+            val programs = ArrayList<ProgramContext>()
+            for (node in nodes) {
+                scan(node, Scan(constructs, programs, ArrayList(), ArrayList()))
+            }
+            val largest = constructs.maxByOrNull(::sizeOf)
+            if (largest != null && sizeOf(largest) > MIN_BLOCK_SIZE) {
+                outlined.add(largest)
+            } else if (programs.sortedByDescending(::sizeOf).none(::cutIntoRuns)) {
+                break
+            }
+            // the sizes of everything around it have changed
+            sizes.clear()
+        }
+        val blocks = ArrayList<ParseTree>()
+        val methods = ArrayList<List<ParseTree>>()
+        for (node in nodes) {
+            scan(node, Scan(ArrayList(), ArrayList(), blocks, methods))
+        }
+        for (inner in blocks) {
+            plan(listOf(inner), inner)
+        }
+        for (method in methods) {
+            plan(method, null)
+        }
+    }
+
+    private fun methodSize(body: List<ParseTree>, block: ParseTree?): Int {
+        return if (block == null) body.sumOf(::sizeOf) else inlineSize(block)
+    }
+
+    /**
+     * What is compiled into a method: the [constructs] and [programs] that could be moved out of it, the
+     * [blocks] that already are and the bodies of the other [methods] in it, runs included
+     */
+    private class Scan(
+            val constructs: MutableList<ParseTree>,
+            val programs: MutableList<ProgramContext>,
+            val blocks: MutableList<ParseTree>,
+            val methods: MutableList<List<ParseTree>>
+    )
+
+    private fun scan(node: ParseTree, scan: Scan) {
+        when (node) {
+            in outlined -> {
+                scan.blocks.add(node)
+                return
+            }
+            is If_statementContext, is Fori_loopContext, is For_loopContext, is While_loopContext -> scan.constructs.add(node)
+            is ProgramContext -> {
+                scan.programs.add(node)
+                val nodes = node.program_node()
+                var i = 0
+                while (i < nodes.size) {
+                    val run = runs[nodes[i]]
+                    if (run != null) {
+                        scan.methods.add(nodes.subList(i, i + run))
+                        i += run
+                    } else {
+                        scan(nodes[i++], scan)
+                    }
+                }
+                return
+            }
+            is LambdaContext -> {
+                scan.methods.add(listOf(node.program()))
+                return
+            }
+            is One_element_lambdaContext, is Two_element_lambdaContext, is Three_element_lambdaContext -> {
+                scan.methods.add(children(node))
+                return
+            }
+            is ListContext -> {
+                // see Compiler.visitList
+                for (item in node.program()) {
+                    if (stackAnalyser.effectOf(item) == StackEffect.PUSH) {
+                        scan(item, scan)
+                    } else {
+                        scan.methods.add(listOf(item))
+                    }
+                }
+                return
+            }
+            // aliases are compiled wherever they are used, so they are left whole
+            is ElementContext -> return
+        }
+        for (child in children(node)) {
+            scan(child, scan)
+        }
+    }
+
+    /**
+     * Cuts what is left of [program] into runs of nodes no bigger than [RUN_BUDGET], returning whether there
+     * were any. A node that breaks out of the loop it is in has to stay with the loop.
+     */
+    private fun cutIntoRuns(program: ProgramContext): Boolean {
+        val nodes = program.program_node()
+        var cut = false
+        var start = 0
+        var size = 0
+        var i = 0
+        while (i <= nodes.size) {
+            val node = nodes.getOrNull(i)
+            val run = node?.let(runs::get)
+            val nodeSize = if (node == null || run != null || breaksOut(node)) -1 else sizeOf(node)
+            if (nodeSize == -1 || size + nodeSize > RUN_BUDGET) {
+                if (i - start > 1) {
+                    runs[nodes[start]] = i - start
+                    inRuns.addAll(nodes.subList(start, i))
+                    cut = true
+                }
+                start = if (nodeSize == -1) i + (run ?: 1) else i
+                size = 0
+            }
+            if (nodeSize != -1) {
+                size += nodeSize
+            }
+            i += run ?: 1
+        }
+        return cut
+    }
+
+    /**
+     * Whether [node] has an `X` that jumps out of the code it is in, rather than out of a loop or if
+     * statement in it
+     */
+    fun breaksOut(node: ParseTree): Boolean {
+        return breaksOut(node, HashSet())
+    }
+
+    private fun breaksOut(node: ParseTree, seen: MutableSet<ProgramContext>): Boolean {
+        when (node) {
+            is If_statementContext, is Fori_loopContext, is For_loopContext, is While_loopContext -> return false
+            is ElementContext -> {
+                if (node.PREFIX() != null) return false
+                val text = node.element_type()?.text
+                val alias = aliases[text]
+                return if (alias != null) seen.add(alias) && breaksOut(alias, seen) else text == "X"
+            }
+        }
+        return children(node).any { breaksOut(it, seen) }
+    }
+
+    private fun sizeOf(node: ParseTree): Int {
+        if (node in outlined) return CALL_SIZE
+        return sizes.getOrPut(node) { inlineSize(node) }
+    }
+
+    /**
+     * Roughly how many bytes of code [node] compiles to where it is
+     */
+    private fun inlineSize(node: ParseTree): Int {
+        return when (node) {
+            is ElementContext -> {
+                val alias = if (node.PREFIX() == null) aliases[node.element_type()?.text] else null
+                if (alias != null) sizeOf(alias) else ELEMENT_SIZE
+            }
+            is ListContext -> LIST_SIZE + node.program().sumOf { item ->
+                if (stackAnalyser.effectOf(item) == StackEffect.PUSH) ITEM_SIZE + sizeOf(item) else ITEM_SIZE + CALL_SIZE
+            }
+            is LiteralContext -> if (node.list() != null) sizeOf(node.list()) else ELEMENT_SIZE
+            is Variable_assnContext -> ELEMENT_SIZE
+            is LambdaContext, is One_element_lambdaContext, is Two_element_lambdaContext, is Three_element_lambdaContext -> LAMBDA_SIZE
+            is ProgramContext -> {
+                val nodes = node.program_node()
+                var size = 0
+                var i = 0
+                while (i < nodes.size) {
+                    val run = runs[nodes[i]]
+                    if (run != null) {
+                        size += CALL_SIZE
+                        i += run
+                    } else {
+                        size += sizeOf(nodes[i++])
+                    }
+                }
+                size
+            }
+            is If_statementContext -> IF_SIZE + children(node).sumOf(::sizeOf)
+            is Fori_loopContext, is For_loopContext, is While_loopContext -> LOOP_SIZE + children(node).sumOf(::sizeOf)
+            else -> children(node).sumOf(::sizeOf)
+        }
+    }
+
+    private fun children(node: ParseTree): List<ParseTree> {
+        return (0 until node.childCount).map(node::getChild)
+    }
+
+    companion object {
+        /**
+         * Well under HotSpot's limit of 8000 bytes, as the sizes are only estimates
+         */
+        private const val METHOD_BUDGET = 4000
+
+        private const val RUN_BUDGET = METHOD_BUDGET / 2
+
+        private const val ELEMENT_SIZE = 10
+        private const val LAMBDA_SIZE = 20
+        private const val LIST_SIZE = 16
+        private const val ITEM_SIZE = 6
+        private const val IF_SIZE = 16
+        private const val LOOP_SIZE = 48
+
+        /**
+         * The size of the call to a construct that has been moved out
+         */
+        private const val CALL_SIZE = 12
+
+        /**
+         * Anything smaller is not worth a method of its own
+         */
+        private const val MIN_BLOCK_SIZE = 4 * CALL_SIZE
+    }
+}
\ No newline at end of file
@@ -0,0 +1,633 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalLexer
+import io.github.seggan.jyxal.antlr.JyxalParser
+import io.github.seggan.jyxal.antlr.JyxalParser.*
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.CommonTokenStream
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.tree.TerminalNodeImpl
+import java.util.ArrayDeque
+
+/**
+ * Builds the same tree as [JyxalParser] from the tokens of [Lexer], without ANTLR's adaptive prediction.
+ * Almost every construct is known from its first token. Where the grammar does leave a choice, such as whether
+ * a `|` ends the condition of a while loop or the else branch of an if inside it, ANTLR takes the first
+ * alternative the rest of the program can be parsed with, so this takes the first alternative and goes back
+ * to the next if the rest of the program fails to parse.
+ *
+ * What is left to parse is kept as a stack of goals rather than on the call stack, which is what makes going
+ * back to an earlier choice cheap, and keeps deeply nested programs from overflowing the stack.
+ *
+ * ANTLR is not gone, and is not meant to go with this. The tree is still made of the contexts generated from
+ * the grammar, as the compiler, the interpreter and every analysis walk those, and the tokens keep the types
+ * of [JyxalLexer]. A program this cannot parse is handed to [parseWithAntlr], so that syntax errors are
+ * reported and recovered from exactly as before. Only the adaptive prediction, where the time went, is left
+ * out of the programs that parse.
+ */
+class Parser(private val tokens: List<Token>) {
+
+    private class Goals(val goal: () -> Boolean, val next: Goals?)
+
+    private class Choice(
+            val pos: Int,
+            val goals: Goals?,
+            val ctx: ParserRuleContext?,
+            val trail: Int,
+            val conditions: Int,
+            val nodesOwed: Int,
+            val alternative: () -> Boolean
+    )
+
+    private var pos = 0
+    private var goals: Goals? = null
+    private var ctx: ParserRuleContext? = null
+
+    /**
+     * The number of while loops waiting for the `|` that ends their condition
+     */
+    private var conditions = 0
+
+    /**
+     * The number of nodes the one, two and three element lambdas being parsed still need. While there are
+     * any, every construct that could end sooner has to leave a choice to, as the lambda might need what it
+     * would have taken.
+     */
+    private var nodesOwed = 0
+
+    private val choices = ArrayDeque<Choice>()
+
+    /**
+     * The contexts given a child since the oldest choice, so going back to it can take the children off again
+     */
+    private val trail = ArrayList<ParserRuleContext>()
+
+    private val lastAlias = tokens.indexOfLast { it.type == ALIAS }
+
+    private val programLoop: () -> Boolean = ::continueProgram
+    private val listRest: () -> Boolean = ::continueList
+    private val compressedRest: () -> Boolean = ::continueCompressedNumber
+    private val node: () -> Boolean = {
+        nodesOwed--
+        isNodeStart(type()) && programNode()
+    }
+
+    /**
+     * Parses the program, returning null if it has a syntax error or takes too long to parse
+     */
+    fun file(): FileContext? {
+        val file = enter(::FileContext)
+        then({ aliases() }, { program(); true }, { match(Token.EOF) })
+        // a program that needs to go back this often is better left to ANTLR, which tries all the
+        // alternatives at once
+        val budget = STEPS_PER_TOKEN * tokens.size + MIN_STEPS
+        var steps = 0L
+        while (true) {
+            val next = goals ?: return file
+            goals = next.next
+            if (!next.goal() && !backtrack()) return null
+            if (++steps > budget) return null
+        }
+    }
+
+    private fun aliases(): Boolean {
+        if (pos <= lastAlias) {
+            choice { true }
+            then({ alias() }, { aliases() })
+        }
+        return true
+    }
+
+    private fun alias(): Boolean {
+        val alias = enter(::AliasContext)
+        then({ program(); true }, { match(ALIAS) }, {
+            alias.theAlias = elementType()
+            alias.theAlias != null
+        }, {
+            while (type() == WHITESPACE) {
+                match(WHITESPACE)
+            }
+            true
+        })
+        return true
+    }
+
+    private fun program(): ProgramContext {
+        val program = enter(::ProgramContext)
+        push(programLoop)
+        return program
+    }
+
+    private fun continueProgram(): Boolean {
+        val type = type()
+        if (type == WHITESPACE) {
+            match(WHITESPACE)
+            push(programLoop)
+        } else if (isNodeStart(type)) {
+            if (nodesOwed > 0) {
+                choice { true }
+            }
+            push(programLoop)
+            return programNode()
+        }
+        return true
+    }
+
+    private fun programNode(): Boolean {
+        enter(::Program_nodeContext)
+        return when (type()) {
+            DIGIT -> {
+                val digits = count(pos, DIGIT)
+                if (digits <= MAX_FORI_DIGITS && type(pos + digits) == FOR_OPEN) {
+                    // a number followed by a for loop over a variable could parse where the fori loop does not
+                    if (variableLength(pos + digits + 1) > 0 || nodesOwed > 0) {
+                        choice { literal() }
+                    }
+                    statement()
+                } else {
+                    literal()
+                }
+            }
+            IF_OPEN, FOR_OPEN, WHILE_OPEN, LAMBDA_TYPE, ONE_ELEMENT_LAMBDA, TWO_ELEMENT_LAMBDA,
+            THREE_ELEMENT_LAMBDA, ASSN_SIGN -> statement()
+            MODIFIER, PREFIX, ALPHA, NON_ALPHA_ELEMENT, CONTEXT_VAR -> element() != null
+            else -> literal()
+        }
+    }
+
+    private fun literal(): Boolean {
+        enter(::LiteralContext)
+        return when (type()) {
+            DIGIT -> {
+                val length = numberLength(pos)
+                if (length > 0) {
+                    shorterNumbers(pos, length) { number(it) != null }
+                    number(length) != null
+                } else {
+                    val integer = count(pos, DIGIT)
+                    val fraction = if (type(pos + integer) == PERIOD) count(pos + integer + 1, DIGIT) else 0
+                    val first = if (fraction > 0) integer + fraction + 1 else integer
+                    if (type(pos + first + 1) != DIGIT) return false
+                    val second = numberLength(pos + first + 1)
+                    if (second == 0) return false
+                    shorterNumbers(pos + first + 1, second) { complexNumber(first, it) != null }
+                    complexNumber(first, second) != null
+                }
+            }
+            COMPRESSED_NUMBER -> compressedNumber()
+            LIST_OPEN -> list()
+            CONSTANT_PREFIX -> constant() != null
+            else -> rule(::StringContext) { match(type()) } != null
+        }
+    }
+
+    private fun number(length: Int) = rule(::NumberContext) {
+        val digits = count(pos, DIGIT)
+        if (length <= digits) {
+            integer(length)
+        } else {
+            integer(digits)
+            match(PERIOD)
+            integer(length - digits - 1)
+        }
+        true
+    }
+
+    private fun integer(digits: Int) = rule(::IntegerContext) {
+        repeat(digits) {
+            match(DIGIT)
+        }
+        true
+    }
+
+    /**
+     * The number of tokens in the number starting at [start], or 0 if it can only start a complex number.
+     * ANTLR takes a number over a complex number if the rest still parses, so a number followed by `°`
+     * leaves only its last digit to start the complex number.
+     */
+    private fun numberLength(start: Int): Int {
+        val integer = count(start, DIGIT)
+        val fraction = if (type(start + integer) == PERIOD) count(start + integer + 1, DIGIT) else 0
+        val length = if (fraction > 0) integer + fraction + 1 else integer
+        return when {
+            type(start + length) != COMPLEX_SEPARATOR -> length
+            fraction >= 2 -> length - 1
+            integer >= 2 -> integer - 1
+            else -> 0
+        }
+    }
+
+    /**
+     * Leaves a choice to parse the number of [length] tokens starting at [start] with [parse] cut short, in case
+     * a lambda needs its last digits
+     */
+    private inline fun shorterNumbers(start: Int, length: Int, crossinline parse: (Int) -> Boolean) {
+        if (nodesOwed == 0) return
+        val integer = minOf(count(start, DIGIT), length)
+        // cutting the integer part short leaves no room for the fraction
+        for (shorter in 1 until integer) {
+            choice { parse(shorter) }
+        }
+        for (shorter in integer + 2 until length) {
+            choice { parse(shorter) }
+        }
+    }
+
+    private fun complexNumber(first: Int, second: Int) = rule(::Complex_numberContext) {
+        number(first)
+        match(COMPLEX_SEPARATOR)
+        number(second) != null
+    }
+
+    private fun compressedNumber(): Boolean {
+        enter(::Compressed_numberContext)
+        match(COMPRESSED_NUMBER)
+        push(compressedRest)
+        return true
+    }
+
+    private fun continueCompressedNumber(): Boolean {
+        when (type()) {
+            Token.EOF -> return false
+            COMPRESSED_NUMBER -> {
+                // the wildcard is lazy, so the first `»` ends the number unless the rest fails to parse
+                if (tokens.subList(pos + 1, tokens.size).any { it.type == COMPRESSED_NUMBER }) {
+                    choice {
+                        match(COMPRESSED_NUMBER)
+                        push(compressedRest)
+                        true
+                    }
+                }
+                return match(COMPRESSED_NUMBER)
+            }
+            else -> {
+                match(type())
+                push(compressedRest)
+                return true
+            }
+        }
+    }
+
+    private fun list(): Boolean {
+        enter(::ListContext)
+        match(LIST_OPEN)
+        push(listRest)
+        program()
+        return true
+    }
+
+    private fun continueList(): Boolean {
+        if (type() == PIPE) {
+            if (pipeMayBeNeeded()) {
+                choice { true }
+            }
+            match(PIPE)
+            push(listRest)
+            program()
+        } else {
+            optional(LIST_CLOSE)
+        }
+        return true
+    }
+
+    private fun constant() = rule(::ConstantContext) {
+        match(CONSTANT_PREFIX)
+        if (isElementType(type())) elementType() != null else match(DIGIT)
+    }
+
+    private fun statement(): Boolean {
+        enter(::StatementContext)
+        return when (type()) {
+            IF_OPEN -> ifStatement()
+            DIGIT -> foriLoop()
+            FOR_OPEN -> forLoop()
+            WHILE_OPEN -> whileLoop()
+            LAMBDA_TYPE -> lambda()
+            ONE_ELEMENT_LAMBDA -> elementLambda(::One_element_lambdaContext, 1)
+            TWO_ELEMENT_LAMBDA -> elementLambda(::Two_element_lambdaContext, 2)
+            THREE_ELEMENT_LAMBDA -> elementLambda(::Three_element_lambdaContext, 3)
+            else -> {
+                var length = count(pos + 1, ALPHA, DIGIT, CONSTANT_PREFIX, CONTEXT_VAR)
+                // like a number, a variable leaves its last digit to a number that could not parse without it
+                val next = type(pos + 1 + length)
+                if (length >= 2 && type(pos + length) == DIGIT
+                        && (next == COMPLEX_SEPARATOR || next == PERIOD && type(pos + length + 2) == DIGIT)) {
+                    length--
+                }
+                if (nodesOwed > 0) {
+                    for (shorter in 1 until length) {
+                        choice { variableAssn(shorter) != null }
+                    }
+                }
+                length > 0 && variableAssn(length) != null
+            }
+        }
+    }
+
+    private fun ifStatement(): Boolean {
+        enter(::If_statementContext)
+        match(IF_OPEN)
+        push {
+            if (type() == PIPE) {
+                if (pipeMayBeNeeded()) {
+                    choice { true }
+                }
+                match(PIPE)
+                push { optional(IF_CLOSE) }
+                program()
+            } else {
+                optional(IF_CLOSE)
+            }
+            true
+        }
+        program()
+        return true
+    }
+
+    private fun foriLoop(): Boolean {
+        enter(::Fori_loopContext)
+        while (type() == DIGIT) {
+            match(DIGIT)
+        }
+        match(FOR_OPEN)
+        push { optional(FOR_CLOSE) }
+        program()
+        return true
+    }
+
+    private fun forLoop(): Boolean {
+        enter(::For_loopContext)
+        match(FOR_OPEN)
+        push { optional(FOR_CLOSE) }
+        val variable = variableLength(pos)
+        if (variable > 0) {
+            if (pipeMayBeNeeded()) {
+                choice {
+                    program()
+                    true
+                }
+            }
+            variable(variable)
+            match(PIPE)
+        }
+        program()
+        return true
+    }
+
+    /**
+     * The number of tokens in the variable of a for loop starting at [start], or 0 if there is none
+     */
+    private fun variableLength(start: Int): Int {
+        val length = count(start, ALPHA, DIGIT, CONSTANT_PREFIX, CONTEXT_VAR)
+        return if (length > 0 && type(start + length) == PIPE) length else 0
+    }
+
+    private fun whileLoop(): Boolean {
+        val loop = enter(::While_loopContext)
+        match(WHILE_OPEN)
+        push { optional(WHILE_CLOSE) }
+        if (mayHaveCondition(pos)) {
+            choice {
+                loop.cond = null
+                loop.body = program()
+                true
+            }
+            push {
+                loop.body = program()
+                true
+            }
+            push {
+                conditions--
+                match(PIPE)
+            }
+            conditions++
+            loop.cond = program()
+        } else {
+            loop.body = program()
+        }
+        return true
+    }
+
+    /**
+     * Whether the while loop whose body starts at [start] could have a condition. The condition has to end at
+     * a `|` before anything closes a construct opened outside of it.
+     */
+    private fun mayHaveCondition(start: Int): Boolean {
+        val open = IntArray(CLOSERS.size)
+        for (i in start until tokens.size) {
+            when (val type = tokens[i].type) {
+                PIPE -> return true
+                // anything can be inside a compressed number, so there is no telling
+                COMPRESSED_NUMBER -> return true
+                ALIAS, Token.EOF -> return false
+                else -> {
+                    val opener = OPENERS.indexOf(type)
+                    if (opener != -1) {
+                        open[opener]++
+                    }
+                    val closer = CLOSERS.indexOf(type)
+                    if (closer != -1 && open[closer]-- == 0) {
+                        return false
+                    }
+                }
+            }
+        }
+        return false
+    }
+
+    private fun lambda(): Boolean {
+        enter(::LambdaContext)
+        match(LAMBDA_TYPE)
+        push { optional(SEMICOLON) }
+        val arity = count(pos, DIGIT)
+        if (arity > 0 && type(pos + arity) == PIPE) {
+            if (pipeMayBeNeeded()) {
+                choice {
+                    program()
+                    true
+                }
+            }
+            integer(arity)
+            match(PIPE)
+        }
+        program()
+        return true
+    }
+
+    private fun elementLambda(create: (ParserRuleContext?, Int) -> ParserRuleContext, nodes: Int): Boolean {
+        enter(create)
+        match(type())
+        nodesOwed += nodes
+        repeat(nodes) {
+            push(node)
+        }
+        return true
+    }
+
+    /**
+     * Whether something outside the construct being parsed could need the `|` it is about to take. Otherwise
+     * taking it is always the right choice, as everything that can follow a construct is optional.
+     */
+    private fun pipeMayBeNeeded() = conditions > 0 || nodesOwed > 0
+
+    private fun variableAssn(length: Int) = rule(::Variable_assnContext) {
+        match(ASSN_SIGN)
+        variable(length) != null
+    }
+
+    private fun variable(length: Int) = rule(::VariableContext) {
+        repeat(length) {
+            match(type())
+        }
+        true
+    }
+
+    private fun element() = rule(::ElementContext) {
+        if (type() == MODIFIER) {
+            match(MODIFIER)
+        }
+        if (type() == PREFIX) {
+            match(PREFIX)
+        }
+        elementType() != null
+    }
+
+    private fun elementType(): Element_typeContext? {
+        if (!isElementType(type())) return null
+        return rule(::Element_typeContext) { match(type()) }
+    }
+
+    private fun type(i: Int = pos): Int = tokens[minOf(i, tokens.size - 1)].type
+
+    private fun count(start: Int, vararg types: Int): Int {
+        var i = start
+        while (type(i) in types) {
+            i++
+        }
+        return i - start
+    }
+
+    private fun match(type: Int): Boolean {
+        if (type() != type) return false
+        val node = TerminalNodeImpl(tokens[pos++])
+        ctx!!.addChild(node)
+        record(ctx!!)
+        return true
+    }
+
+    private fun optional(type: Int): Boolean {
+        if (type() == type) {
+            match(type)
+        }
+        return true
+    }
+
+    /**
+     * Starts a rule whose contents are parsed by the goals pushed after this, in the order ANTLR would have
+     */
+    private fun <T : ParserRuleContext> enter(create: (ParserRuleContext?, Int) -> T): T {
+        val parent = ctx
+        // there is no state of ANTLR's machine to record, so every rule looks like the root to ANTLR
+        val rule = create(parent, -1)
+        if (parent != null) {
+            parent.addChild(rule)
+            record(parent)
+        }
+        rule.start = tokens[pos]
+        ctx = rule
+        push {
+            rule.stop = if (pos > 0) tokens[pos - 1] else null
+            ctx = parent
+            true
+        }
+        return rule
+    }
+
+    /**
+     * Parses a rule there is no choice in straight away, returning null if it does not match
+     */
+    private inline fun <T : ParserRuleContext> rule(create: (ParserRuleContext?, Int) -> T, body: (T) -> Boolean): T? {
+        val parent = ctx!!
+        val rule = create(parent, -1)
+        parent.addChild(rule)
+        record(parent)
+        rule.start = tokens[pos]
+        ctx = rule
+        if (!body(rule)) return null
+        rule.stop = tokens[pos - 1]
+        ctx = parent
+        return rule
+    }
+
+    private fun record(parent: ParserRuleContext) {
+        if (choices.isNotEmpty()) {
+            trail.add(parent)
+        }
+    }
+
+    private fun push(goal: () -> Boolean) {
+        goals = Goals(goal, goals)
+    }
+
+    /**
+     * Pushes [goals] so they are reached in the order given
+     */
+    private fun then(vararg goals: () -> Boolean) {
+        for (i in goals.indices.reversed()) {
+            push(goals[i])
+        }
+    }
+
+    /**
+     * Remembers where the parse is, so it can go back and try [alternative] if what comes next fails
+     */
+    private fun choice(alternative: () -> Boolean) {
+        choices.push(Choice(pos, goals, ctx, trail.size, conditions, nodesOwed, alternative))
+    }
+
+    private fun backtrack(): Boolean {
+        val choice = choices.poll() ?: return false
+        while (trail.size > choice.trail) {
+            trail.removeAt(trail.size - 1).removeLastChild()
+        }
+        pos = choice.pos
+        goals = choice.goals
+        ctx = choice.ctx
+        conditions = choice.conditions
+        nodesOwed = choice.nodesOwed
+        push(choice.alternative)
+        return true
+    }
+
+    companion object {
+        private const val MAX_FORI_DIGITS = 9
+        private const val STEPS_PER_TOKEN = 64L
+        private const val MIN_STEPS = 4096L
+
+        private val OPENERS = intArrayOf(WHILE_OPEN, IF_OPEN, FOR_OPEN, LIST_OPEN, LAMBDA_TYPE)
+        private val CLOSERS = intArrayOf(WHILE_CLOSE, IF_CLOSE, FOR_CLOSE, LIST_CLOSE, SEMICOLON)
+
+        private fun isElementType(type: Int) = type == ALPHA || type == NON_ALPHA_ELEMENT || type == CONTEXT_VAR
+
+        private fun isNodeStart(type: Int) = when (type) {
+            NON_ALPHA_ELEMENT, PREFIX, CONSTANT_PREFIX, CONTEXT_VAR, MODIFIER, DIGIT, ALPHA, ASSN_SIGN, LAMBDA_TYPE,
+            NORMAL_STRING, COMPRESSED_STRING, SINGLE_CHAR_STRING, DOUBLE_CHAR_STRING, WHILE_OPEN, IF_OPEN,
+            FOR_OPEN, LIST_OPEN, COMPRESSED_NUMBER, ONE_ELEMENT_LAMBDA, TWO_ELEMENT_LAMBDA,
+            THREE_ELEMENT_LAMBDA -> true
+            else -> false
+        }
+
+        /**
+         * Parses [source] with the hand-written lexer and parser, leaving programs they cannot parse to ANTLR,
+         * which reports and recovers from syntax errors as it always has
+         */
+        fun parse(source: String): FileContext {
+            return Lexer(source).tokenize()?.let { Parser(it).file() } ?: parseWithAntlr(source)
+        }
+
+        fun parseWithAntlr(source: String): FileContext {
+            return JyxalParser(CommonTokenStream(JyxalLexer(CharStreams.fromString(source)))).file()
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,244 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.compiler.wrappers.JyxalMethod
+import org.objectweb.asm.Opcodes.*
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.AbstractInsnNode
+import org.objectweb.asm.tree.JumpInsnNode
+import org.objectweb.asm.tree.LookupSwitchInsnNode
+import org.objectweb.asm.tree.MethodInsnNode
+import org.objectweb.asm.tree.TableSwitchInsnNode
+import org.objectweb.asm.tree.VarInsnNode
+import org.objectweb.asm.tree.analysis.BasicInterpreter
+import java.util.ArrayDeque
+import java.util.BitSet
+
+internal const val PROGRAM_STACK = "io/github/seggan/jyxal/runtime/ProgramStack"
+private const val PROGRAM_STACK_DESC = "(L$PROGRAM_STACK;)"
+private const val RUNTIME_METHODS = "io/github/seggan/jyxal/runtime/RuntimeMethods"
+private const val RUNTIME_HELPERS = "io/github/seggan/jyxal/runtime/RuntimeHelpers"
+
+/**
+ * Keeps the values on top of the program stack in locals for as long as the depth of the stack is statically
+ * known, so that pushes and pops compile to plain stores and loads. The value at depth `i` above the real
+ * [io.github.seggan.jyxal.runtime.ProgramStack] always lives in [JyxalMethod.stackSlot] `i`, so paths that
+ * meet with the same number of values in locals need no code at all. Where they disagree, the paths are
+ * spilled back onto the program stack before they meet. Values are also spilled before anything that looks
+ * at the stack as a whole (`!`, `W`, elements with a dynamic stack effect). A pop with no known value left
+ * is kept as is, as it may need to fall back to implicit input.
+ *
+ * Code protected by an exception handler must leave the program stack alone, as the handler starts with
+ * the values its protected code started with.
+ *
+ * Expects the stack loads to be in the form [optimise] leaves them in.
+ */
+fun allocateStack(method: JyxalMethod) {
+    val graph = ControlFlowGraph(method, BasicInterpreter())
+    val insns = graph.instructions
+    val ops = Array(insns.size) { i -> stackOp(insns[i], method) }
+
+    // the number of values that are logically on top of the stack but are still in locals, before each instruction
+    val depths = IntArray(insns.size) { -1 }
+    // joins where the paths disagree, which start with everything spilled
+    val spilledJoins = BitSet(insns.size)
+    // jumps that spill everything before they go anywhere
+    val spillingJumps = BitSet(insns.size)
+
+    // a handler starts with the depth its protected code started with
+    val handlerStarts = HashMap<Int, MutableList<Int>>()
+    for (block in method.tryCatchBlocks) {
+        handlerStarts.getOrPut(graph.indexOf(block.handler)) { ArrayList() }.add(graph.indexOf(block.start))
+    }
+
+    fun depthAfter(i: Int): Int {
+        return if (spillingJumps[i]) 0 else ops[i]?.depthAfter(depths[i]) ?: depths[i]
+    }
+
+    fun depthBefore(i: Int): Int {
+        if (spilledJoins[i]) return 0
+        // the method starts with nothing in locals
+        var depth = if (i == 0) 0 else -1
+        for (pred in graph.predecessors(i)) {
+            if (depths[pred] == -1) continue
+            val after = depthAfter(pred)
+            if (depth == -1) {
+                depth = after
+            } else if (depth != after) {
+                return CONFLICT
+            }
+        }
+        for (start in handlerStarts[i] ?: emptyList<Int>()) {
+            if (depths[start] == -1) continue
+            if (depth == -1) {
+                depth = depths[start]
+            } else if (depth != depths[start]) {
+                return CONFLICT
+            }
+        }
+        return depth
+    }
+
+    val worklist = ArrayDeque<Int>()
+    val queued = BitSet(insns.size)
+    fun enqueue(i: Int) {
+        if (!queued[i]) {
+            queued.set(i)
+            worklist.add(i)
+        }
+    }
+
+    enqueue(0)
+    while (worklist.isNotEmpty()) {
+        val i = worklist.poll()
+        queued.clear(i)
+        var depth = depthBefore(i)
+        if (depth == CONFLICT) {
+            spilledJoins.set(i)
+            depth = 0
+            // every jump here has to spill first; falling through spills right before the join
+            for (pred in graph.predecessors(i)) {
+                if (insns[pred].isJump() && !spillingJumps[pred]) {
+                    spillingJumps.set(pred)
+                    for (succ in graph.successors(pred)) enqueue(succ)
+                }
+            }
+            for (start in handlerStarts[i] ?: emptyList<Int>()) {
+                // the protected code cannot spill on the way to its handler, so it has to start out spilled
+                if (!spilledJoins[start]) {
+                    spilledJoins.set(start)
+                    enqueue(start)
+                }
+            }
+        }
+        if (depth == -1 || depth == depths[i]) continue
+        depths[i] = depth
+        for (succ in graph.successors(i)) enqueue(succ)
+        for ((handler, starts) in handlerStarts) {
+            if (i in starts) enqueue(handler)
+        }
+    }
+
+    val instructions = method.instructions
+    fun spill(before: AbstractInsnNode, from: Int, to: Int) {
+        for (slot in from until to) {
+            instructions.insertBefore(before, VarInsnNode(ALOAD, method.stackVar))
+            instructions.insertBefore(before, VarInsnNode(ALOAD, method.stackSlot(slot)))
+            instructions.insertBefore(before, MethodInsnNode(INVOKEVIRTUAL, PROGRAM_STACK, "push", "(Ljava/lang/Object;)V", false))
+        }
+    }
+
+    for ((i, insn) in insns.withIndex()) {
+        val depth = depths[i]
+        if (depth == -1) continue
+        if (spilledJoins[i]) {
+            val pred = i - 1
+            // only the path falling through is spilled here, jumps have spilled already
+            if (pred >= 0 && depths[pred] != -1 && i in graph.successors(pred) && !insns[pred].isJump()) {
+                spill(insn, 0, depthAfter(pred))
+            }
+        }
+        if (spillingJumps[i]) {
+            spill(insn, 0, depth)
+        }
+        val op = ops[i] ?: continue
+        // the call made on the stack, right after the load or a SWAP after it
+        val call = if (insn.next.opcode == SWAP) insn.next.next else insn.next
+        when (op) {
+            StackOp.Push -> {
+                instructions.remove(insn.next)
+                instructions.remove(insn)
+                instructions.set(call, VarInsnNode(ASTORE, method.stackSlot(depth)))
+            }
+            StackOp.Pop, StackOp.Peek -> if (depth > 0) {
+                instructions.remove(call)
+                instructions.set(insn, VarInsnNode(ALOAD, method.stackSlot(depth - 1)))
+            }
+            StackOp.TruthValue -> if (depth > 0) {
+                instructions.set(insn, VarInsnNode(ALOAD, method.stackSlot(depth - 1)))
+                instructions.set(call, MethodInsnNode(INVOKESTATIC, RUNTIME_HELPERS, "truthValue", "(Ljava/lang/Object;)Z", false))
+            }
+            StackOp.Input -> {}
+            is StackOp.Element -> spill(insn, op.depthAfter(depth), depth)
+            StackOp.Other -> spill(insn, 0, depth)
+        }
+    }
+}
+
+private const val CONFLICT = -2
+
+private fun AbstractInsnNode.isJump(): Boolean {
+    return this is JumpInsnNode || this is TableSwitchInsnNode || this is LookupSwitchInsnNode
+}
+
+/**
+ * Recognises the use of the program stack that starts with the stack load [insn]
+ */
+private fun stackOp(insn: AbstractInsnNode, method: JyxalMethod): StackOp? {
+    if (insn !is VarInsnNode || insn.opcode != ALOAD || insn.`var` != method.stackVar) return null
+    val next = insn.next ?: return StackOp.Other
+    val call = if (next.opcode == SWAP) next.next else next
+    if (call !is MethodInsnNode) return StackOp.Other
+    if (call.owner == PROGRAM_STACK) {
+        return when {
+            call.name == "push" && call.desc == "(Ljava/lang/Object;)V" && next.opcode == SWAP -> StackOp.Push
+            next.opcode == SWAP -> StackOp.Other
+            call.name == "pop" -> StackOp.Pop
+            call.name == "peek" -> StackOp.Peek
+            // reading input does not depend on the stack
+            call.name == "getInput" -> StackOp.Input
+            else -> StackOp.Other
+        }
+    }
+    if (next.opcode == SWAP || !call.desc.startsWith(PROGRAM_STACK_DESC)) return StackOp.Other
+    if (call.owner == RUNTIME_HELPERS && call.name == "truthValue") {
+        return StackOp.TruthValue
+    }
+    if (call.owner == RUNTIME_METHODS) {
+        // an element that pops a known number of values and pushes nothing itself only needs those values
+        val effect = Element.getByMethodName(call.name)?.effect
+        val returned = if (Type.getReturnType(call.desc) == Type.VOID_TYPE) 0 else 1
+        if (effect != null && effect.pushes == returned) {
+            return StackOp.Element(effect.pops)
+        }
+    }
+    return StackOp.Other
+}
+
+/**
+ * What a stack load and the call it is the receiver of do to the values kept in locals
+ */
+private sealed class StackOp {
+
+    abstract fun depthAfter(depth: Int): Int
+
+    object Push : StackOp() {
+        override fun depthAfter(depth: Int) = depth + 1
+    }
+
+    object Pop : StackOp() {
+        override fun depthAfter(depth: Int) = maxOf(0, depth - 1)
+    }
+
+    object Peek : StackOp() {
+        override fun depthAfter(depth: Int) = depth
+    }
+
+    object TruthValue : StackOp() {
+        override fun depthAfter(depth: Int) = maxOf(0, depth - 1)
+    }
+
+    object Input : StackOp() {
+        override fun depthAfter(depth: Int) = depth
+    }
+
+    /**
+     * An element that pops [pops] values off the stack it is given
+     */
+    class Element(private val pops: Int) : StackOp() {
+        override fun depthAfter(depth: Int) = maxOf(0, depth - pops)
+    }
+
+    object Other : StackOp() {
+        override fun depthAfter(depth: Int) = 0
+    }
+}
\ No newline at end of file
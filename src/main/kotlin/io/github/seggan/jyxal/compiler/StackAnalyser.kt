@@ -0,0 +1,103 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalParser.*
+import org.antlr.v4.runtime.tree.ParseTree
+
+/**
+ * Computes the static [StackEffect] of parse tree nodes. A node whose effect depends on the runtime
+ * contents of the stack (such as `!`, `W` or a loop that changes the stack depth) has a null effect.
+ */
+class StackAnalyser(private val aliases: Map<String, ProgramContext>) {
+
+    private val cache: MutableMap<ParseTree, StackEffect?> = HashMap()
+
+    fun effectOf(node: ParseTree): StackEffect? {
+        if (cache.containsKey(node)) {
+            return cache[node]
+        }
+        val effect = compute(node)
+        cache[node] = effect
+        return effect
+    }
+
+    private fun compute(node: ParseTree): StackEffect? {
+        return when (node) {
+            is ProgramContext -> sequence(node.program_node())
+            is Program_nodeContext -> effectOf(node.getChild(0))
+            is LiteralContext -> StackEffect.PUSH
+            is StatementContext -> effectOf(node.getChild(0))
+            is ElementContext -> element(node)
+            is Variable_assnContext -> if (node.ASSN_SIGN().text == "→") StackEffect.POP else StackEffect.PUSH
+            is If_statementContext -> {
+                val ifTrue = effectOf(node.program(0)) ?: return null
+                val ifFalse = if (node.program().size > 1) effectOf(node.program(1)) ?: return null else StackEffect.NONE
+                StackEffect.POP then (ifTrue.merge(ifFalse) ?: return null)
+            }
+            is For_loopContext -> {
+                val body = loopBody(node.program()) ?: return null
+                StackEffect.POP then body
+            }
+            is Fori_loopContext -> loopBody(node.program())
+            is While_loopContext -> {
+                val body = effectOf(node.body) ?: return null
+                if (node.cond == null) {
+                    loopBody(body)
+                } else {
+                    val cond = effectOf(node.cond) ?: return null
+                    // the condition is evaluated once more than the body
+                    val check = cond then StackEffect.POP
+                    if (check.net != 0 || body.net != 0) return null
+                    (check then body).merge(check)
+                }
+            }
+            is LambdaContext -> if (node.LAMBDA_TYPE().text == "λ") StackEffect.PUSH else StackEffect.MONAD
+            is One_element_lambdaContext, is Two_element_lambdaContext, is Three_element_lambdaContext -> StackEffect.PUSH
+            else -> null
+        }
+    }
+
+    private fun sequence(nodes: List<ParseTree>): StackEffect? {
+        var effect = StackEffect.NONE
+        for (node in nodes) {
+            effect = effect then (effectOf(node) ?: return null)
+        }
+        return effect
+    }
+
+    private fun loopBody(program: ProgramContext): StackEffect? {
+        return loopBody(effectOf(program) ?: return null)
+    }
+
+    private fun loopBody(body: StackEffect): StackEffect? {
+        // the body may run any number of times, so it may not change the depth of the stack
+        return if (body.net == 0) body else null
+    }
+
+    private fun element(ctx: ElementContext): StackEffect? {
+        var text = ctx.element_type().text
+        if (ctx.PREFIX() != null) {
+            text = ctx.PREFIX().text + text
+        } else {
+            val alias = aliases[text]
+            if (alias != null) {
+                return effectOf(alias)
+            }
+        }
+        if (text == "X") {
+            // jumps out of the enclosing structure
+            return null
+        }
+        val effect = if (Constants.isConstant(text)) {
+            StackEffect.PUSH
+        } else {
+            Element.getByText(text).effect ?: return null
+        }
+        return when (ctx.MODIFIER()?.text) {
+            // the element only runs if the popped value is truthy
+            "ß" -> StackEffect.POP then (effect.merge(StackEffect.NONE) ?: return null)
+            // the element runs with the register on top of the stack and the top is stored back to it
+            "&" -> StackEffect.PUSH then effect then StackEffect.POP
+            else -> effect
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,49 @@
+package io.github.seggan.jyxal.compiler
+
+import kotlin.math.max
+
+/**
+ * The static effect a piece of code has on the program stack: it needs [pops] values to be present
+ * and leaves [pushes] values in their place
+ */
+data class StackEffect(val pops: Int, val pushes: Int) {
+
+    val net: Int
+        get() = pushes - pops
+
+    /**
+     * The effect of running this and then [next]
+     */
+    infix fun then(next: StackEffect): StackEffect {
+        return StackEffect(
+                pops + max(0, next.pops - pushes),
+                next.pushes + max(0, pushes - next.pops)
+        )
+    }
+
+    /**
+     * The effect of running either this or [other], or null if the two leave the stack at different depths
+     */
+    fun merge(other: StackEffect): StackEffect? {
+        if (net != other.net) return null
+        val pops = max(pops, other.pops)
+        return StackEffect(pops, pops + net)
+    }
+
+    companion object {
+        @JvmField
+        val NONE = StackEffect(0, 0)
+
+        @JvmField
+        val PUSH = StackEffect(0, 1)
+
+        @JvmField
+        val POP = StackEffect(1, 0)
+
+        @JvmField
+        val MONAD = StackEffect(1, 1)
+
+        @JvmField
+        val DYAD = StackEffect(2, 1)
+    }
+}
\ No newline at end of file
@@ -0,0 +1,294 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalParser.*
+import io.github.seggan.jyxal.compiler.wrappers.JyxalMethod
+import org.antlr.v4.runtime.tree.ParseTree
+import org.antlr.v4.runtime.tree.TerminalNode
+import org.objectweb.asm.Opcodes
+
+/**
+ * Proves which runs of program nodes compute nothing but small real integers, so that they can be compiled
+ * to primitive `long` arithmetic instead of going through [io.github.seggan.jyxal.runtime.math.BigComplex]
+ */
+class TypeAnalyser(private val aliases: Map<String, ProgramContext>) {
+
+    /**
+     * Finds the longest run of [nodes] starting at [start] that computes a single integer out of integer
+     * literals and the context variable alone, without looking at the stack. [integerContext] tells whether
+     * the context variable is known to be an integer. Returns null if there is no such run or if it would
+     * not contain any operation.
+     */
+    fun integerRun(
+            nodes: List<Program_nodeContext>,
+            start: Int,
+            integerContext: Boolean,
+            contextVariables: Set<String>
+    ): IntegerRun? {
+        val stack = ArrayList<IntegerExpression>()
+        var run: IntegerRun? = null
+        for (i in start until nodes.size) {
+            val node = nodes[i].getChild(0)
+            val leaf = leaf(node, integerContext, contextVariables)
+            if (leaf != null) {
+                stack.add(leaf)
+            } else {
+                val element = operation(node) ?: break
+                val arity = if (element in DYADS) 2 else 1
+                if (stack.size < arity) break
+                val operands = ArrayList(stack.subList(stack.size - arity, stack.size))
+                repeat(arity) { stack.removeAt(stack.size - 1) }
+                stack.add(IntegerExpression.Operation(element, operands))
+            }
+            if (stack.size == 1 && stack[0] is IntegerExpression.Operation) {
+                run = IntegerRun(stack[0], i + 1)
+            }
+        }
+        return run
+    }
+
+    /**
+     * Whether [node] may overwrite the context variable of the code it is in
+     */
+    fun assignsContext(node: ParseTree, contextVariables: Set<String>): Boolean {
+        val names = HashSet(contextVariables)
+        collectLoopVariables(node, names, HashSet())
+        return assignsContext(node, names, HashSet())
+    }
+
+    /**
+     * Whether [node] may read the context variable of the code it is in. Lambdas in it have their own.
+     */
+    fun readsContext(node: ParseTree, contextVariables: Set<String>): Boolean {
+        return readsContext(node, contextVariables, HashSet())
+    }
+
+    private fun readsContext(node: ParseTree, names: Set<String>, seen: MutableSet<ProgramContext>): Boolean {
+        when (node) {
+            is LambdaContext, is One_element_lambdaContext, is Two_element_lambdaContext, is Three_element_lambdaContext -> return false
+            is Variable_assnContext -> return node.ASSN_SIGN().text != "→" && node.variable().text in names
+            is TerminalNode -> return node.symbol.type == CONTEXT_VAR
+            is ElementContext -> if (node.PREFIX() == null) {
+                val alias = aliases[node.element_type().text]
+                if (alias != null) {
+                    return seen.add(alias) && readsContext(alias, names, seen)
+                }
+            }
+        }
+        for (i in 0 until node.childCount) {
+            if (readsContext(node.getChild(i), names, seen)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun assignsContext(node: ParseTree, names: Set<String>, seen: MutableSet<ProgramContext>): Boolean {
+        if (node is Variable_assnContext) {
+            return node.ASSN_SIGN().text == "→" && node.variable().text in names
+        }
+        if (node is ElementContext && node.PREFIX() == null) {
+            val alias = aliases[node.element_type().text]
+            if (alias != null && seen.add(alias)) {
+                return assignsContext(alias, names, seen)
+            }
+        }
+        for (i in 0 until node.childCount) {
+            if (assignsContext(node.getChild(i), names, seen)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun collectLoopVariables(node: ParseTree, names: MutableSet<String>, seen: MutableSet<ProgramContext>) {
+        if (node is For_loopContext && node.variable() != null) {
+            names.add(node.variable().text)
+        } else if (node is ElementContext && node.PREFIX() == null) {
+            val alias = aliases[node.element_type().text]
+            if (alias != null && seen.add(alias)) {
+                collectLoopVariables(alias, names, seen)
+            }
+        }
+        for (i in 0 until node.childCount) {
+            collectLoopVariables(node.getChild(i), names, seen)
+        }
+    }
+
+    private fun leaf(node: ParseTree, integerContext: Boolean, contextVariables: Set<String>): IntegerExpression? {
+        return when (node) {
+            is LiteralContext -> {
+                val number = node.number() ?: return null
+                // anything longer might not fit in a long
+                if (number.PERIOD() != null || number.text.length > 18) return null
+                IntegerExpression.Constant(number.text.toLong())
+            }
+            is ElementContext -> {
+                val text = node.element_type().text
+                if (!integerContext || node.MODIFIER() != null || node.PREFIX() != null
+                        || text != "n" || aliases.containsKey(text)) return null
+                IntegerExpression.Context
+            }
+            is StatementContext -> {
+                val assn = node.variable_assn() ?: return null
+                if (!integerContext || assn.ASSN_SIGN().text != "←"
+                        || assn.variable().text !in contextVariables) return null
+                IntegerExpression.Context
+            }
+            else -> null
+        }
+    }
+
+    private fun operation(node: ParseTree): Element? {
+        if (node !is ElementContext || node.MODIFIER() != null || node.PREFIX() != null) return null
+        val text = node.element_type().text
+        if (aliases.containsKey(text)) return null
+        return ELEMENTS[text]
+    }
+
+    companion object {
+        private val DYADS = setOf(
+                Element.ADD,
+                Element.SUBTRACT,
+                Element.MULTIPLY,
+                Element.EQUAL,
+                Element.LESS_THAN,
+                Element.LESS_THAN_OR_EQUAL,
+                Element.GREATER_THAN,
+                Element.GREATER_THAN_OR_EQUAL
+        )
+
+        private val MONADS = setOf(
+                Element.INCREMENT,
+                Element.DECREMENT,
+                Element.NEGATE,
+                Element.DOUBLE_REPEAT,
+                Element.IS_EVEN
+        )
+
+        private val ELEMENTS = (DYADS + MONADS).associateBy { it.text }
+    }
+}
+
+/**
+ * A run of program nodes that ends right before the node at [end] and computes [expression]
+ */
+data class IntegerRun(val expression: IntegerExpression, val end: Int)
+
+/**
+ * An expression over small integers, compiled to leave a primitive long on the JVM stack. Every operation that
+ * could overflow throws an [ArithmeticException].
+ */
+sealed class IntegerExpression {
+
+    /**
+     * Whether the expression reads the context variable, rather than being made of literals only
+     */
+    abstract val usesContext: Boolean
+
+    abstract fun compile(mv: JyxalMethod)
+
+    class Constant(val value: Long) : IntegerExpression() {
+        override val usesContext: Boolean
+            get() = false
+
+        override fun compile(mv: JyxalMethod) {
+            when (value) {
+                0L -> mv.visitInsn(Opcodes.LCONST_0)
+                1L -> mv.visitInsn(Opcodes.LCONST_1)
+                else -> mv.visitLdcInsn(value)
+            }
+        }
+    }
+
+    object Context : IntegerExpression() {
+        override val usesContext: Boolean
+            get() = true
+
+        override fun compile(mv: JyxalMethod) {
+            if (mv.longContextVar != -1) {
+                mv.visitVarInsn(Opcodes.LLOAD, mv.longContextVar)
+                return
+            }
+            mv.loadContextVar()
+            mv.visitMethodInsn(
+                    Opcodes.INVOKESTATIC,
+                    "runtime/RuntimeHelpers",
+                    "longValue",
+                    "(Ljava/lang/Object;)J",
+                    false
+            )
+        }
+    }
+
+    class Operation(val element: Element, val operands: List<IntegerExpression>) : IntegerExpression() {
+        override val usesContext: Boolean
+            get() = operands.any { it.usesContext }
+
+        override fun compile(mv: JyxalMethod) {
+            for (operand in operands) {
+                operand.compile(mv)
+            }
+            when (element) {
+                Element.ADD -> exact(mv, "addExact", "(JJ)J")
+                Element.SUBTRACT -> exact(mv, "subtractExact", "(JJ)J")
+                Element.MULTIPLY -> exact(mv, "multiplyExact", "(JJ)J")
+                Element.INCREMENT -> exact(mv, "incrementExact", "(J)J")
+                Element.DECREMENT -> exact(mv, "decrementExact", "(J)J")
+                Element.NEGATE -> exact(mv, "negateExact", "(J)J")
+                Element.DOUBLE_REPEAT -> {
+                    mv.visitLdcInsn(2L)
+                    exact(mv, "multiplyExact", "(JJ)J")
+                }
+                Element.IS_EVEN -> {
+                    mv.visitInsn(Opcodes.LCONST_1)
+                    mv.visitInsn(Opcodes.LAND)
+                    mv.visitInsn(Opcodes.LCONST_1)
+                    mv.visitInsn(Opcodes.LXOR)
+                }
+                else -> compare(mv)
+            }
+        }
+
+        /**
+         * Turns the result of [Long.compare] into 1 or 0 without branching
+         */
+        private fun compare(mv: JyxalMethod) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Long", "compare", "(JJ)I", false)
+            when (element) {
+                Element.EQUAL -> {
+                    mv.visitInsn(Opcodes.ICONST_1)
+                    mv.visitInsn(Opcodes.IAND)
+                    mv.visitInsn(Opcodes.ICONST_1)
+                    mv.visitInsn(Opcodes.IXOR)
+                }
+                Element.LESS_THAN -> signBit(mv)
+                Element.GREATER_THAN_OR_EQUAL -> {
+                    signBit(mv)
+                    mv.visitInsn(Opcodes.ICONST_1)
+                    mv.visitInsn(Opcodes.IXOR)
+                }
+                Element.GREATER_THAN -> {
+                    mv.visitInsn(Opcodes.INEG)
+                    signBit(mv)
+                }
+                Element.LESS_THAN_OR_EQUAL -> {
+                    mv.visitInsn(Opcodes.INEG)
+                    signBit(mv)
+                    mv.visitInsn(Opcodes.ICONST_1)
+                    mv.visitInsn(Opcodes.IXOR)
+                }
+                else -> throw JyxalCompileException("Not an integer operation: $element")
+            }
+            mv.visitInsn(Opcodes.I2L)
+        }
+
+        private fun signBit(mv: JyxalMethod) {
+            mv.visitIntInsn(Opcodes.BIPUSH, 31)
+            mv.visitInsn(Opcodes.IUSHR)
+        }
+
+        private fun exact(mv: JyxalMethod, name: String, desc: String) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", name, desc, false)
+        }
+    }
+}
\ No newline at end of file
@@ -3,7 +3,7 @@ package io.github.seggan.jyxal.compiler.wrappers
 import org.objectweb.asm.Label
 import org.objectweb.asm.Opcodes
 
-data class ContextualVariable(internal val index: Int, private val mv: JyxalMethod) : AutoCloseable {
+data class ContextualVariable(internal val index: Int, private val mv: JyxalMethod, internal val size: Int = 1) : AutoCloseable {
 
     internal val end = Label()
 
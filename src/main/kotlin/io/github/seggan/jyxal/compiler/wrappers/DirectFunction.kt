@@ -0,0 +1,91 @@
+package io.github.seggan.jyxal.compiler.wrappers
+
+import io.github.seggan.jyxal.compiler.AsmHelper
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.VarInsnNode
+
+/**
+ * A lambda that takes its arguments as parameters, the top of the stack first. The arguments are pushed
+ * as soon as it starts, which the stack allocator turns into locals. The program stack and the context
+ * variable are only built if the optimised code still uses them.
+ */
+class DirectFunction internal constructor(cw: JyxalClassWriter, access: Int, name: String, desc: String) : JyxalMethod(cw, access, name, desc) {
+
+    private val arity = Type.getArgumentTypes(desc).size
+
+    private val stackStart = Label()
+    private val stackEnd = Label()
+    private val ctxStart = Label()
+    private val ctxEnd = Label()
+
+    init {
+        stackVar = arity
+        ctxVar = arity + 1
+        visitLabel(stackStart)
+        loadArgs()
+        visitMethodInsn(
+            Opcodes.INVOKESTATIC,
+            "runtime/RuntimeHelpers",
+            "lambdaStack",
+            "([Ljava/lang/Object;)Lruntime/ProgramStack;",
+            false
+        )
+        visitVarInsn(Opcodes.ASTORE, stackVar)
+        visitLabel(stackEnd)
+        visitLabel(ctxStart)
+        loadArgs()
+        visitMethodInsn(
+            Opcodes.INVOKESTATIC,
+            "runtime/list/JyxalList",
+            "create",
+            "([Ljava/lang/Object;)Lruntime/list/JyxalList;",
+            false
+        )
+        visitVarInsn(Opcodes.ASTORE, ctxVar)
+        visitLabel(ctxEnd)
+        for (i in arity - 1 downTo 0) {
+            loadStack()
+            visitVarInsn(Opcodes.ALOAD, i)
+            AsmHelper.push(this)
+        }
+    }
+
+    private fun loadArgs() {
+        AsmHelper.selectNumberInsn(this, arity)
+        visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object")
+        for (i in 0 until arity) {
+            visitInsn(Opcodes.DUP)
+            AsmHelper.selectNumberInsn(this, i)
+            visitVarInsn(Opcodes.ALOAD, i)
+            visitInsn(Opcodes.AASTORE)
+        }
+    }
+
+    override fun finish() {
+        removeIfUnused(ctxVar, ctxStart, ctxEnd)
+        removeIfUnused(stackVar, stackStart, stackEnd)
+    }
+
+    /**
+     * Removes the code between [start] and [end] that initialises [variable] if nothing else reads it
+     */
+    private fun removeIfUnused(variable: Int, start: Label, end: Label) {
+        val first = getLabelNode(start)
+        val last = getLabelNode(end)
+        var initialising = false
+        for (insn in instructions) {
+            if (insn == first) {
+                initialising = true
+            } else if (insn == last) {
+                initialising = false
+            } else if (!initialising && insn is VarInsnNode && insn.`var` == variable) {
+                return
+            }
+        }
+        while (first.next != last) {
+            instructions.remove(first.next)
+        }
+    }
+}
\ No newline at end of file
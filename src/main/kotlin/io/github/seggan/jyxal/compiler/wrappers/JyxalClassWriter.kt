@@ -1,18 +1,49 @@
 package io.github.seggan.jyxal.compiler.wrappers
 
+import io.github.seggan.jyxal.CompilerOptions
+import io.github.seggan.jyxal.compiler.CompileMetrics
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.Opcodes
 import java.util.regex.Pattern
 
-class JyxalClassWriter(flags: Int) : ClassWriter(flags) {
+/**
+ * Writes a class of compiled code. The variables of the program and the register are static fields of
+ * [variableOwner], which is the class being written unless it is only part of a program.
+ */
+class JyxalClassWriter(
+        flags: Int,
+        val options: Set<CompilerOptions>,
+        val metrics: CompileMetrics,
+        val variableOwner: String = "jyxal/Main"
+) : ClassWriter(flags) {
 
-    fun visitMethod(access: Int, name: String, desc: String): JyxalMethod {
+    private val methods: MutableList<JyxalMethod> = ArrayList()
 
-        return if (name == "main" && desc == "([Ljava/lang/String;)V" && access == Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC) {
+    fun visitMethod(access: Int, name: String, desc: String): JyxalMethod {
+        val method = if (name == "main" && desc == "([Ljava/lang/String;)V" && access == Opcodes.ACC_PUBLIC or Opcodes.ACC_STATIC) {
             MainMethod(this, access, name, desc)
+        } else if (name == "<clinit>") {
+            StaticInitializer(this, access, name, desc)
+        } else if (desc == Region.DESCRIPTOR) {
+            Region(this, access, name, desc)
+        } else if (desc.startsWith("(Ljava/lang/Object;")) {
+            DirectFunction(this, access, name, desc)
         } else {
             Function(this, access, name, desc)
         }
+        methods.add(method)
+        return method
+    }
+
+    /**
+     * Writes how many program stack calls the optimiser removed from each method to [out]
+     */
+    fun writeOptimiserReport(out: Appendable) {
+        for (method in methods) {
+            if (method.optimise) {
+                out.append("// ${method.name}${method.desc}: removed ${method.removedStackCalls} program stack calls\n")
+            }
+        }
     }
 
     companion object {
@@ -2,44 +2,120 @@ package io.github.seggan.jyxal.compiler.wrappers
 
 import io.github.seggan.jyxal.CompilerOptions
 import io.github.seggan.jyxal.compiler.optimise
-import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.Label
 import org.objectweb.asm.Opcodes
-import org.objectweb.asm.tree.InsnList
+import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.LineNumberNode
 import org.objectweb.asm.tree.MethodNode
+import java.util.IdentityHashMap
 import java.util.regex.Pattern
 
-abstract class JyxalMethod internal constructor(cw: ClassWriter, access: Int, name: String, desc: String) : MethodNode(Opcodes.ASM7, access, name, desc, null, null), Opcodes {
+abstract class JyxalMethod internal constructor(cw: JyxalClassWriter, access: Int, name: String, desc: String) : MethodNode(Opcodes.ASM7, access, name, desc, null, null), Opcodes {
 
     var stackVar = 0
         protected set
     var ctxVar = 0
         protected set
 
-    var optimise = CompilerOptions.doesNotContain(CompilerOptions.DONT_OPTIMISE)
+    /**
+     * The options of the program this method is part of
+     */
+    val options: Set<CompilerOptions> = cw.options
 
-    private val runtime = Pattern.compile("runtime/")
+    /**
+     * The class holding the variables and the register, see [JyxalClassWriter.variableOwner]
+     */
+    val variableOwner: String = cw.variableOwner
+
+    /**
+     * The local the register is kept in, or -1 if it is a field of [variableOwner]
+     */
+    var registerVar = -1
+
+    /**
+     * The pair of locals a counting loop keeps the context variable in as a long, or -1 if it is the object in
+     * [ctxVar]. It is only boxed when something reads it.
+     */
+    var longContextVar = -1
+
+    private val metrics = cw.metrics
+
+    var optimise = CompilerOptions.DONT_OPTIMISE !in options
+
+    /**
+     * The number of calls to the program stack the optimiser removed from this method
+     */
+    var removedStackCalls = 0
+        private set
+
+    // names that are already fully qualified are left alone
+    private val runtime = Pattern.compile("(?<!/)runtime/")
 
     private val reservedVars: MutableSet<ContextualVariable> = HashSet()
+    private var maxVar = 0
+
+    /**
+     * The line each instruction was generated for, see [markLine]
+     */
+    private val lines: MutableMap<AbstractInsnNode, Int> = IdentityHashMap()
+    private var line = 0
+
     fun loadStack() {
         visitVarInsn(Opcodes.ALOAD, stackVar)
     }
 
     fun loadContextVar() {
-        visitVarInsn(Opcodes.ALOAD, ctxVar)
+        if (longContextVar == -1) {
+            visitVarInsn(Opcodes.ALOAD, ctxVar)
+        } else {
+            visitVarInsn(Opcodes.LLOAD, longContextVar)
+            visitMethodInsn(Opcodes.INVOKESTATIC, "runtime/math/BigComplex", "valueOf", "(J)Lruntime/math/BigComplex;", false)
+        }
+    }
+
+    fun loadRegister() {
+        if (registerVar == -1) {
+            visitFieldInsn(Opcodes.GETSTATIC, variableOwner, "register", "Ljava/lang/Object;")
+        } else {
+            visitVarInsn(Opcodes.ALOAD, registerVar)
+        }
+    }
+
+    fun storeRegister() {
+        if (registerVar == -1) {
+            visitFieldInsn(Opcodes.PUTSTATIC, variableOwner, "register", "Ljava/lang/Object;")
+        } else {
+            visitVarInsn(Opcodes.ASTORE, registerVar)
+        }
     }
 
     @JvmOverloads
     fun reserveVar(name: String? = null): ContextualVariable {
+        return reserveVar(name, 1)
+    }
+
+    /**
+     * Reserves the pair of locals a long or a double takes up
+     */
+    fun reserveWideVar(): ContextualVariable {
+        return reserveVar(null, 2)
+    }
+
+    private fun reserveVar(name: String?, size: Int): ContextualVariable {
         var max = 0
         for (variable in reservedVars) {
-            if (variable.index > max) {
-                max = variable.index
+            val last = variable.index + variable.size - 1
+            if (last > max) {
+                max = last
             }
         }
-        val variable = ContextualVariable(if (max == 0) ctxVar + 1 else max + 1, this)
+        val variable = ContextualVariable(if (max == 0) ctxVar + 1 else max + 1, this, size)
         reservedVars.add(variable)
+        val last = variable.index + size - 1
+        if (last > maxVar) {
+            maxVar = last
+        }
         if (name != null) {
             val start = Label()
             visitLabel(start)
@@ -53,30 +129,70 @@ abstract class JyxalMethod internal constructor(cw: ClassWriter, access: Int, na
         visitLabel(variable.end)
     }
 
+    /**
+     * The local holding the value [depth] places above the top of the runtime stack. These come after every
+     * variable ever reserved, so they never clash with one that is live.
+     */
+    fun stackSlot(depth: Int): Int {
+        return maxOf(maxVar, ctxVar) + 1 + depth
+    }
+
+    /**
+     * Attributes the code generated from here on to [line], see [io.github.seggan.jyxal.compiler.LineTable].
+     * The line numbers only go in once the method has been optimised, so that they do not get in its way.
+     */
+    fun markLine(line: Int) {
+        tagLines()
+        this.line = line
+    }
+
+    private fun tagLines() {
+        var insn = instructions.last
+        while (insn != null && insn !in lines) {
+            lines[insn] = line
+            insn = insn.previous
+        }
+    }
+
+    /**
+     * Puts in a line number wherever the line changes, leaving the instructions the optimiser added on the
+     * line of those before them
+     */
+    private fun insertLineNumbers() {
+        tagLines()
+        var current = 0
+        for (insn in instructions.toArray()) {
+            val insnLine = lines[insn] ?: continue
+            if (insnLine != 0 && insnLine != current && insn.opcode >= 0) {
+                val label = LabelNode()
+                instructions.insertBefore(insn, label)
+                instructions.insertBefore(insn, LineNumberNode(insnLine, label))
+                current = insnLine
+            }
+        }
+    }
+
     override fun visitEnd() {
+        metrics.instructionsBefore += countInstructions()
         if (optimise) {
-            val codeBlocks: MutableList<InsnList> = ArrayList()
-            var code = InsnList()
-            val iterator = instructions.iterator()
-            while (iterator.hasNext()) {
-                val insn = iterator.next()
-                iterator.remove()
-                code.add(insn)
-                if (insn is LabelNode || insn.opcode == Opcodes.RETURN || insn.opcode == Opcodes.ATHROW || insn.opcode == Opcodes.IRETURN || insn.opcode == Opcodes.LRETURN || insn.opcode == Opcodes.FRETURN || insn.opcode == Opcodes.DRETURN || insn.opcode == Opcodes.ARETURN || insn.opcode == Opcodes.GOTO) {
-                    codeBlocks.add(code)
-                    code = InsnList()
-                }
-            }
-            for (block in codeBlocks) {
-                optimise(block, this)
-            }
-            for (block in codeBlocks) {
-                instructions.add(block)
-            }
+            removedStackCalls = metrics.time("optimise") { optimise(this) }
         }
+        finish()
+        metrics.instructionsAfter += countInstructions()
+        insertLineNumbers()
         accept(mv)
     }
 
+    private fun countInstructions(): Int {
+        // labels, line numbers and frames are not real instructions
+        return instructions.count { it.opcode >= 0 }
+    }
+
+    /**
+     * Called once the code is complete and optimised, right before it is written out
+     */
+    protected open fun finish() {}
+
     override fun visitMethodInsn(opcodeAndSource: Int, owner: String, name: String, descriptor: String, isInterface: Boolean) {
         super.visitMethodInsn(opcodeAndSource, remap(owner), name, remap(descriptor), isInterface)
     }
@@ -1,10 +1,9 @@
 package io.github.seggan.jyxal.compiler.wrappers
 
-import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.Label
 import org.objectweb.asm.Opcodes
 
-class MainMethod internal constructor(cw: ClassWriter, access: Int, name: String, desc: String) : JyxalMethod(cw, access, name, desc) {
+class MainMethod internal constructor(cw: JyxalClassWriter, access: Int, name: String, desc: String) : JyxalMethod(cw, access, name, desc) {
 
     private val start = Label()
     private val end = Label()
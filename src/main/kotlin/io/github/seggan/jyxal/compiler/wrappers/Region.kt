@@ -0,0 +1,29 @@
+package io.github.seggan.jyxal.compiler.wrappers
+
+import org.objectweb.asm.Opcodes
+
+/**
+ * Part of a program compiled on its own, either while the rest of it is interpreted or because it was too
+ * big to be left in the method it is in. It runs on the program stack and context variable it is given, and
+ * returns the context variable it leaves behind.
+ */
+class Region internal constructor(cw: JyxalClassWriter, access: Int, name: String, desc: String) : JyxalMethod(cw, access, name, desc) {
+
+    init {
+        stackVar = 0
+        ctxVar = 1
+    }
+
+    fun returnContextVar() {
+        // the optimiser puts the values it kept in locals back on the stack before anything uses it whole,
+        // which leaves them for the interpreter to carry on with
+        loadStack()
+        visitInsn(Opcodes.POP)
+        loadContextVar()
+        visitInsn(Opcodes.ARETURN)
+    }
+
+    companion object {
+        const val DESCRIPTOR = "(Lio/github/seggan/jyxal/runtime/ProgramStack;Ljava/lang/Object;)Ljava/lang/Object;"
+    }
+}
\ No newline at end of file
@@ -0,0 +1,11 @@
+package io.github.seggan.jyxal.compiler.wrappers
+
+
+/**
+ * The `<clinit>` of the generated class. It has no program stack, so it is never optimised.
+ */
+class StaticInitializer internal constructor(cw: JyxalClassWriter, access: Int, name: String, desc: String) : JyxalMethod(cw, access, name, desc) {
+    init {
+        optimise = false
+    }
+}
\ No newline at end of file
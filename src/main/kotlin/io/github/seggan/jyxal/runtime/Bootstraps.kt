@@ -0,0 +1,16 @@
+@file:JvmName("Bootstraps")
+
+package io.github.seggan.jyxal.runtime
+
+import java.lang.invoke.CallSite
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+/**
+ * Links a call to a dyadic element, [generic] being its implementation in `RuntimeMethods`
+ */
+@Suppress("UNUSED_PARAMETER")
+fun dyad(lookup: MethodHandles.Lookup, name: String, type: MethodType, generic: MethodHandle): CallSite {
+    return DyadCallSite(name, type, generic)
+}
\ No newline at end of file
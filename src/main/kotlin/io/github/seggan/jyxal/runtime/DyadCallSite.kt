@@ -0,0 +1,83 @@
+package io.github.seggan.jyxal.runtime
+
+import io.github.seggan.jyxal.runtime.math.BigComplex
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.invoke.MutableCallSite
+import java.util.function.BiFunction
+import java.util.function.BiPredicate
+
+/**
+ * An inline cache for a dyadic element. Each pair of operand classes seen at the call site is linked
+ * to its own guarded target, using a specialised implementation if there is one for the pair. Once
+ * [MAX_DEPTH] pairs have been seen the call site goes straight to the [generic] implementation.
+ *
+ * Everything is bound through [BiFunction] and [BiPredicate] instead of being looked up by name, so that
+ * shrinking the runtime cannot remove it.
+ */
+class DyadCallSite(private val name: String, type: MethodType, private val generic: MethodHandle) : MutableCallSite(type) {
+
+    private var depth = 0
+
+    init {
+        target = bind(BiFunction(::relink))
+    }
+
+    private fun relink(a: Any, b: Any): Any {
+        if (depth < MAX_DEPTH) {
+            val left = a.javaClass
+            val right = b.javaClass
+            val specialised = when {
+                left == BigComplex::class.java && right == BigComplex::class.java -> NUMBERS[name]
+                left == String::class.java && right == String::class.java -> STRINGS[name]
+                else -> null
+            }
+            target = MethodHandles.guardWithTest(
+                    TEST.bindTo(BiPredicate<Any, Any> { x, y -> x.javaClass == left && y.javaClass == right }),
+                    if (specialised == null) generic.asType(type()) else bind(specialised),
+                    target
+            )
+            depth++
+        } else {
+            target = generic.asType(type())
+        }
+        return generic.invoke(a, b)
+    }
+
+    private fun bind(function: BiFunction<Any, Any, Any>): MethodHandle {
+        return APPLY.bindTo(function).asType(type())
+    }
+
+    companion object {
+        private const val MAX_DEPTH = 3
+
+        private val APPLY: MethodHandle = MethodHandles.publicLookup().findVirtual(
+                BiFunction::class.java,
+                "apply",
+                MethodType.methodType(Any::class.java, Any::class.java, Any::class.java)
+        )
+
+        private val TEST: MethodHandle = MethodHandles.publicLookup().findVirtual(
+                BiPredicate::class.java,
+                "test",
+                MethodType.methodType(Boolean::class.javaPrimitiveType, Any::class.java, Any::class.java)
+        )
+
+        private val NUMBERS: Map<String, BiFunction<Any, Any, Any>> = mapOf(
+                "add" to BiFunction { a, b -> (a as BigComplex).add(b as BigComplex) },
+                "subtract" to BiFunction { a, b -> (a as BigComplex).subtract(b as BigComplex) },
+                "multiply" to BiFunction { a, b -> (a as BigComplex).multiply(b as BigComplex) },
+                "equal" to BiFunction { a, b -> (a == b).jyxal() },
+                "lessThan" to BiFunction { a, b -> ((a as BigComplex) < b as BigComplex).jyxal() },
+                "lessThanOrEqual" to BiFunction { a, b -> ((a as BigComplex) <= b as BigComplex).jyxal() },
+                "greaterThan" to BiFunction { a, b -> ((a as BigComplex) > b as BigComplex).jyxal() },
+                "greaterThanOrEqual" to BiFunction { a, b -> ((a as BigComplex) >= b as BigComplex).jyxal() }
+        )
+
+        private val STRINGS: Map<String, BiFunction<Any, Any, Any>> = mapOf(
+                "add" to BiFunction { a, b -> (a as String) + b },
+                "equal" to BiFunction { a, b -> (a == b).jyxal() }
+        )
+    }
+}
\ No newline at end of file
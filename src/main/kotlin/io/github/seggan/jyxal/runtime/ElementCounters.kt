@@ -0,0 +1,95 @@
+@file:Suppress("unused")
+@file:JvmName("ElementCounters")
+
+package io.github.seggan.jyxal.runtime
+
+import java.io.PrintStream
+import java.util.Locale
+import java.util.concurrent.atomic.LongAdder
+
+private var names: List<String> = emptyList()
+private var calls: Array<LongAdder> = emptyArray()
+private var totalNanos: Array<LongAdder> = emptyArray()
+private var selfNanos: Array<LongAdder> = emptyArray()
+private var timed = false
+
+/**
+ * The elements each thread is in the middle of, innermost last
+ */
+private class Running {
+    var depth = 0
+    var elements = IntArray(16)
+    var starts = LongArray(16)
+
+    /**
+     * The time spent in the elements called by each running element
+     */
+    var inner = LongArray(16)
+}
+
+private val running = ThreadLocal.withInitial(::Running)
+
+/**
+ * Sets up the counters of a program compiled with the `c` or `t` flag, which are printed as a histogram to
+ * standard error when it exits. Elements are known by their ordinal in the compiler, and [elementNames] has
+ * their names one to a line. A program made of several classes registers them once for each.
+ */
+@Synchronized
+fun registerElements(elementNames: String, time: Boolean) {
+    timed = timed || time
+    if (names.isNotEmpty()) return
+    names = elementNames.split('\n')
+    calls = Array(names.size) { LongAdder() }
+    totalNanos = Array(names.size) { LongAdder() }
+    selfNanos = Array(names.size) { LongAdder() }
+    Runtime.getRuntime().addShutdownHook(Thread { printElementHistogram(System.err) })
+}
+
+fun countElement(element: Int) {
+    calls[element].increment()
+}
+
+fun enterElement(element: Int) {
+    calls[element].increment()
+    val current = running.get()
+    if (current.depth == current.elements.size) {
+        current.elements = current.elements.copyOf(current.depth * 2)
+        current.starts = current.starts.copyOf(current.depth * 2)
+        current.inner = current.inner.copyOf(current.depth * 2)
+    }
+    current.elements[current.depth] = element
+    current.inner[current.depth] = 0
+    current.starts[current.depth++] = System.nanoTime()
+}
+
+fun exitElement() {
+    val current = running.get()
+    val depth = --current.depth
+    val element = current.elements[depth]
+    val nanos = System.nanoTime() - current.starts[depth]
+    totalNanos[element].add(nanos)
+    selfNanos[element].add(nanos - current.inner[depth])
+    if (depth > 0) {
+        current.inner[depth - 1] += nanos
+    }
+}
+
+/**
+ * Prints the elements called so far to [out], the most expensive first
+ */
+internal fun printElementHistogram(out: PrintStream) {
+    val used = names.indices.filter { calls[it].sum() > 0 }
+    val sorted = if (timed) used.sortedByDescending { selfNanos[it].sum() } else used.sortedByDescending { calls[it].sum() }
+    if (timed) {
+        out.println("%-8s %14s %12s %12s".format("element", "calls", "total ms", "self ms"))
+        for (i in sorted) {
+            out.println(String.format(Locale.ROOT, "%-8s %14d %12.3f %12.3f", names[i], calls[i].sum(),
+                    totalNanos[i].sum() / 1e6, selfNanos[i].sum() / 1e6))
+        }
+    } else {
+        out.println("%-8s %14s".format("element", "calls"))
+        for (i in sorted) {
+            out.println("%-8s %14d".format(names[i], calls[i].sum()))
+        }
+    }
+}
\ No newline at end of file
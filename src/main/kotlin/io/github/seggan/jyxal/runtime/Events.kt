@@ -0,0 +1,114 @@
+package io.github.seggan.jyxal.runtime
+
+import jdk.jfr.Category
+import jdk.jfr.DataAmount
+import jdk.jfr.Description
+import jdk.jfr.Enabled
+import jdk.jfr.Event
+import jdk.jfr.Label
+import jdk.jfr.Name
+import jdk.jfr.StackTrace
+
+/*
+ * Flight Recorder events for the expensive parts of the runtime. They are all off unless a recording turns
+ * them on, e.g. with the settings in docs/jyxal.jfc, and cost next to nothing while they are off.
+ */
+
+@Name("jyxal.LambdaCall")
+@Label("Lambda Call")
+@Category("Jyxal")
+@Enabled(false)
+@StackTrace(false)
+class LambdaCallEvent : Event() {
+
+    @JvmField
+    @field:Label("Arity")
+    var arity = 0
+
+    @JvmField
+    @field:Label("Direct")
+    @field:Description("Whether the arguments were passed directly, without a stack of their own")
+    var direct = false
+}
+
+@Name("jyxal.LazyList")
+@Label("Lazy List Materialisation")
+@Category("Jyxal")
+@Enabled(false)
+class LazyListEvent : Event() {
+
+    @JvmField
+    @field:Label("Operation")
+    var operation: String? = null
+
+    @JvmField
+    @field:Label("Generated")
+    @field:Description("The number of items generated")
+    var generated = 0
+
+    @JvmField
+    @field:Label("Size")
+    @field:Description("The number of items generated so far, including these")
+    var size = 0
+
+    @JvmField
+    @field:Label("Exhausted")
+    var exhausted = false
+}
+
+@Name("jyxal.MonadVectorise")
+@Label("Monad Vectorisation")
+@Category("Jyxal")
+@Enabled(false)
+class VectoriseEvent : Event() {
+
+    @JvmField
+    @field:Label("Items")
+    var items = 0
+}
+
+@Name("jyxal.RegexCompile")
+@Label("Regex Compilation")
+@Category("Jyxal")
+@Enabled(false)
+class RegexCompileEvent : Event() {
+
+    @JvmField
+    @field:Label("Pattern")
+    var pattern: String? = null
+}
+
+@Name("jyxal.JShellEval")
+@Label("JShell Evaluation")
+@Category("Jyxal")
+@Enabled(false)
+class JShellEvalEvent : Event() {
+
+    @JvmField
+    @field:Label("Source Length")
+    var sourceLength = 0
+
+    @JvmField
+    @field:Label("Snippets")
+    var snippets = 0
+}
+
+@Name("jyxal.HttpRequest")
+@Label("HTTP Request")
+@Category("Jyxal")
+@Enabled(false)
+class HttpRequestEvent : Event() {
+
+    @JvmField
+    @field:Label("URL")
+    var url: String? = null
+
+    @JvmField
+    @field:Label("Status")
+    var status = 0
+
+    @JvmField
+    @field:Label("Response Size")
+    @field:DataAmount
+    var responseSize = 0L
+}
\ No newline at end of file
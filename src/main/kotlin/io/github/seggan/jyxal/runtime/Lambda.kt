@@ -1,28 +1,64 @@
 package io.github.seggan.jyxal.runtime
 
 import java.lang.invoke.MethodHandle
+import java.util.function.BiFunction
+import java.util.function.Function
 
-data class Lambda(val arity: Int, val handle: MethodHandle) {
+/**
+ * A compiled lambda. [handle] takes the lambda's own [ProgramStack]. If the compiler could prove that the
+ * lambda never looks further down the stack than its arguments, it also passes [monad] or [dyad], which
+ * take the arguments directly and need no stack to be built.
+ */
+data class Lambda @JvmOverloads constructor(
+        val arity: Int,
+        val handle: MethodHandle,
+        private val monad: Function<Any, Any>? = null,
+        private val dyad: BiFunction<Any, Any, Any>? = null
+) {
 
     fun call(stack: ProgramStack): Any {
-        val args: MutableList<Any> = ArrayList()
-        for (i in 0 until arity) {
-            args.add(stack.pop())
+        return record(arity == 1 && monad != null || arity == 2 && dyad != null) {
+            if (arity == 1 && monad != null) {
+                monad.apply(stack.pop())
+            } else if (arity == 2 && dyad != null) {
+                val top = stack.pop()
+                dyad.apply(top, stack.pop())
+            } else {
+                val args: MutableList<Any> = ArrayList()
+                for (i in 0 until arity) {
+                    args.add(stack.pop())
+                }
+                handle.invoke(ProgramStack(args))
+            }
         }
-        return handle.invoke(ProgramStack(args))
     }
 
-    fun call(arg: Any): Any {
+    fun call1(arg: Any): Any {
         if (arity != 1) {
             throw RuntimeException("Invalid arity")
         }
-        return handle.invoke(ProgramStack(arg))
+        return record(monad != null) { monad?.apply(arg) ?: handle.invoke(ProgramStack(arg)) }
     }
 
-    fun call(vararg args: Any): Any {
-        if (arity != args.size) {
+    /**
+     * Calls the lambda with [top] on top of its stack and [second] below it
+     */
+    fun call2(top: Any, second: Any): Any {
+        if (arity != 2) {
             throw RuntimeException("Invalid arity")
         }
-        return handle.invoke(ProgramStack(args))
+        return record(dyad != null) { dyad?.apply(top, second) ?: handle.invoke(ProgramStack(top, second)) }
+    }
+
+    private inline fun record(direct: Boolean, call: () -> Any): Any {
+        val event = LambdaCallEvent()
+        event.begin()
+        try {
+            return call()
+        } finally {
+            event.arity = arity
+            event.direct = direct
+            event.commit()
+        }
     }
 }
\ No newline at end of file
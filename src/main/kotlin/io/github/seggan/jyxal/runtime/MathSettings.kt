@@ -0,0 +1,87 @@
+@file:JvmName("MathSettings")
+
+package io.github.seggan.jyxal.runtime
+
+import io.github.seggan.jyxal.runtime.math.BigComplex
+import java.math.MathContext
+import java.math.RoundingMode
+
+/**
+ * The number of digits results that cannot be exact are rounded to, unless a program is compiled with another,
+ * the same as [MathContext.DECIMAL128]
+ */
+const val DEFAULT_PRECISION = 34
+
+/**
+ * How a program works out results that cannot be exact, like quotients, roots and logarithms. With [fast],
+ * which is what the `F` flag asks for, square roots, powers and logarithms of real numbers are worked out with
+ * doubles. Integer arithmetic and results that are not real stay exact either way.
+ */
+class MathMode(precision: Int, @JvmField val fast: Boolean) {
+
+    @JvmField
+    val context = MathContext(precision, RoundingMode.HALF_EVEN)
+}
+
+private val DEFAULT_MODE = MathMode(DEFAULT_PRECISION, false)
+
+/**
+ * The mode of the program running on each thread. Programs in one JVM share the runtime, so each one sets its
+ * own when it starts rather than the runtime having one for all of them.
+ */
+private val mode = ThreadLocal.withInitial { DEFAULT_MODE }
+
+internal fun mathMode(): MathMode = mode.get()
+
+/**
+ * Makes [precision] and [fast] the mode of the program on this thread. Compiled programs call this before
+ * anything else, with what they were compiled with.
+ */
+fun enterMath(precision: Int, fast: Boolean) {
+    mode.set(if (precision == DEFAULT_PRECISION && !fast) DEFAULT_MODE else MathMode(precision, fast))
+}
+
+/**
+ * Puts this thread back to the default mode, which compiled programs do when they finish
+ */
+fun exitMath() {
+    mode.remove()
+}
+
+/**
+ * Runs [block] in the mode of [precision] and [fast], then puts back the mode this thread was in, for code
+ * that runs a program, or part of one, in the middle of something else
+ */
+fun <T> withMath(precision: Int, fast: Boolean, block: () -> T): T {
+    val previous = mode.get()
+    enterMath(precision, fast)
+    try {
+        return block()
+    } finally {
+        mode.set(previous)
+    }
+}
+
+/**
+ * The double closest to [number], or NaN if it is not real
+ */
+internal fun realDouble(number: BigComplex): Double {
+    return if (number.isLong) number.longValue().toDouble() else if (number.isReal) number.re.toDouble() else Double.NaN
+}
+
+/**
+ * [value] as a number, using the long-backed form for integers, or null if it is not finite so that the
+ * caller can fall back to exact arithmetic
+ */
+internal fun fromDouble(value: Double): BigComplex? {
+    return when {
+        !value.isFinite() -> null
+        value == Math.rint(value) && Math.abs(value) < MAX_EXACT_DOUBLE -> BigComplex.valueOf(value.toLong())
+        else -> BigComplex.valueOf(value)
+    }
+}
+
+/**
+ * Every integer up to this fits in a double exactly
+ */
+private const val MAX_EXACT_DOUBLE = 9007199254740992.0
\ No newline at end of file
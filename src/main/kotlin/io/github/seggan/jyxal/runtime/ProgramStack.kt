@@ -36,8 +36,9 @@ class ProgramStack : ArrayDeque<Any?>, Deque<Any?> {
         input = null
     }
 
+    @Suppress("UNCHECKED_CAST")
     constructor(vararg objects: Any?) : super(listOf(*objects)) {
-        input = arrayOf(objects)
+        input = objects.copyOf() as Array<Any>
         flags = null
     }
 
@@ -3,6 +3,7 @@
 
 package io.github.seggan.jyxal.runtime
 
+import io.github.seggan.jyxal.runtime.list.FiniteList
 import io.github.seggan.jyxal.runtime.list.JyxalList
 import io.github.seggan.jyxal.runtime.math.BigComplex
 import jdk.jshell.JShell
@@ -15,13 +16,13 @@ import java.util.regex.Pattern
 import kotlin.math.sqrt
 
 internal val VOWELS = setOf('a', 'e', 'i', 'o', 'u', 'y')
-private val jShell: JShell by lazy(LazyThreadSafetyMode.NONE) {
+private val jShell: JShell by lazy {
     val shell = JShell.create()
     Runtime.getRuntime().addShutdownHook(Thread { shell.close() })
     shell
 }
-private val NUMBER_PATTERN: Pattern by lazy(LazyThreadSafetyMode.NONE) { Pattern.compile("\\d+(\\.\\d+)?") }
-private val LIST_PATTERN: Pattern by lazy(LazyThreadSafetyMode.NONE) { Pattern.compile("\\[.+(?:,(.+))*]") }
+private val NUMBER_PATTERN: Pattern by lazy { Pattern.compile("\\d+(\\.\\d+)?") }
+private val LIST_PATTERN: Pattern by lazy { Pattern.compile("\\[.+(?:,(.+))*]") }
 
 fun applyLambda(lambda: Lambda, obj: Any): Any {
     when (obj) {
@@ -36,7 +37,7 @@ fun applyLambda(lambda: Lambda, obj: Any): Any {
             val current = BigComplex.ONE
             val list = JyxalList.create()
             while (current <= obj) {
-                list.add(lambda.call(current))
+                list.add(lambda.call1(current))
             }
             return list
         }
@@ -44,7 +45,7 @@ fun applyLambda(lambda: Lambda, obj: Any): Any {
             val s = obj.toString()
             val list = JyxalList.create()
             for (c in s) {
-                list.add(lambda.call(c.toString()))
+                list.add(lambda.call1(c.toString()))
             }
             return list
         }
@@ -58,8 +59,14 @@ fun copy(obj: Any): Any {
 }
 
 fun exec(expr: String): Any {
+    val event = JShellEvalEvent()
+    event.begin()
+    val snippets = jShell.eval(jShell.sourceCodeAnalysis().analyzeCompletion(expr).source())
+    event.sourceLength = expr.length
+    event.snippets = snippets.size
+    event.commit()
     val stack = ProgramStack()
-    for (e in jShell.eval(jShell.sourceCodeAnalysis().analyzeCompletion(expr).source())) {
+    for (e in snippets) {
         if (e.status() == Snippet.Status.VALID) {
             stack.push(eval(e.value()))
         } else {
@@ -108,16 +115,16 @@ fun eval(expr: String): Any {
 fun filterLambda(lambda: Lambda, obj: Any): Any {
     return when (obj) {
         is JyxalList -> {
-            obj.filter { truthValue(lambda.call(it)) }
+            obj.filter { truthValue(lambda.call1(it)) }
         }
         is BigComplex -> {
-            JyxalList.range(BigComplex.ONE, obj).filter { truthValue(lambda.call(it)) }
+            JyxalList.range(BigComplex.ONE, obj).filter { truthValue(lambda.call1(it)) }
         }
         else -> {
             val s = obj.toString()
             val list = JyxalList.create()
             for (c in s) {
-                if (truthValue(lambda.call(c.toString()))) {
+                if (truthValue(lambda.call1(c.toString()))) {
                     list.add(c.toString())
                 }
             }
@@ -177,6 +184,23 @@ fun iterator(obj: Any): Iterator<Any> {
     }
 }
 
+/**
+ * The stack of a lambda that was called with [args] directly. The arguments are not on it, as the lambda keeps
+ * them in locals, but they are still its input.
+ */
+fun lambdaStack(args: Array<Any>): ProgramStack {
+    val stack = ProgramStack(*args)
+    stack.clear()
+    return stack
+}
+
+/**
+ * Wraps [list] without copying it. This is for compiled code that filled it itself and never touches it again.
+ */
+fun finiteList(list: ArrayList<Any>): JyxalList {
+    return FiniteList(list)
+}
+
 fun len(obj: Any): Int {
     return if (obj is JyxalList) {
         obj.size
@@ -193,19 +217,34 @@ fun listify(obj: Any): JyxalList {
     }
 }
 
+/**
+ * Unboxes a value the compiler has proven to be a small integer. Throws an [ArithmeticException] if it does not
+ * fit in a long after all, which sends the generated code down its generic path.
+ */
+fun longValue(obj: Any): Long {
+    if (obj is BigComplex) {
+        if (obj.isLong) {
+            return obj.longValue()
+        } else if (obj.isReal) {
+            return obj.re.longValueExact()
+        }
+    }
+    throw ArithmeticException("Not an integer: $obj")
+}
+
 fun mapLambda(lambda: Lambda, obj: Any): Any {
     return when (obj) {
         is JyxalList -> {
-            obj.map { lambda.call(it) }
+            obj.map { lambda.call1(it) }
         }
         is BigComplex -> {
-            JyxalList.range(BigComplex.ONE, obj).map { lambda.call(it) }
+            JyxalList.range(BigComplex.ONE, obj).map { lambda.call1(it) }
         }
         else -> {
             val s = obj.toString()
             val list = JyxalList.create()
             for (c in s) {
-                list.add(lambda.call(c.toString()))
+                list.add(lambda.call1(c.toString()))
             }
             list
         }
@@ -354,7 +393,7 @@ fun truthValue(obj: Any): Boolean {
     if (obj is JyxalList) {
         return obj.isNotEmpty()
     } else if (obj is BigComplex) {
-        return obj != BigComplex.ZERO
+        return !obj.isZero
     }
 
     return true
@@ -416,3 +455,15 @@ fun vectorise(arity: Int, function: (ProgramStack) -> Any, stack: ProgramStack):
     }
     return null
 }
+
+fun vectorise(left: Any, right: Any, function: (Any, Any) -> Any): Any? {
+    if (left is JyxalList) {
+        if (right is JyxalList) {
+            return left.zip(right, function)
+        }
+        return left.map { function(it, right) }
+    } else if (right is JyxalList) {
+        return right.map { function(left, it) }
+    }
+    return null
+}
@@ -12,39 +12,45 @@ import java.io.IOException
 import java.lang.invoke.MethodHandle
 import java.math.BigDecimal
 import java.math.BigInteger
-import java.math.MathContext
 import java.net.HttpURLConnection
 import java.net.URL
 import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
 import java.util.regex.Pattern
 import java.util.zip.GZIPInputStream
 import kotlin.math.min
 import kotlin.math.sqrt
 import kotlin.streams.toList
 
-private val COMMA_PATTERN: Regex by lazy(LazyThreadSafetyMode.NONE) { ",".toRegex() }
-private val SPACE_PATTERN: Regex by lazy(LazyThreadSafetyMode.NONE) { " ".toRegex() }
-private val PLUS_SPACE_I_PATTERN: Regex by lazy(LazyThreadSafetyMode.NONE) { "[+\\si]".toRegex() }
+// the compiler folds constants with these, from several threads at once in a daemon
+private val COMMA_PATTERN: Regex by lazy { ",".toRegex() }
+private val SPACE_PATTERN: Regex by lazy { " ".toRegex() }
+private val PLUS_SPACE_I_PATTERN: Regex by lazy { "[+\\si]".toRegex() }
 
-private val LONG_MAX_VALUE_AS_BIG: BigInteger by lazy(LazyThreadSafetyMode.NONE) { BigInteger.valueOf(Long.MAX_VALUE) }
-private val LONG_MIN_VALUE_AS_BIG: BigInteger by lazy(LazyThreadSafetyMode.NONE) { BigInteger.valueOf(Long.MIN_VALUE) }
+private val LONG_MAX_VALUE_AS_BIG: BigInteger = BigInteger.valueOf(Long.MAX_VALUE)
+private val LONG_MIN_VALUE_AS_BIG: BigInteger = BigInteger.valueOf(Long.MIN_VALUE)
 
-private val regexCache = mutableMapOf<String, Regex>()
+private val regexCache = ConcurrentHashMap<String, Regex>()
 
-fun add(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
-    return addImpl(a, b)
+private fun cachedRegex(pattern: String): Regex {
+    return regexCache.getOrPut(pattern) {
+        val event = RegexCompileEvent()
+        event.begin()
+        val regex = pattern.toRegex()
+        event.pattern = pattern
+        event.commit()
+        regex
+    }
 }
 
-private fun addImpl(a: Any, b: Any): Any {
+fun add(a: Any, b: Any): Any {
     if (a is JyxalList) {
         if (b is JyxalList) {
-            return a.zip(b) { o, p -> addImpl(o, p) }.jyxal()
+            return a.zip(b) { o, p -> add(o, p) }.jyxal()
         }
-        return a.map { item: Any -> addImpl(item, b) }
+        return a.map { item: Any -> add(item, b) }
     } else if (b is JyxalList) {
-        return b.map { item: Any -> addImpl(a, item) }
+        return b.map { item: Any -> add(a, item) }
     }
     return if (a is BigComplex && b is BigComplex) {
         a + b
@@ -114,9 +120,7 @@ fun chrOrd(obj: Any): Any {
     }
 }
 
-private inline fun compare(stack: ProgramStack, predicate: (Int) -> Boolean): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+private inline fun compare(a: Any, b: Any, predicate: (Int) -> Boolean): Any {
     return if (a is BigComplex && b is BigComplex) {
         predicate(a.compareTo(b)).jyxal()
     } else {
@@ -132,9 +136,7 @@ fun complement(obj: Any): Any {
     }
 }
 
-fun contains(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun contains(a: Any, b: Any): Any {
     return if (a is JyxalList) {
         a.contains(b).jyxal()
     } else {
@@ -142,9 +144,7 @@ fun contains(stack: ProgramStack): Any {
     }
 }
 
-fun count(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun count(a: Any, b: Any): Any {
     return if (a is JyxalList) {
         a.count { it == b }
     } else {
@@ -158,9 +158,7 @@ fun count(stack: ProgramStack): Any {
     }
 }
 
-fun cumulativeGroups(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun cumulativeGroups(a: Any, b: Any): Any {
     return if (b is BigComplex) {
         if (a is JyxalList) {
             sequence {
@@ -200,14 +198,12 @@ fun decrement(obj: Any): Any {
     }
 }
 
-fun divide(stack: ProgramStack): Any {
-    val o = vectorise(2, ::divide, stack)
+fun divide(a: Any, b: Any): Any {
+    val o = vectorise(a, b, ::divide)
     if (o != null) return o
-    val b = stack.pop()
-    val a = stack.pop()
     return if (a is BigComplex) {
         if (b is BigComplex) {
-            return a.divide(b, MathContext.DECIMAL128)
+            return a.divide(b, mathMode().context)
         }
         val list = ArrayList<Any>()
         var sb = StringBuilder()
@@ -300,11 +296,9 @@ fun eor(obj: Any): Any {
     }
 }
 
-fun equal(stack: ProgramStack): Any {
-    val o = vectorise(2, ::equal, stack)
+fun equal(a: Any, b: Any): Any {
+    val o = vectorise(a, b, ::equal)
     if (o != null) return o
-    val b = stack.pop()
-    val a = stack.pop()
     return if (a is BigComplex && b is BigComplex) {
         (a == b).jyxal()
     } else {
@@ -312,14 +306,12 @@ fun equal(stack: ProgramStack): Any {
     }
 }
 
-fun exponentiate(stack: ProgramStack): Any {
-    val o = vectorise(2, ::exponentiate, stack)
+fun exponentiate(a: Any, b: Any): Any {
+    val o = vectorise(a, b, ::exponentiate)
     if (o != null) return o
-    val b = stack.pop()
-    val a = stack.pop()
     return if (a is BigComplex) {
         if (b is BigComplex) {
-            BigComplexMath.pow(a, b, MathContext.DECIMAL128)
+            power(a, b)
         } else {
             val str = b.toString()
             val c = str[0]
@@ -338,7 +330,7 @@ fun exponentiate(stack: ProgramStack): Any {
         }
         sb.toString()
     } else {
-        val regex = regexCache.computeIfAbsent(a.toString(), String::toRegex)
+        val regex = cachedRegex(a.toString())
         val groups = regex.find(b.toString())?.groups
         if (groups == null || groups.isEmpty()) {
             JyxalList.create()
@@ -430,11 +422,9 @@ fun factorial(obj: Any): Any {
     }
 }
 
-fun filter(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun filter(a: Any, b: Any): Any {
     return if (b is Lambda) {
-        listify(a).filter { truthValue(b.call(it)) }
+        listify(a).filter { truthValue(b.call1(it)) }
     } else {
         val list = mutableListOf<Any>()
         iterator(a).forEach(list::add)
@@ -481,13 +471,19 @@ fun getRequest(obj: Any): Any {
     if (!url.startsWith("http://") && !url.startsWith("https://")) {
         url = "http://$url"
     }
+    val event = HttpRequestEvent()
+    event.begin()
+    event.url = url
     val connection = URL(url).openConnection() as HttpURLConnection
     connection.setRequestProperty("User-Agent", "Mozilla/5.0 Jyxal")
     connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8")
     connection.instanceFollowRedirects = true
     connection.connect()
     val code = connection.responseCode
+    event.status = code
     if (code / 100 == 3) {
+        // the request redirected to is an event of its own
+        event.commit()
         val location = connection.getHeaderField("Location")
         return if (location != null) {
             getRequest(location)
@@ -495,10 +491,13 @@ fun getRequest(obj: Any): Any {
             throw IOException("Redirect without location")
         }
     } else if (code / 100 != 2) {
+        event.commit()
         return code.jyxal()
     }
     var response: ByteArray
     connection.inputStream.use { inputStream -> response = inputStream.readAllBytes() }
+    event.responseSize = response.size.toLong()
+    event.commit()
     if (connection.contentEncoding == "gzip") {
         try {
             GZIPInputStream(ByteArrayInputStream(response)).use { stream -> return String(stream.readAllBytes(), StandardCharsets.UTF_8) }
@@ -509,14 +508,12 @@ fun getRequest(obj: Any): Any {
     return String(response, StandardCharsets.UTF_8)
 }
 
-fun greaterThan(stack: ProgramStack): Any {
-    val o = vectorise(2, ::greaterThanOrEqual, stack)
-    return o ?: compare(stack) { i: Int -> i > 0 }
+fun greaterThan(a: Any, b: Any): Any {
+    return vectorise(a, b, ::greaterThan) ?: compare(a, b) { i: Int -> i > 0 }
 }
 
-fun greaterThanOrEqual(stack: ProgramStack): Any {
-    val o = vectorise(2, ::greaterThanOrEqual, stack)
-    return o ?: compare(stack) { i: Int -> i >= 0 }
+fun greaterThanOrEqual(a: Any, b: Any): Any {
+    return vectorise(a, b, ::greaterThanOrEqual) ?: compare(a, b) { i: Int -> i >= 0 }
 }
 
 fun halve(stack: ProgramStack): Any {
@@ -524,7 +521,7 @@ fun halve(stack: ProgramStack): Any {
     if (o != null) return o
     val obj = stack.pop()
     return if (obj is BigComplex) {
-        obj.divide(BigComplex.TWO, MathContext.DECIMAL128)
+        obj.divide(BigComplex.TWO, mathMode().context)
     } else {
         val str = obj.toString()
         val limit = str.length / 2 + 1
@@ -570,9 +567,8 @@ fun increment(obj: Any): Any {
     }
 }
 
-fun indexInto(stack: ProgramStack): Any {
-    val index = stack.pop()
-    val obj = listify(stack.pop())
+fun indexInto(a: Any, index: Any): Any {
+    val obj = listify(a)
     if (index is BigComplex) {
         return obj[index.toInt()]
     } else if (index is JyxalList) {
@@ -670,9 +666,7 @@ fun infiniteReplace(stack: ProgramStack): Any {
     }
 }
 
-fun interleave(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun interleave(a: Any, b: Any): Any {
     if (a is String && b is String) {
         return buildString {
             for (i in 0 until min(a.length, b.length)) {
@@ -813,9 +807,8 @@ fun izr(obj: Any): Any {
     }
 }
 
-fun join(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val list = listify(stack.pop())
+fun join(a: Any, b: Any): Any {
+    val list = listify(a)
     return list.joinToString(b.toString())
 }
 
@@ -828,10 +821,10 @@ fun joinByNothing(obj: Any): Any {
             }
             sb.toString()
         }
-        is BigComplex -> (obj.abs(MathContext.DECIMAL128) <= BigDecimal.ONE).jyxal()
+        is BigComplex -> (obj.abs(mathMode().context) <= BigDecimal.ONE).jyxal()
         is Lambda -> {
             var result = BigComplex.ZERO
-            while (!truthValue(obj.call(result))) {
+            while (!truthValue(obj.call1(result))) {
                 result += 1
             }
             result
@@ -858,21 +851,17 @@ fun length(obj: Any): Any {
     return if (obj is JyxalList) obj.size.jyxal() else obj.toString().length.jyxal()
 }
 
-fun lessThan(stack: ProgramStack): Any {
-    val o = vectorise(2, ::lessThan, stack)
-    return o ?: compare(stack) { i: Int -> i < 0 }
+fun lessThan(a: Any, b: Any): Any {
+    return vectorise(a, b, ::lessThan) ?: compare(a, b) { i: Int -> i < 0 }
 }
 
-fun lessThanOrEqual(stack: ProgramStack): Any {
-    val o = vectorise(2, ::lessThanOrEqual, stack)
-    return o ?: compare(stack) { i: Int -> i <= 0 }
+fun lessThanOrEqual(a: Any, b: Any): Any {
+    return vectorise(a, b, ::lessThanOrEqual) ?: compare(a, b) { i: Int -> i <= 0 }
 }
 
 fun listi(obj: Any): Any = JyxalList.create(obj)
 
-fun logicalAnd(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun logicalAnd(a: Any, b: Any): Any {
     return if (truthValue(a)) {
         if (truthValue(b)) {
             a
@@ -884,9 +873,7 @@ fun logicalAnd(stack: ProgramStack): Any {
     }
 }
 
-fun logicalOr(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun logicalOr(a: Any, b: Any): Any {
     return if (truthValue(a)) {
         a
     } else {
@@ -898,11 +885,9 @@ fun logicalOr(stack: ProgramStack): Any {
     }
 }
 
-fun map(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun map(a: Any, b: Any): Any {
     return if (b is Lambda) {
-        if (a is JyxalList) a.map(b::call) else listify(a).map(b::call)
+        if (a is JyxalList) a.map(b::call1) else listify(a).map(b::call1)
     } else {
         val list = ArrayList<JyxalList>()
         for (item in iterator(b)) {
@@ -959,9 +944,7 @@ fun max(obj: Any): Any {
     return max
 }
 
-fun merge(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun merge(a: Any, b: Any): Any {
     return if (a is JyxalList) {
         if (b is JyxalList) {
             a.addAll(b)
@@ -999,11 +982,9 @@ fun mirror(obj: Any): Any {
     }
 }
 
-fun moduloFormat(stack: ProgramStack): Any {
-    val o = vectorise(2, ::multiCommand, stack)
+fun moduloFormat(a: Any, b: Any): Any {
+    val o = vectorise(a, b, ::moduloFormat)
     if (o != null) return o
-    val b = stack.pop()
-    val a = stack.pop()
     return if (a is BigComplex && b is BigComplex) {
         a % b
     } else {
@@ -1015,11 +996,9 @@ fun moduloFormat(stack: ProgramStack): Any {
     }
 }
 
-fun multiCommand(stack: ProgramStack): Any {
-    val o = vectorise(2, ::multiCommand, stack)
+fun multiCommand(a: Any, b: Any): Any {
+    val o = vectorise(a, b, ::multiCommand)
     if (o != null) return o
-    val b = stack.pop()
-    val a = stack.pop()
     return if (a is BigComplex) {
         if (b is BigComplex) {
             b loga a
@@ -1050,11 +1029,9 @@ fun multiCommand(stack: ProgramStack): Any {
     }
 }
 
-fun multiply(stack: ProgramStack): Any {
-    val o = vectorise(2, ::multiply, stack)
+fun multiply(a: Any, b: Any): Any {
+    val o = vectorise(a, b, ::multiply)
     if (o != null) return o
-    val b = stack.pop()
-    val a = stack.pop()
     return if (a is BigComplex) {
         if (b is BigComplex) {
             return a * b
@@ -1097,9 +1074,7 @@ fun parity(obj: Any): Any {
     }
 }
 
-fun prepend(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun prepend(a: Any, b: Any): Any {
     return if (a is JyxalList) {
         a.add(BigInteger.ZERO, b)
     } else if (a is BigComplex && b is BigComplex) {
@@ -1117,9 +1092,7 @@ fun printToFile(stack: ProgramStack) {
     }
 }
 
-fun range(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun range(a: Any, b: Any): Any {
     return if (a is BigComplex) {
         when (b) {
             is BigComplex -> JyxalList.range(a, b)
@@ -1129,7 +1102,7 @@ fun range(stack: ProgramStack): Any {
     } else if (b is BigComplex) {
         a.toString().padStart(b.toInt(), ' ')
     } else {
-        val regex = regexCache.computeIfAbsent(a.toString(), String::toRegex)
+        val regex = cachedRegex(a.toString())
         regex.matches(b.toString()).jyxal()
     }
 }
@@ -1145,7 +1118,7 @@ fun reduce(stack: ProgramStack): Any {
         }
         var result = a.next()
         while (a.hasNext()) {
-            result = b.call(result, a.next())
+            result = b.call2(result, a.next())
         }
         return result
     }
@@ -1164,15 +1137,13 @@ fun reduce(stack: ProgramStack): Any {
 
 }
 
-fun remove(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun remove(a: Any, b: Any): Any {
     fun firstInts(f: Lambda, limit: BigInteger): JyxalList {
         return sequence {
             var i = BigInteger.ZERO
             var num = BigComplex.ONE
             while (i < limit) {
-                if (truthValue(f.call(num))) {
+                if (truthValue(f.call1(num))) {
                     yield(num)
                     i += BigInteger.ONE
                 }
@@ -1188,9 +1159,7 @@ fun remove(stack: ProgramStack): Any {
     }
 }
 
-fun removeAtIndex(stack: ProgramStack): Any {
-    val a = stack.pop()
-    val b = stack.pop()
+fun removeAtIndex(b: Any, a: Any): Any {
     return if (a is BigComplex) {
         if (b is JyxalList) {
             return b.remove(a.re.toInt())
@@ -1250,17 +1219,15 @@ fun reverse(obj: Any): Any {
     }
 }
 
-fun sliceUntil(stack: ProgramStack): Any {
-    val o = vectorise(2, ::sliceUntil, stack)
+fun sliceUntil(a: Any, b: Any): Any {
+    val o = vectorise(a, b, ::sliceUntil)
     if (o != null) return o
-    val b = stack.pop()
-    val a = stack.pop()
     return if (a is BigComplex) {
         sliceUntilImpl(b, a.re.toBigInteger())
     } else if (b is BigComplex) {
         sliceUntilImpl(a, b.re.toBigInteger())
     } else {
-        regexCache.computeIfAbsent(a.toString(), String::toRegex).findAll(b.toString()).map(MatchResult::value).jyxal()
+        cachedRegex(a.toString()).findAll(b.toString()).map(MatchResult::value).jyxal()
     }
 }
 
@@ -1282,15 +1249,13 @@ private fun sliceUntilImpl(a: Any, b: BigInteger): Any {
 
 fun sort(obj: Any): Any = listify(obj).sortedBy(::sortHelper).jyxal()
 
-fun sortByFunction(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun sortByFunction(a: Any, b: Any): Any {
     return if (b is Lambda) {
-        listify(a).sortedBy { sortHelper(b.call(it)) }.jyxal()
+        listify(a).sortedBy { sortHelper(b.call1(it)) }.jyxal()
     } else if (a is BigComplex && b is BigComplex) {
         JyxalList.range(a, b + 1)
     } else {
-        regexCache.computeIfAbsent(b.toString(), String::toRegex).split(a.toString()).jyxal()
+        cachedRegex(b.toString()).split(a.toString()).jyxal()
     }
 }
 
@@ -1302,9 +1267,7 @@ private fun sortHelper(obj: Any): BigComplex {
     }
 }
 
-fun splitOn(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun splitOn(a: Any, b: Any): Any {
     return if (a is JyxalList) {
         val superList = ArrayList<Any>()
         var newList = ArrayList<Any>()
@@ -1325,7 +1288,11 @@ fun splitOn(stack: ProgramStack): Any {
 
 fun sqrt(obj: Any): Any {
     return if (obj is BigComplex) {
-        BigComplexMath.sqrt(obj, MathContext.DECIMAL128)
+        val mode = mathMode()
+        if (mode.fast) {
+            fromDouble(Math.sqrt(realDouble(obj)))?.let { return it }
+        }
+        BigComplexMath.sqrt(obj, mode.context)
     } else {
         buildString {
             for ((i, c) in obj.toString().withIndex()) {
@@ -1337,11 +1304,9 @@ fun sqrt(obj: Any): Any {
     }
 }
 
-fun subtract(stack: ProgramStack): Any {
-    val o = vectorise(2, ::subtract, stack)
+fun subtract(a: Any, b: Any): Any {
+    val o = vectorise(a, b, ::subtract)
     if (o != null) return o
-    val b = stack.pop()
-    val a = stack.pop()
     return if (a is BigComplex) {
         if (b is BigComplex) {
             a.subtract(b)
@@ -1358,7 +1323,7 @@ fun sum(obj: Any): Any {
         is JyxalList -> {
             var sum: Any = BigComplex.ZERO
             for (item in obj) {
-                sum = addImpl(sum, item)
+                sum = add(sum, item)
             }
             sum
         }
@@ -1393,9 +1358,7 @@ fun spaces(obj: Any): Any {
     }
 }
 
-fun strip(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun strip(a: Any, b: Any): Any {
     return if (a is JyxalList) {
         val iterator = a.listIterator()
         while (iterator.hasNext()) {
@@ -1473,7 +1436,7 @@ fun truthyIndexes(obj: Any): Any {
 
 fun twoPow(obj: Any): Any {
     return if (obj is BigComplex) {
-        BigComplexMath.pow(BigComplex.TWO, obj, MathContext.DECIMAL128)
+        power(BigComplex.TWO, obj)
     } else {
         exec(obj.toString())
     }
@@ -1511,11 +1474,9 @@ fun uniquify(obj: Any): Any {
     }
 }
 
-fun zip(stack: ProgramStack): Any {
-    val b = stack.pop()
-    val a = stack.pop()
+fun zip(a: Any, b: Any): Any {
     val toZip = if (b is Lambda) {
-        listify(a).map(b::call)
+        listify(a).map(b::call1)
     } else {
         listify(b)
     }
@@ -1532,10 +1493,14 @@ fun zipSelf(obj: Any): Any {
 
 fun monadVectorise(obj: Any, handle: MethodHandle): Any {
     if (obj is JyxalList) {
+        val event = VectoriseEvent()
+        event.begin()
         val result = ArrayList<Any>()
         for (item in obj) {
             result.add(monadVectorise(item, handle))
         }
+        event.items = result.size
+        event.commit()
         return result.jyxal()
     }
     return handle.invoke(obj)
@@ -1547,16 +1512,38 @@ operator fun BigComplex.minus(other: BigComplex): BigComplex = this.subtract(oth
 operator fun BigComplex.minus(other: Long): BigComplex = this.subtract(BigComplex.valueOf(other))
 operator fun BigComplex.times(other: BigComplex): BigComplex = this.multiply(other)
 operator fun BigComplex.times(other: Long): BigComplex = this.multiply(BigComplex.valueOf(other))
-operator fun BigComplex.rem(other: BigComplex) = BigComplex.valueOf(re.remainder(other.re), im.remainder(other.re))
+operator fun BigComplex.rem(other: BigComplex): BigComplex {
+    if (isLong && other.isLong && other.longValue() != 0L) {
+        return BigComplex.valueOf(longValue() % other.longValue())
+    }
+    return BigComplex.valueOf(re.remainder(other.re), im.remainder(other.re))
+}
 operator fun BigComplex.rem(other: Long) = rem(BigComplex.valueOf(other))
 
 infix fun BigComplex.loga(a: BigComplex): BigComplex {
+    val mode = mathMode()
+    if (mode.fast) {
+        val top = Math.log(realDouble(this))
+        val bottom = Math.log(realDouble(a))
+        // the log of zero is infinite, which a quotient can hide
+        if (top.isFinite() && bottom.isFinite()) {
+            fromDouble(top / bottom)?.let { return it }
+        }
+    }
     // complex numbers go brr
     // going off of that fact that ln(x)/ln(a) = loga(x)
     // and ln(x) = ln(|x|) + i * arg(x)
-    val top = BigComplexMath.log(this, MathContext.DECIMAL128)
-    val bottom = BigComplexMath.log(a, MathContext.DECIMAL128)
-    return top.divide(bottom, MathContext.DECIMAL128)
+    val top = BigComplexMath.log(this, mode.context)
+    val bottom = BigComplexMath.log(a, mode.context)
+    return top.divide(bottom, mode.context)
 }
 
-infix fun BigComplex.loga(a: Long): BigComplex = this.loga(BigComplex.valueOf(a))
\ No newline at end of file
+infix fun BigComplex.loga(a: Long): BigComplex = this.loga(BigComplex.valueOf(a))
+
+private fun power(base: BigComplex, exponent: BigComplex): BigComplex {
+    val mode = mathMode()
+    if (mode.fast) {
+        fromDouble(Math.pow(realDouble(base), realDouble(exponent)))?.let { return it }
+    }
+    return BigComplexMath.pow(base, exponent, mode.context)
+}
\ No newline at end of file
@@ -14,10 +14,12 @@ abstract class JyxalList : Collection<Any> {
             return LazyList(generator)
         }
 
+        @JvmStatic
         fun create(vararg array: Any): JyxalList {
             return FiniteList(listOf(*array))
         }
 
+        @JvmStatic
         fun create(collection: Collection<Any>): JyxalList {
             return FiniteList(collection.toList())
         }
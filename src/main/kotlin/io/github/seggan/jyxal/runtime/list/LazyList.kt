@@ -1,5 +1,6 @@
 package io.github.seggan.jyxal.runtime.list
 
+import io.github.seggan.jyxal.runtime.LazyListEvent
 import io.github.seggan.jyxal.runtime.math.BigComplex
 import java.math.BigInteger
 
@@ -9,17 +10,24 @@ internal class LazyList(private val generator: Iterator<Any>) : JyxalList() {
 
     private var resolved: Boolean = false
 
+    /**
+     * Whether a [LazyListEvent] is being recorded, which covers any items generated on the way
+     */
+    private var recording: Boolean = false
+
     override val size: Int
         get() {
             return if (resolved) {
                 backing.size
             } else {
-                var size = 0
-                for (i in this) {
-                    size++
+                record("size") {
+                    var size = 0
+                    for (i in this) {
+                        size++
+                    }
+                    resolved = true
+                    size
                 }
-                resolved = true
-                size
             }
         }
 
@@ -86,11 +94,13 @@ internal class LazyList(private val generator: Iterator<Any>) : JyxalList() {
     }
 
     override fun toNonLazy(): JyxalList {
-        val newList = ArrayList<Any>()
-        for (elm in this) {
-            newList.add(elm)
+        return record("toNonLazy") {
+            val newList = ArrayList<Any>()
+            for (elm in this) {
+                newList.add(elm)
+            }
+            FiniteList(newList)
         }
-        return FiniteList(newList)
     }
 
     override fun listIterator(): ListIterator<Any> {
@@ -263,17 +273,39 @@ internal class LazyList(private val generator: Iterator<Any>) : JyxalList() {
     }
 
     private fun fill(index: Int) {
-        if (!resolved) {
-            while (backing.size <= index) {
-                if (!generator.hasNext()) {
-                    resolved = true
-                    break
+        if (!resolved && backing.size <= index) {
+            record("fill") {
+                while (backing.size <= index) {
+                    if (!generator.hasNext()) {
+                        resolved = true
+                        break
+                    }
+                    backing.add(generator.next())
                 }
-                backing.add(generator.next())
             }
         }
     }
 
+    private inline fun <T> record(operation: String, block: () -> T): T {
+        if (recording) {
+            return block()
+        }
+        val event = LazyListEvent()
+        val before = backing.size
+        recording = true
+        event.begin()
+        try {
+            return block()
+        } finally {
+            recording = false
+            event.operation = operation
+            event.generated = backing.size - before
+            event.size = backing.size
+            event.exhausted = resolved
+            event.commit()
+        }
+    }
+
     override fun hashCode(): Int {
         return backing.hashCode()
     }
@@ -0,0 +1,59 @@
+package io.github.seggan.jyxal
+
+import io.github.seggan.jyxal.Main.doMain
+import java.io.OutputStream
+import java.io.PrintStream
+import java.lang.management.ManagementFactory
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.util.Locale
+
+/**
+ * Prints how many bytes a few loop heavy programs allocate once they are warmed up. Run it with
+ * `gradle allocationBenchmark`, before and after a change to the runtime's numbers.
+ */
+object AllocationBenchmark {
+
+    private val programs = listOf(
+        "0 100000(n+)",
+        "0 100000(n 2% ¬ +)",
+        "0 100000(n 1000% 500< +)",
+        "0 {n 100000<|n 7% ḃ +}",
+        "100000 ƛ3%; ∑",
+    )
+
+    private const val WARMUP = 5
+    private const val RUNS = 10
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val thread = Thread.currentThread().id
+        val dir = Files.createTempDirectory("jyxal-bench")
+        // the compiler and the programs print to standard out
+        val out = System.out
+        System.setOut(PrintStream(OutputStream.nullOutputStream()))
+        try {
+            out.println("%-28s %16s".format("program", "bytes per run"))
+            for ((i, program) in programs.withIndex()) {
+                val file = dir.resolve("bench$i.vy")
+                Files.writeString(file, program)
+                doMain(arrayOf(file.toString()), true)
+                val jar = dir.resolve("bench$i.jar")
+                URLClassLoader(arrayOf(jar.toUri().toURL()), AllocationBenchmark::class.java.classLoader).use { loader ->
+                    val main = loader.loadClass("jyxal.Main").getMethod("main", Array<String>::class.java)
+                    repeat(WARMUP) { main.invoke(null, arrayOfNulls<String>(0) as Any) }
+                    val before = threads.getThreadAllocatedBytes(thread)
+                    repeat(RUNS) { main.invoke(null, arrayOfNulls<String>(0) as Any) }
+                    val bytes = (threads.getThreadAllocatedBytes(thread) - before) / RUNS
+                    out.println(String.format(Locale.ROOT, "%-28s %16d", program, bytes))
+                }
+                Files.delete(jar)
+                Files.delete(file)
+            }
+        } finally {
+            System.setOut(out)
+        }
+        Files.delete(dir)
+    }
+}
\ No newline at end of file
@@ -0,0 +1,49 @@
+package io.github.seggan.jyxal
+
+import io.github.seggan.jyxal.runtime.DEFAULT_PRECISION
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+
+class BatchCompilerTest {
+
+    @Test
+    fun testFindPrograms() {
+        val dir = Files.createTempDirectory("jyxal-test")
+        try {
+            // what compiling a.vy leaves behind is not a program
+            for (name in listOf("a.vy", "b.vyxal", "a.jar", "a.vy-debug.log", "a-metrics.json", "a-lines.tsv", "notes.txt")) {
+                Files.writeString(dir.resolve(name), "1")
+            }
+            Assertions.assertEquals(
+                    listOf(dir.resolve("a.vy"), dir.resolve("b.vyxal")),
+                    BatchCompiler.findPrograms(dir.toString())
+            )
+            Assertions.assertEquals(listOf(dir.resolve("notes.txt")), BatchCompiler.findPrograms("$dir/*.txt"))
+        } finally {
+            TestHelper.deleteTree(dir)
+        }
+    }
+
+    @Test
+    fun testCompile() {
+        val dir = Files.createTempDirectory("jyxal-test")
+        try {
+            Files.writeString(dir.resolve("good.vy"), "1 2 +")
+            Files.writeString(dir.resolve("bad.vy"), "1 $")
+            val bytes = ByteArrayOutputStream()
+            val compiled = BatchCompiler(emptySet(), DEFAULT_PRECISION, true).compile(BatchCompiler.findPrograms(dir.toString()), PrintStream(bytes, true, Charsets.UTF_8))
+            Assertions.assertFalse(compiled)
+            val lines = bytes.toString(Charsets.UTF_8).lines()
+            Assertions.assertTrue(lines[0].startsWith("FAIL") && lines[0].contains("bad.vy"), lines[0])
+            Assertions.assertTrue(lines[1].startsWith("OK") && lines[1].endsWith("good.vy"), lines[1])
+            Assertions.assertEquals("Compiled 1 of 2 programs", lines[2].substringBefore(" in "))
+            Assertions.assertTrue(Files.exists(dir.resolve("good.jar")))
+            Assertions.assertFalse(Files.exists(dir.resolve("bad.jar")))
+        } finally {
+            TestHelper.deleteTree(dir)
+        }
+    }
+}
\ No newline at end of file
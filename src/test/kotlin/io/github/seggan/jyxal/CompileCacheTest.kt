@@ -0,0 +1,77 @@
+package io.github.seggan.jyxal
+
+import io.github.seggan.jyxal.runtime.DEFAULT_PRECISION
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+class CompileCacheTest {
+
+    private val runtime = byteArrayOf(1, 2, 3)
+
+    @Test
+    fun testKey() {
+        val cache = CompileCache(Path.of("unused"), 0)
+        val key = cache.key("1 2 +".toByteArray(), emptySet(), DEFAULT_PRECISION, "1.0", runtime)
+        Assertions.assertEquals(key, cache.key("1 2 +".toByteArray(), emptySet(), DEFAULT_PRECISION, "1.0", runtime))
+        // anything that changes the jar changes the key
+        Assertions.assertNotEquals(key, cache.key("1 2 -".toByteArray(), emptySet(), DEFAULT_PRECISION, "1.0", runtime))
+        Assertions.assertNotEquals(key, cache.key("1 2 +".toByteArray(), setOf(CompilerOptions.FAST_MATH), DEFAULT_PRECISION, "1.0", runtime))
+        Assertions.assertNotEquals(key, cache.key("1 2 +".toByteArray(), emptySet(), 100, "1.0", runtime))
+        Assertions.assertNotEquals(key, cache.key("1 2 +".toByteArray(), emptySet(), DEFAULT_PRECISION, "1.1", runtime))
+        Assertions.assertNotEquals(key, cache.key("1 2 +".toByteArray(), emptySet(), DEFAULT_PRECISION, "1.0", byteArrayOf(1, 2, 4)))
+    }
+
+    @Test
+    fun testHitsAndEviction() {
+        val dir = Files.createTempDirectory("jyxal-test")
+        try {
+            val cache = CompileCache(dir.resolve("cache"), 250)
+            val target = dir.resolve("target.jar").toFile()
+            Assertions.assertFalse(cache.get("a", target))
+
+            for (key in listOf("a", "b")) {
+                val jar = dir.resolve("$key.jar")
+                Files.write(jar, ByteArray(100) { key[0].code.toByte() })
+                cache.put(key, jar.toFile())
+            }
+            Assertions.assertTrue(cache.get("a", target))
+            Assertions.assertArrayEquals(ByteArray(100) { 'a'.code.toByte() }, Files.readAllBytes(target.toPath()))
+
+            // a was used after b, so b goes first
+            val now = System.currentTimeMillis()
+            Files.setLastModifiedTime(dir.resolve("cache/a.jar"), FileTime.fromMillis(now - 1000))
+            Files.setLastModifiedTime(dir.resolve("cache/b.jar"), FileTime.fromMillis(now - 2000))
+            Assertions.assertTrue(cache.get("a", target))
+            val jar = dir.resolve("c.jar")
+            Files.write(jar, ByteArray(100))
+            cache.put("c", jar.toFile())
+            Assertions.assertTrue(cache.get("a", target))
+            Assertions.assertFalse(cache.get("b", target))
+            Assertions.assertTrue(cache.get("c", target))
+        } finally {
+            TestHelper.deleteTree(dir)
+        }
+    }
+
+    @Test
+    fun testFromProperties() {
+        val dir = Files.createTempDirectory("jyxal-test")
+        val old = System.getProperty("jyxal.cache.dir")
+        try {
+            System.setProperty("jyxal.cache.dir", dir.toString())
+            val jar = dir.resolve("program.jar")
+            Files.write(jar, byteArrayOf(42))
+            CompileCache.fromProperties()!!.put("key", jar.toFile())
+            Assertions.assertTrue(Files.exists(dir.resolve("key.jar")))
+
+            System.setProperty("jyxal.cache.dir", "none")
+            Assertions.assertNull(CompileCache.fromProperties())
+        } finally {
+            if (old == null) System.clearProperty("jyxal.cache.dir") else System.setProperty("jyxal.cache.dir", old)
+            TestHelper.deleteTree(dir)
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,51 @@
+package io.github.seggan.jyxal
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.file.Files
+import java.nio.file.Path
+
+class DaemonTest {
+
+    @Test
+    fun testRequests() {
+        val dir = Files.createTempDirectory("jyxal-test")
+        val server = ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+        val thread = Thread { Daemon(server.localPort, true).serve(server) }
+        thread.start()
+        try {
+            val good = dir.resolve("good.vy")
+            Files.writeString(good, "1 2 +")
+            Assertions.assertEquals("OK ${dir.resolve("good.jar").toAbsolutePath()}", request(server.localPort, good, "m"))
+            Assertions.assertTrue(Files.exists(dir.resolve("good.jar")))
+            Assertions.assertTrue(Files.exists(dir.resolve("good-metrics.json")))
+
+            val bad = dir.resolve("bad.vy")
+            Files.writeString(bad, "1 $")
+            val error = request(server.localPort, bad, "")
+            Assertions.assertTrue(error.startsWith("ERROR ") && "Unknown element" in error, error)
+
+            val missing = request(server.localPort, dir.resolve("missing.vy"), "")
+            Assertions.assertTrue(missing.startsWith("ERROR "), missing)
+        } finally {
+            server.close()
+            thread.join()
+            TestHelper.deleteTree(dir)
+        }
+    }
+
+    /**
+     * Asks the daemon listening on [port] to compile [file] with [flags], returning its answer
+     */
+    private fun request(port: Int, file: Path, flags: String): String {
+        Socket(InetAddress.getLoopbackAddress(), port).use { socket ->
+            val writer = socket.getOutputStream().bufferedWriter(Charsets.UTF_8)
+            writer.write("$file\n$flags\n")
+            writer.flush()
+            return socket.getInputStream().bufferedReader(Charsets.UTF_8).readLine()
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,56 @@
+package io.github.seggan.jyxal
+
+import io.github.seggan.jyxal.compiler.Parser
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+
+/**
+ * Checks that a program prints the same whether its loops and lambdas stay interpreted or are compiled
+ */
+class InterpreterTest {
+
+    private val programs = mapOf(
+        "1 2 +" to "3",
+        "0 10(n+)" to "55",
+        "0 100(n n* +)" to "338350",
+        "0 10(x|←x +)" to "55",
+        "0 →i {←i 5<|←i 1+ →i} ←i" to "5",
+        "0 20(n 5> [X] n+)" to "210",
+        "0 {n 11<|n+}" to "55",
+        "0 3(2(n+) n+)" to "15",
+        "0 {n 4<|⟨1|2⟩(n+) n+}" to "15",
+        "1 →a 10(←a 2* →a) ←a" to "1024",
+        "⟨1|2|3⟩ ƛ2*;" to "⟨2 | 4 | 6⟩",
+        "⟨1|2|3|4⟩ λ2%;F ƛn;" to "⟨⟨1⟩ | ⟨3⟩⟩",
+        "⟨1|2|3⟩ ƛ1 2; ⁽dM" to "⟨4 | 4 | 4⟩",
+        "5 ƛ2*; ∑" to "20",
+        "3 →a ←a 100 e" to "515377520732011331036461129765621300000000000000",
+        "2* ¢d 3 d d" to "12",
+        // big enough to be split into several methods
+        "0 3(${"1+ ".repeat(1000)}n 2= [X])" to "3000",
+        "0 →a 2(${"←a 1+ →a ".repeat(500)})←a" to "1000"
+    )
+
+    @Test
+    fun testTiers() {
+        for ((program, expected) in programs) {
+            for (threshold in listOf(Int.MAX_VALUE, 0, 3)) {
+                Assertions.assertEquals(expected, run(program, threshold), "Output of $program at threshold $threshold")
+            }
+        }
+    }
+
+    private fun run(program: String, threshold: Int): String {
+        val out = System.out
+        val bytes = ByteArrayOutputStream()
+        System.setOut(PrintStream(bytes, true, Charsets.UTF_8))
+        try {
+            Interpreter(Parser.parse(program), CompilerOptions.fromString("O"), threshold).run(arrayOf())
+        } finally {
+            System.setOut(out)
+        }
+        return bytes.toString(Charsets.UTF_8).trim()
+    }
+}
\ No newline at end of file
@@ -0,0 +1,42 @@
+package io.github.seggan.jyxal
+
+import io.github.seggan.jyxal.runtime.DEFAULT_PRECISION
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+
+class MainTest {
+
+    @Test
+    fun testRun() {
+        val dir = Files.createTempDirectory("jyxal-test")
+        try {
+            val fileName = dir.resolve("test.vy").toString()
+            for (flags in listOf("", "i")) {
+                val options = CompilerOptions.fromString(flags)
+                Assertions.assertEquals("3", captureOut { Main.run("1 2 +".toByteArray(), fileName, options, DEFAULT_PRECISION, arrayOf()) })
+                Assertions.assertThrows(ArithmeticException::class.java) {
+                    captureOut { Main.run("1 →a ←a 0 /".toByteArray(), fileName, options, DEFAULT_PRECISION, arrayOf()) }
+                }
+            }
+            // nothing is written next to the program
+            Assertions.assertEquals(0, Files.list(dir).use { it.count() })
+        } finally {
+            TestHelper.deleteTree(dir)
+        }
+    }
+
+    private fun captureOut(block: () -> Unit): String {
+        val out = System.out
+        val bytes = ByteArrayOutputStream()
+        System.setOut(PrintStream(bytes, true, Charsets.UTF_8))
+        try {
+            block()
+        } finally {
+            System.setOut(out)
+        }
+        return bytes.toString(Charsets.UTF_8).trim()
+    }
+}
\ No newline at end of file
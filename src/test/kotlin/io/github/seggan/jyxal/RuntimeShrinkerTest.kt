@@ -0,0 +1,56 @@
+package io.github.seggan.jyxal
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.tree.ClassNode
+import java.nio.file.Files
+import java.nio.file.Path
+
+class RuntimeShrinkerTest {
+
+    // the runtime the build indexed
+    private val dir = Path.of(System.getProperty("user.dir"), "build", "runtime-classes")
+
+    @Test
+    fun testShrink() {
+        val index = RuntimeShrinker.readIndex(Files.readAllLines(dir.resolve(RuntimeShrinker.INDEX)))
+        val resources = index.resources.associateWith { Files.readAllBytes(dir.resolve(it)) }
+        val writer = ClassWriter(0)
+        TestHelper.compile("1 →a ←a 2 +").accept(writer)
+        val kept = RuntimeShrinker.shrink(writer.toByteArray(), index, resources)
+
+        Assertions.assertTrue("io/github/seggan/jyxal/runtime/ProgramStack.class" in kept)
+        Assertions.assertTrue("dictLong.txt" in kept)
+        Assertions.assertTrue(kept.size < resources.size)
+        // the dyad call site is linked to add, and the rest of the facade goes
+        val runtimeMethods = "io/github/seggan/jyxal/runtime/RuntimeMethods.class"
+        val methods = methodNames(kept.getValue(runtimeMethods))
+        Assertions.assertTrue("add" in methods)
+        Assertions.assertFalse("sortByFunction" in methods)
+        Assertions.assertTrue("sortByFunction" in methodNames(resources.getValue(runtimeMethods)))
+
+        // the same runtime strips each class once, another one strips it again
+        Assertions.assertSame(kept[runtimeMethods], RuntimeShrinker.shrink(writer.toByteArray(), index, resources)[runtimeMethods])
+        val other = RuntimeShrinker.readIndex(Files.readAllLines(dir.resolve(RuntimeShrinker.INDEX)))
+        Assertions.assertNotSame(kept[runtimeMethods], RuntimeShrinker.shrink(writer.toByteArray(), other, resources)[runtimeMethods])
+    }
+
+    @Test
+    fun testStrippedClasses() {
+        val stripped = RuntimeShrinker.StrippedClasses(100)
+        val a = stripped.getOrStrip("a") { ByteArray(60) }
+        stripped.getOrStrip("b") { ByteArray(30) }
+        Assertions.assertSame(a, stripped.getOrStrip("a") { Assertions.fail("a was stripped again") })
+        // b is now the one used least recently
+        stripped.getOrStrip("c") { ByteArray(30) }
+        Assertions.assertEquals(setOf("a", "c"), stripped.keys)
+    }
+
+    private fun methodNames(classFile: ByteArray): Set<String> {
+        val node = ClassNode()
+        ClassReader(classFile).accept(node, ClassReader.SKIP_CODE)
+        return node.methods.map { it.name }.toSet()
+    }
+}
\ No newline at end of file
@@ -1,7 +1,15 @@
 package io.github.seggan.jyxal
 
 import io.github.seggan.jyxal.Main.doMain
+import io.github.seggan.jyxal.compiler.Compiler
+import io.github.seggan.jyxal.compiler.Parser
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.tree.ClassNode
+import java.io.ByteArrayOutputStream
 import java.io.IOException
+import java.io.OutputStream
+import java.io.PrintStream
+import java.lang.reflect.InvocationTargetException
 import java.net.URLClassLoader
 import java.nio.file.Files
 import java.nio.file.Path
@@ -28,4 +36,58 @@ object TestHelper {
         cl.close()
         Files.delete(jar)
     }
+
+    /**
+     * Compiles [program] with [flags] into a jar, runs it with [args] and returns what it printed, trimmed
+     */
+    fun output(program: String, flags: String = "", vararg args: String): String {
+        val out = System.out
+        val bytes = ByteArrayOutputStream()
+        System.setOut(PrintStream(bytes, true, Charsets.UTF_8))
+        try {
+            load(program, flags) { cl ->
+                try {
+                    cl.loadClass("jyxal.Main").getMethod("main", Array<String>::class.java).invoke(null, args)
+                } catch (e: InvocationTargetException) {
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            System.setOut(out)
+        }
+        return bytes.toString(Charsets.UTF_8).trim()
+    }
+
+    /**
+     * Compiles [program] with [flags] into a jar and gives [block] a class loader for it, so that it can look
+     * at the runtime the program uses
+     */
+    fun <T> load(program: String, flags: String = "", block: (ClassLoader) -> T): T {
+        val dir = Files.createTempDirectory("jyxal-test")
+        val file = dir.resolve("test.vy")
+        Files.writeString(file, program)
+        try {
+            val log = PrintStream(OutputStream.nullOutputStream())
+            val options = CompilerOptions.fromString(flags)
+            val jar = Main.compile(file.toString(), options, CompilerOptions.precisionOf(flags), true, dir.resolve("debug.log"), log)
+            return URLClassLoader(arrayOf(jar.toURI().toURL()), TestHelper::class.java.classLoader).use(block)
+        } finally {
+            deleteTree(dir)
+        }
+    }
+
+    /**
+     * Compiles [program] with [flags] and returns the program class, without the runtime around it
+     */
+    fun compile(program: String, flags: String = "", report: Appendable? = null): ClassNode {
+        val options = CompilerOptions.fromString(flags)
+        val bytes = Compiler.compile(Parser.parse(program), "test.vy", options, CompilerOptions.precisionOf(flags), report)
+        val node = ClassNode()
+        ClassReader(bytes).accept(node, 0)
+        return node
+    }
+
+    fun deleteTree(dir: Path) {
+        Files.walk(dir).use { paths -> paths.sorted(Comparator.reverseOrder()).forEach(Files::delete) }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.CompilerOptions
+import io.github.seggan.jyxal.Main
+import io.github.seggan.jyxal.TestHelper
+import io.github.seggan.jyxal.runtime.DEFAULT_PRECISION
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.io.OutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+
+class CompileMetricsTest {
+
+    @Test
+    fun testNestedPhases() {
+        val metrics = CompileMetrics()
+        val start = System.nanoTime()
+        metrics.time("outer") {
+            Thread.sleep(20)
+            metrics.time("inner") { Thread.sleep(20) }
+        }
+        val total = (System.nanoTime() - start) / 1e6
+        val json = metrics.toJson("test.vy")
+        val outer = millis(json, "outer")
+        val inner = millis(json, "inner")
+        Assertions.assertTrue(outer >= 20 && inner >= 20, json)
+        // the inner phase is not counted towards the outer one
+        Assertions.assertTrue(outer + inner <= total + 1, json)
+    }
+
+    @Test
+    fun testJson() {
+        val metrics = CompileMetrics()
+        metrics.instructionsBefore = 10
+        metrics.instructionsAfter = 7
+        metrics.time("parsing") {}
+        val json = metrics.toJson("dir\\a \"b\".vy")
+        Assertions.assertTrue(json.startsWith("{\n  \"file\": \"dir\\\\a \\\"b\\\".vy\",\n  \"phases\": {\n    \"parsing\": {\"millis\": "), json)
+        Assertions.assertTrue(json.endsWith("},\n  \"instructions\": {\"beforeOptimisation\": 10, \"afterOptimisation\": 7},\n  \"jarSize\": -1\n}\n"), json)
+    }
+
+    @Test
+    fun testMetricsFile() {
+        val dir = Files.createTempDirectory("jyxal-test")
+        try {
+            val file = dir.resolve("test.vy")
+            Files.writeString(file, "1 →a ←a 2 +")
+            val log = PrintStream(OutputStream.nullOutputStream())
+            val jar = Main.compile(file.toString(), CompilerOptions.fromString("m"), DEFAULT_PRECISION, true, dir.resolve("debug.log"), log)
+            val json = Files.readString(dir.resolve("test-metrics.json"))
+            for (phase in listOf("lexing", "parsing", "codegen", "optimise", "shrinking", "jar writing")) {
+                Assertions.assertTrue("\"$phase\": {\"millis\": " in json, "$phase in $json")
+            }
+            Assertions.assertTrue(json.contains("\"jarSize\": ${jar.length()}\n"), json)
+            val instructions = Regex("\"beforeOptimisation\": (\\d+), \"afterOptimisation\": (\\d+)").find(json)!!
+            val (before, after) = instructions.destructured
+            Assertions.assertTrue(after.toLong() in 1 until before.toLong(), json)
+        } finally {
+            TestHelper.deleteTree(dir)
+        }
+    }
+
+    private fun millis(json: String, phase: String): Double {
+        return Regex("\"$phase\": \\{\"millis\": ([0-9.]+)").find(json)!!.groupValues[1].toDouble()
+    }
+}
\ No newline at end of file
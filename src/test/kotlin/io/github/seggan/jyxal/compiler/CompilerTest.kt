@@ -0,0 +1,328 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.CompilerOptions
+import io.github.seggan.jyxal.TestHelper
+import io.github.seggan.jyxal.runtime.printElementHistogram
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.InvokeDynamicInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.LineNumberNode
+import org.objectweb.asm.tree.MethodInsnNode
+import org.objectweb.asm.tree.VarInsnNode
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+
+/**
+ * Compiles programs to jars and checks what they print. Operands are read from variables where the
+ * constant folder would otherwise work the result out at compile time.
+ */
+class CompilerTest {
+
+    @Test
+    fun testDyadVectorisation() {
+        assertOutput("⟨4 | 5⟩", "⟨5|6⟩ →a ←a 1 -")
+        assertOutput("⟨9 | 8⟩", "⟨1|2⟩ →a 10 ←a -")
+        assertOutput("⟨0 | 0 | 1⟩", "⟨1|2|3⟩ →a ←a 2 >")
+        assertOutput("⟨0 | 1 | 1⟩", "⟨1|2|3⟩ →a ←a 2 ≥")
+        assertOutput("⟨2 | 1⟩", "⟨5|7⟩ →a ←a 3 %")
+    }
+
+    @Test
+    fun testStackSize() {
+        assertOutput("3", "1 2 3 !")
+        assertOutput("4", "1 2 ! +")
+        assertOutput("⟨1 | 2 | 2⟩", "1 2 ! W")
+    }
+
+    @Test
+    fun testStackLocals() {
+        val program = "⟨1|2⟩ →a ←a 1 + ←a 2 * -"
+        assertOutput("⟨0 | -1⟩", program)
+        val optimised = stackCalls(TestHelper.compile(program))
+        val unoptimised = stackCalls(TestHelper.compile(program, "o"))
+        Assertions.assertTrue(optimised < unoptimised, "$optimised program stack calls, $unoptimised without optimising")
+        // the depth of ! is only known at run time
+        assertOutput("⟨1 | 2 | 2⟩", "1 →a ←a 2 ! W")
+    }
+
+    @Test
+    fun testIntegerRuns() {
+        assertOutput("35", "0 5(n 2 * 1 + +)")
+        // these overflow a long
+        assertOutput("5999999999999999988000000000000000006", "0 3(n 999999999999999999 * 999999999999999999 * +)")
+        assertOutput("-19999999999999999950", "0 2(n 999999999999999999 - 10 * +)")
+        val method = TestHelper.compile("0 5(n 2 * 1 + +)").methods.single { it.name == "main" }
+        Assertions.assertTrue(method.tryCatchBlocks.any { it.type == "java/lang/ArithmeticException" })
+    }
+
+    @Test
+    fun testConstantFolding() {
+        assertOutput("20", "2 3 + 4 *")
+        Assertions.assertEquals(0, runtimeCalls(TestHelper.compile("2 3 + 4 *")))
+        // the range is too long to be a constant
+        assertOutput("45150", "300 ɾ ∑")
+        Assertions.assertNotEquals(0, runtimeCalls(TestHelper.compile("300 ɾ")))
+        // a range is lazy, and a lazy list prints differently from the finite one a constant would be
+        Assertions.assertNotEquals(0, runtimeCalls(TestHelper.compile("200 ɾ")))
+        Assertions.assertEquals(0, runtimeCalls(TestHelper.compile("⟨1|2⟩ ⟨3|4⟩ J")))
+        val programs = listOf("2 3 + 4 *", "10 ɾ", "10 ɾ ƛ2*;", "⟨1|2|3⟩ ⟨4|5|6⟩ +", "⟨1|2⟩ ⟨3|4⟩ J",
+                "⟨1|⟨2|3⟩⟩ 2 *", "\"ab\" 3 *", "1 3 /", "2 √")
+        for (program in programs) {
+            Assertions.assertEquals(TestHelper.output(program, "o"), TestHelper.output(program), program)
+        }
+        Assertions.assertEquals(1200, TestHelper.output("\"ab\" 600 *").length)
+        // repeating a string many times is left to the program rather than done in the compiler
+        Assertions.assertNotEquals(0, runtimeCalls(TestHelper.compile("\"ab\" 300000000 *")))
+        Assertions.assertNotEquals(0, runtimeCalls(TestHelper.compile("300000000 \"a\" e")))
+        Assertions.assertNotEquals(0, runtimeCalls(TestHelper.compile("⟨300000000⟩ \"a\" e")))
+        Assertions.assertNotEquals(0, runtimeCalls(TestHelper.compile("\"${"a".repeat(1000)}\" d")))
+        Assertions.assertEquals(0, runtimeCalls(TestHelper.compile("\"ab\" 3 *")))
+        // powers are rounded like any other inexact result, so they are cheap to fold
+        assertOutput("1606938044258990275541962092341163000000000000000000000000000", "2 200 e")
+        Assertions.assertEquals(0, runtimeCalls(TestHelper.compile("2 1000000000 e")))
+        Assertions.assertNotEquals(0, runtimeCalls(TestHelper.compile("${"9".repeat(1500)} 2 e")))
+        // errors are left for the program to throw
+        Assertions.assertThrows(ArithmeticException::class.java) { TestHelper.output("1 0 /") }
+    }
+
+    @Test
+    fun testDyadCallSites() {
+        // each site sees numbers, then strings, then both
+        val program = "1 \"ab\" 2.5 \"c\" 3 W (n n + , n 1 + ,)"
+        assertOutput("2\n2\nabab\nab1\n5\n3.5\ncc\nc1\n6\n4\n0", program)
+        Assertions.assertTrue(TestHelper.compile(program).methods.any { method ->
+            method.instructions.any { it is InvokeDynamicInsnNode }
+        })
+    }
+
+    @Test
+    fun testLambdaBridge() {
+        assertOutput("6", "3 λ2*; †")
+        assertOutput("7", "3 4 λ2|+; †")
+        for ((program, arity) in listOf("3 λ2*; †" to 1, "3 4 λ2|+; †" to 2)) {
+            val bridge = TestHelper.compile(program).methods.single {
+                it.name == "lambda$0" && it.desc == "(Lio/github/seggan/jyxal/runtime/ProgramStack;)Ljava/lang/Object;"
+            }
+            val opcodes = bridge.instructions.map { it.opcode }.filter { it >= 0 }
+            val pops = List(arity) { listOf(Opcodes.ALOAD, Opcodes.INVOKEVIRTUAL) }.flatten()
+            Assertions.assertEquals(pops + listOf(Opcodes.INVOKESTATIC, Opcodes.ARETURN), opcodes, program)
+        }
+    }
+
+    @Test
+    fun testDeadStores() {
+        val program = "5 →a ←a 3 > [←a 2 *|←a 1 -] ←a +"
+        assertOutput("15", program)
+        val report = StringBuilder()
+        val node = TestHelper.compile(program, report = report)
+        val removed = Regex("main\\S*: removed (\\d+)").find(report)!!.groupValues[1].toInt()
+        Assertions.assertTrue(removed > 0, report.toString())
+        for (method in node.methods) {
+            // the slots past the named locals hold the values on the program stack
+            val named = method.localVariables.orEmpty().map { it.index }.toSet()
+            val loaded = method.instructions.filter { it.opcode == Opcodes.ALOAD }.map { (it as VarInsnNode).`var` }.toSet()
+            for (store in method.instructions.filter { it.opcode == Opcodes.ASTORE }) {
+                val slot = (store as VarInsnNode).`var`
+                if (slot in named || slot < Type.getArgumentsAndReturnSizes(method.desc) shr 2) continue
+                Assertions.assertTrue(slot in loaded, "Dead store to $slot in ${method.name}")
+                // the labels of line numbers are not jump targets
+                var next = store.next
+                while (next is LabelNode && next.next.let { it is LineNumberNode && it.start == next }) {
+                    next = next.next.next
+                }
+                Assertions.assertFalse(next.opcode == Opcodes.ALOAD && (next as VarInsnNode).`var` == slot,
+                        "Store to $slot in ${method.name} is loaded straight back")
+            }
+        }
+    }
+
+    @Test
+    fun testLineNumbers() {
+        val program = "1 →a ←a 2 +"
+        val table = LineTable.of(Parser.parse(program))
+        Assertions.assertEquals(listOf("1 at 1:1", "→a at 1:3", "←a at 1:6", "2 at 1:9", "+ at 1:11"), table.entries.map { it.toString() })
+        val main = TestHelper.compile(program).methods.single { it.name == "main" }
+        val lines = main.instructions.filterIsInstance<LineNumberNode>().map { it.line }
+        Assertions.assertTrue(lines.isNotEmpty())
+        for (line in lines) {
+            Assertions.assertNotNull(table[line], "Line $line is not in the table")
+        }
+    }
+
+    @Test
+    fun testElementCounters() {
+        // the counters are shared by every program in the JVM
+        val before = elementCalls()
+        assertOutput("55", "0 10(n +)", "c")
+        val after = elementCalls()
+        Assertions.assertEquals(10, after.getValue("+") - before.getOrDefault("+", 0))
+        Assertions.assertEquals(10, after.getValue("n") - before.getOrDefault("n", 0))
+    }
+
+    @Test
+    fun testFlightRecorderEvents() {
+        val file = Files.createTempFile("jyxal-test", ".jfr")
+        try {
+            Recording().use { recording ->
+                recording.enable("jyxal.LambdaCall")
+                recording.start()
+                assertOutput("6", "3 λ2*; †")
+                recording.stop()
+                recording.dump(file)
+            }
+            val events = RecordingFile.readAllEvents(file).filter { it.eventType.name == "jyxal.LambdaCall" }
+            Assertions.assertEquals(1, events.size)
+            Assertions.assertEquals(1, events[0].getInt("arity"))
+        } finally {
+            Files.delete(file)
+        }
+    }
+
+    @Test
+    fun testLocalVariables() {
+        assertOutput("2", "1 →a ←a ←a +")
+        Assertions.assertTrue(TestHelper.compile("1 →a ←a ←a +").fields.none { it.name == "a" })
+        // the lambda is a method of its own, so the variable has to stay in a field
+        assertOutput("2", "1 →a 1 λ←a +; †")
+        Assertions.assertTrue(TestHelper.compile("1 →a 1 λ←a +; †").fields.any { it.name == "a" })
+        assertOutput("3", "3 £ ¥")
+        Assertions.assertTrue(TestHelper.compile("3 £ ¥").fields.none { it.name == "register" })
+    }
+
+    @Test
+    fun testLongCounters() {
+        assertOutput("55", "0 10(n +)")
+        assertOutput("⟨1 | 2 | 3⟩", "3(x|←x) W")
+        Assertions.assertTrue(countsWithLong(TestHelper.compile("0 10(n +)")))
+        // the body assigns the loop variable, so it stays an object
+        assertOutput("9", "0 3(x|←x 1+ →x ←x +)")
+        Assertions.assertFalse(countsWithLong(TestHelper.compile("0 3(x|←x 1+ →x ←x +)")))
+    }
+
+    @Test
+    fun testOutlining() {
+        val straight = "1 →a 0 ${"←a + ".repeat(2000)}"
+        val loop = "1 →a 0 2(${"←a + ".repeat(1500)})"
+        assertOutput("2000", straight)
+        assertOutput("3000", loop)
+        for (program in listOf(straight, loop)) {
+            val bytes = Compiler.compile(Parser.parse(program), "test.vy", CompilerOptions.fromString(""))
+            val sizes = codeSizes(bytes)
+            Assertions.assertTrue(sizes.keys.count { it.startsWith("block$") } > 1, sizes.toString())
+            // HotSpot does not compile methods bigger than this
+            Assertions.assertTrue(sizes.values.all { it < 8000 }, sizes.toString())
+        }
+    }
+
+    @Test
+    fun testFusedLambdas() {
+        val finite = mapOf(
+                "⟨1|2|3⟩ ƛ2*;" to "⟨2 | 4 | 6⟩",
+                "⟨1|2|3|4⟩ '2%;" to "⟨1 | 3⟩",
+                "⟨1|2|3⟩ λ1+;M" to "⟨2 | 3 | 4⟩",
+                "⟨1|2|3|4⟩ λ2%;F" to "⟨1 | 3⟩",
+                // the context variable is the list of arguments, and is put back after
+                "2(⟨5|6⟩ ƛn;, n,)" to "⟨⟨5⟩ | ⟨6⟩⟩\n1\n⟨⟨5⟩ | ⟨6⟩⟩\n2\n0",
+                "2(i|⟨5|6⟩ ƛ→i ←i 2*;, ←i,)" to "⟨10 | 12⟩\n1\n⟨10 | 12⟩\n2\n0",
+                "2(i|⟨5|6⟩ λ→i ←i 5>;F, ←i,)" to "⟨6⟩\n1\n⟨6⟩\n2\n0"
+        )
+        for ((program, expected) in finite) {
+            assertOutput(expected, program)
+            assertOutput(expected, program, "o")
+            Assertions.assertTrue(fused(TestHelper.compile(program)), program)
+            Assertions.assertFalse(fused(TestHelper.compile(program, "o")), program)
+        }
+        // the primes never end and a number is not a list, so these go through the lambda at run time
+        val generic = mapOf("Þp ƛ2*; 3 i" to "14", "Þp λ3>;F 0 i" to "5", "5 ƛ2*; ∑" to "20")
+        for ((program, expected) in generic) {
+            assertOutput(expected, program)
+            Assertions.assertTrue(fused(TestHelper.compile(program)), program)
+        }
+        // reduce vectorises over a list with a lambda on top, so it is left alone
+        assertOutput("⟨1 | 2 | 3⟩", "⟨1|2|3⟩ λ+;R")
+        Assertions.assertFalse(fused(TestHelper.compile("⟨1|2|3⟩ λ+;R")))
+    }
+
+    private fun assertOutput(expected: String, program: String, flags: String = "") {
+        Assertions.assertEquals(expected, TestHelper.output(program, flags), "Output of $program with flags '$flags'")
+    }
+
+    private fun elementCalls(): Map<String, Long> {
+        val bytes = ByteArrayOutputStream()
+        printElementHistogram(PrintStream(bytes, true, Charsets.UTF_8))
+        return bytes.toString(Charsets.UTF_8).lines().drop(1).filter { it.isNotBlank() }.associate { line ->
+            val (name, calls) = line.trim().split(Regex("\\s+"))
+            name to calls.toLong()
+        }
+    }
+
+    private fun countsWithLong(node: ClassNode): Boolean {
+        val main = node.methods.single { it.name == "main" }
+        return main.instructions.any { it.opcode == Opcodes.LCMP } && main.instructions.none {
+            it is MethodInsnNode && it.name == "forify"
+        }
+    }
+
+    /**
+     * Reads the length of the code of each method straight from the class file, which ASM does not expose
+     */
+    private fun codeSizes(bytes: ByteArray): Map<String, Int> {
+        val reader = ClassReader(bytes)
+        val buffer = CharArray(reader.maxStringLength)
+        var offset = reader.header + 6
+        offset += 2 + 2 * reader.readUnsignedShort(offset)
+        // the fields, then the methods, are the access flags, name, descriptor and attributes
+        offset = skipMembers(reader, offset)
+        val sizes = LinkedHashMap<String, Int>()
+        repeat(reader.readUnsignedShort(offset).also { offset += 2 }) {
+            val name = reader.readUTF8(offset + 2, buffer)
+            var attributes = reader.readUnsignedShort(offset + 6)
+            offset += 8
+            while (attributes-- > 0) {
+                if (reader.readUTF8(offset, buffer) == "Code") {
+                    sizes[name] = reader.readInt(offset + 10)
+                }
+                offset += 6 + reader.readInt(offset + 2)
+            }
+        }
+        return sizes
+    }
+
+    private fun skipMembers(reader: ClassReader, start: Int): Int {
+        var offset = start
+        repeat(reader.readUnsignedShort(offset).also { offset += 2 }) {
+            var attributes = reader.readUnsignedShort(offset + 6)
+            offset += 8
+            while (attributes-- > 0) {
+                offset += 6 + reader.readInt(offset + 2)
+            }
+        }
+        return offset
+    }
+
+    private fun fused(node: ClassNode): Boolean {
+        return node.methods.single { it.name == "main" }.instructions.any {
+            it is MethodInsnNode && it.name == "finiteList"
+        }
+    }
+
+    private fun stackCalls(node: ClassNode): Int {
+        return node.methods.sumOf { method ->
+            method.instructions.count { it is MethodInsnNode && it.owner.endsWith("runtime/ProgramStack") && it.name != "<init>" }
+        }
+    }
+
+    private fun runtimeCalls(node: ClassNode): Int {
+        return node.methods.single { it.name == "main" }.instructions.count {
+            it is MethodInsnNode && it.owner.endsWith("runtime/RuntimeMethods") || it is InvokeDynamicInsnNode
+        }
+    }
+}
\ No newline at end of file
@@ -21,7 +21,7 @@ class ElementTest {
                 Assertions.assertDoesNotThrow<Any>({
                     Class.forName("io.github.seggan.jyxal.runtime.RuntimeMethods").getMethod(
                         screamingSnakeToCamel(element.name),
-                        type.argType.java
+                        *type.argTypes.map { it.java }.toTypedArray()
                     )
                 }, "Method not found: $methodName")
             }
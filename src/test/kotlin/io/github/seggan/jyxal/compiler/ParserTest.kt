@@ -0,0 +1,108 @@
+package io.github.seggan.jyxal.compiler
+
+import io.github.seggan.jyxal.antlr.JyxalLexer
+import io.github.seggan.jyxal.antlr.JyxalParser
+import org.antlr.v4.runtime.BaseErrorListener
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.CommonTokenStream
+import org.antlr.v4.runtime.RecognitionException
+import org.antlr.v4.runtime.Recognizer
+import org.antlr.v4.runtime.Token
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+/**
+ * Checks the hand-written lexer and parser against the ANTLR grammar they replace
+ */
+class ParserTest {
+
+    private val corpus = listOf(
+        "1 2 +",
+        "\"Hello, World!\" «×Ṁ«, \\a ‛ab",
+        "# a comment\n1 #another\n2",
+        "12 3.5 1°2 1.5°2.5 12°3 123°4 1.23°4 12.3°4 12.34°5 1°23°4 1°2(",
+        "»1 2» »a»b»",
+        "kA k1 k12",
+        "⟨1|2|3⟩ ⟨⟩ ⟨1|⟨2|3⟩⟩ ⟨1",
+        "[1|2] [1] [1|2 [3|4]] [⟨1|2] ⟨[1|2⟩",
+        "5(n,) 12(1) 1234567890( (x|n) (1) [(x|1]",
+        "{:5<|1+} {1} {{1}} {[1|2]} {[1|2} {[1|2]|3} {λ1|2} {(x|1} {⁽+|1} {1",
+        "λ1|2; λ+; ƛ1+; '2%; µ1; λ12|+; (λ1|2)",
+        "⁽+ ‡1+ ≬1+2 ⁽[1|2] ‡{1|2}3",
+        "→x ←x →ab1 →x1°2 →x12.5 →x12(",
+        "v+ v¨+ ¨M ∆p ƛ2*;M",
+        "‡{k1 ‡12 ‡→ab ‡12( ‡1.25 ‡1°23 ‡[1 2 ≬12+",
+        "[‡(⁽(x|",
+        "λ⟨‡λ1|",
+        "1 2 +¢a a 3 ¢b 1 b",
+        "1 2 »¢»",
+        "λ0|1 1 2 { 3 4 | 5 6 } [ 7 | 8 ] ( 9 ) \n\t\r",
+        ""
+    )
+
+    @Test
+    fun testCorpus() {
+        for (program in corpus) {
+            Assertions.assertEquals(antlrTokens(program), tokens(program), "Tokens of $program")
+            val file = Lexer(program).tokenize()?.let { Parser(it).file() }
+            Assertions.assertNotNull(file, "Failed to parse $program")
+            Assertions.assertEquals(antlrTree(program), file!!.toStringTree(RULE_NAMES), "Tree of $program")
+        }
+    }
+
+    @Test
+    fun testRandomPrograms() {
+        val random = Random(0)
+        repeat(20000) {
+            val program = String(CharArray(random.nextInt(1, 14)) { ALPHABET[random.nextInt(ALPHABET.length)] })
+            val expected = antlrTree(program)
+            val file = Lexer(program).tokenize()?.let { Parser(it).file() }
+            if (expected == null) {
+                Assertions.assertNull(file, "Parsed invalid program $program")
+            } else {
+                Assertions.assertEquals(expected, file?.toStringTree(RULE_NAMES), "Tree of $program")
+            }
+        }
+    }
+
+    private fun tokens(program: String): List<String>? {
+        return Lexer(program).tokenize()?.map(::describe)
+    }
+
+    private fun antlrTokens(program: String): List<String> {
+        val stream = CommonTokenStream(JyxalLexer(CharStreams.fromString(program)))
+        stream.fill()
+        return stream.tokens.map(::describe)
+    }
+
+    private fun describe(token: Token): String {
+        return "${token.type} ${token.text} ${token.line}:${token.charPositionInLine} ${token.startIndex}-${token.stopIndex}"
+    }
+
+    /**
+     * The tree ANTLR builds, or null if the program has a syntax error
+     */
+    private fun antlrTree(program: String): String? {
+        var errors = 0
+        val lexer = JyxalLexer(CharStreams.fromString(program))
+        val parser = JyxalParser(CommonTokenStream(lexer))
+        val listener = object : BaseErrorListener() {
+            override fun syntaxError(recognizer: Recognizer<*, *>?, offendingSymbol: Any?, line: Int, charPositionInLine: Int, msg: String?, e: RecognitionException?) {
+                errors++
+            }
+        }
+        lexer.removeErrorListeners()
+        lexer.addErrorListener(listener)
+        parser.removeErrorListeners()
+        parser.addErrorListener(listener)
+        val tree = parser.file().toStringTree(parser)
+        return if (errors == 0) tree else null
+    }
+
+    companion object {
+        private val RULE_NAMES = JyxalParser.ruleNames.asList()
+
+        private const val ALPHABET = "12.°()|[]{}⟨⟩λ;x+→⁽‡≬»¢ vk"
+    }
+}
\ No newline at end of file
@@ -0,0 +1,43 @@
+package io.github.seggan.jyxal.runtime
+
+import io.github.seggan.jyxal.runtime.math.BigComplex
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.math.BigDecimal
+
+class BigComplexTest {
+
+    @Test
+    fun testLongArithmetic() {
+        val a = BigComplex.valueOf(123456789)
+        val b = BigComplex.valueOf(-987654321)
+        Assertions.assertTrue(a.isLong)
+        Assertions.assertEquals(BigComplex.valueOf(-864197532), a.add(b))
+        Assertions.assertEquals(BigComplex.valueOf(1111111110), a.subtract(b))
+        Assertions.assertEquals(BigComplex.valueOf(-121932631112635269), a.multiply(b))
+        Assertions.assertEquals(BigComplex.valueOf(BigDecimal("5")), BigComplex.valueOf(5))
+        Assertions.assertTrue(BigComplex.valueOf(BigDecimal("5")).isLong)
+    }
+
+    @Test
+    fun testOverflow() {
+        val max = BigComplex.valueOf(Long.MAX_VALUE)
+        val min = BigComplex.valueOf(Long.MIN_VALUE)
+        Assertions.assertEquals("9223372036854775808", max.add(BigComplex.ONE).toString())
+        Assertions.assertEquals("-9223372036854775809", min.subtract(BigComplex.ONE).toString())
+        Assertions.assertEquals("85070591730234615847396907784232501249", max.multiply(max).toString())
+        Assertions.assertEquals("9223372036854775808", min.negate().toString())
+        Assertions.assertFalse(max.add(BigComplex.ONE).isLong)
+    }
+
+    @Test
+    fun testPromotion() {
+        val half = BigComplex.valueOf(BigDecimal("0.5"))
+        Assertions.assertFalse(half.isLong)
+        Assertions.assertTrue(half.isReal)
+        Assertions.assertEquals(BigComplex.ONE, half.add(half))
+        Assertions.assertEquals(BigComplex.valueOf(-1), BigComplex.I.multiply(BigComplex.I))
+        Assertions.assertEquals("3 + 1i", BigComplex.valueOf(3).add(BigComplex.I).toString())
+        Assertions.assertTrue(BigComplex.valueOf(3).add(BigComplex.I).subtract(BigComplex.I).isLong)
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+package io.github.seggan.jyxal.runtime
+
+import io.github.seggan.jyxal.CompilerOptions
+import io.github.seggan.jyxal.Interpreter
+import io.github.seggan.jyxal.TestHelper
+import io.github.seggan.jyxal.compiler.Parser
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.MethodInsnNode
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+
+/**
+ * Checks that each program works out inexact results in its own precision and with doubles only if it has
+ * the `F` flag, whether it is compiled, interpreted or folded at compile time. Operands are read from
+ * variables where the constant folder would otherwise work the result out.
+ */
+class MathSettingsTest {
+
+    @Test
+    fun testFastMath() {
+        assertOutput("1.4142135623730951", "2 →a ←a √", "F")
+        assertOutput("1.414213562373095048801688724209698", "2 →a ←a √", "")
+        assertOutput("1.4142135623730951", "2 →a ←a 0.5 e", "F")
+        assertOutput("0.33333333333333337", "8 →a ←a 2 •", "F")
+        assertOutput("0.3333333333333333333333333333333333", "8 →a ←a 2 •", "")
+        // integers stay integers
+        assertOutput("3", "9 →a ←a √", "F")
+        assertOutput("1024", "2 →a ←a 10 e", "F")
+        // folded at compile time the same way
+        assertOutput("1.4142135623730951", "2 √", "F")
+        Assertions.assertEquals(0, runtimeCalls(TestHelper.compile("2 √", "F")))
+    }
+
+    @Test
+    fun testExactFallback() {
+        val programs = listOf(
+                // not a number as a double
+                "0 8 - →a ←a 2 •",
+                "0 1 - →a ←a 0.5 e",
+                // complex
+                "1°1 →a ←a √",
+                // infinite
+                "10 →a ←a 400 e"
+        )
+        for (program in programs) {
+            assertOutput(TestHelper.output(program), program, "F")
+        }
+        Assertions.assertEquals("1${"0".repeat(400)}", TestHelper.output("10 →a ←a 400 e", "F"))
+        // the log of zero is infinite even though the quotient is not
+        for (flags in listOf("", "F", "iF")) {
+            Assertions.assertThrows(ArithmeticException::class.java) { run("0 →a ←a 2 •", flags) }
+        }
+    }
+
+    @Test
+    fun testPrecision() {
+        val third = "0.${"3".repeat(50)}"
+        assertOutput(third, "1 →a ←a 3 /", "50")
+        assertOutput(third, "1 3 /", "50")
+        assertOutput("0.3333333333", "1 →a ←a 3 /", "10")
+        assertOutput("1.4142135623730950488016887242096980785696718753769", "2 →a ←a √", "50")
+        // fast math only covers what a double can do
+        assertOutput("0.${"3".repeat(50)}", "1 →a ←a 3 /", "F50")
+        Assertions.assertEquals(DEFAULT_PRECISION, CompilerOptions.precisionOf("Fo"))
+        Assertions.assertEquals(100, CompilerOptions.precisionOf("F100o"))
+        Assertions.assertThrows(IllegalArgumentException::class.java) { CompilerOptions.precisionOf("0") }
+    }
+
+    @Test
+    fun testProgramsKeepTheirOwn() {
+        // the runtime is shared by every program in the JVM
+        val exact = "1.414213562373095048801688724209698"
+        for (flags in listOf("", "i")) {
+            Assertions.assertEquals("1.4142135623730951", run("2 →a ←a √", flags + "F"))
+            Assertions.assertEquals(exact, run("2 →a ←a √", flags))
+            Assertions.assertEquals("0.${"3".repeat(50)}", run("1 →a ←a 3 /", flags + "50"))
+            Assertions.assertEquals("0.${"3".repeat(34)}", run("1 →a ←a 3 /", flags))
+        }
+        // a program that fails part of the way through leaves nothing behind either
+        Assertions.assertThrows(ArithmeticException::class.java) { run("2 →a ←a √ 0 /", "F") }
+        Assertions.assertEquals(exact, run("2 →a ←a √", ""))
+    }
+
+    private fun assertOutput(expected: String, program: String, flags: String) {
+        Assertions.assertEquals(expected, run(program, flags), "Output of $program with flags '$flags'")
+        Assertions.assertEquals(expected, run(program, flags + "i"), "Output of $program interpreted with flags '$flags'")
+    }
+
+    /**
+     * Runs [program] compiled, or interpreted with the `i` flag, and returns what it printed
+     */
+    private fun run(program: String, flags: String): String {
+        if (CompilerOptions.INTERPRET !in CompilerOptions.fromString(flags)) {
+            return TestHelper.output(program, flags)
+        }
+        val out = System.out
+        val bytes = ByteArrayOutputStream()
+        System.setOut(PrintStream(bytes, true, Charsets.UTF_8))
+        try {
+            Interpreter(Parser.parse(program), CompilerOptions.fromString(flags), precision = CompilerOptions.precisionOf(flags))
+                    .run(arrayOf())
+        } finally {
+            System.setOut(out)
+        }
+        return bytes.toString(Charsets.UTF_8).trim()
+    }
+
+    private fun runtimeCalls(node: ClassNode): Int {
+        return node.methods.single { it.name == "main" }.instructions.count {
+            it is MethodInsnNode && it.owner.endsWith("runtime/RuntimeMethods")
+        }
+    }
+}
\ No newline at end of file